@@ -25,11 +25,15 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -45,11 +49,17 @@ public class BinaryDictionaryFileDumper {
     private static final boolean DEBUG = false;
 
     /**
-     * The size of the temporary buffer to copy files.
+     * The size of the temporary buffer to copy files. Word lists are a few megabytes, so
+     * this is large enough that copying does not go through too many calls.
      */
-    private static final int FILE_READ_BUFFER_SIZE = 1024;
+    private static final int FILE_READ_BUFFER_SIZE = 32 * 1024;
     // TODO: make the following data common with the native code
     private static final byte[] MAGIC_NUMBER = new byte[] { 0x78, (byte)0xB1 };
+    // A word list may also come as a patch to the version we already have. The format is
+    // described in BinaryDictionaryPatch.
+    private static final byte[] PATCH_MAGIC_NUMBER = new byte[] {
+            (byte)(BinaryDictionaryPatch.MAGIC_NUMBER >> 8),
+            (byte)BinaryDictionaryPatch.MAGIC_NUMBER };
 
     private static final String DICTIONARY_PROJECTION[] = { "id" };
 
@@ -119,6 +129,10 @@ public class BinaryDictionaryFileDumper {
      * Caches a word list the id of which is passed as an argument. This will write the file
      * to the cache file name designated by its id and locale, overwriting it if already present
      * and creating it (and its containing directory) if necessary.
+     *
+     * The word list is first written to a temporary file, which is then renamed over the cache
+     * file. This way the cache file is replaced atomically, and stays untouched if anything
+     * goes wrong. If the provider sends a patch, it is applied to the current cache file.
      */
     private static AssetFileAddress cacheWordList(final String id, final String locale,
             final ContentResolver resolver, final Context context) {
@@ -134,11 +148,12 @@ public class BinaryDictionaryFileDumper {
 
         final Uri wordListUri = getProviderUri(id);
         final String outputFileName = BinaryDictionaryGetter.getCacheFileName(id, locale, context);
+        final String tempFileName = BinaryDictionaryGetter.getTemporaryCacheFileName(id, context);
 
         for (int mode = MODE_MIN; mode <= MODE_MAX; ++mode) {
-            InputStream originalSourceStream = null;
+            FileInputStream originalSourceStream = null;
             InputStream inputStream = null;
-            File outputFile = null;
+            File tempFile = null;
             FileOutputStream outputStream = null;
             AssetFileDescriptor afd = null;
             try {
@@ -148,35 +163,47 @@ public class BinaryDictionaryFileDumper {
                 if (null == afd) return null;
                 originalSourceStream = afd.createInputStream();
                 // Open output.
-                outputFile = new File(outputFileName);
-                outputStream = new FileOutputStream(outputFile);
-                // Get the appropriate decryption method for this try
-                switch (mode) {
-                    case COMPRESSED_CRYPTED_COMPRESSED:
-                        inputStream = FileTransforms.getUncompressedStream(
-                                FileTransforms.getDecryptedStream(
-                                        FileTransforms.getUncompressedStream(
-                                                originalSourceStream)));
-                        break;
-                    case CRYPTED_COMPRESSED:
-                        inputStream = FileTransforms.getUncompressedStream(
-                                FileTransforms.getDecryptedStream(originalSourceStream));
-                        break;
-                    case COMPRESSED_CRYPTED:
-                        inputStream = FileTransforms.getDecryptedStream(
-                                FileTransforms.getUncompressedStream(originalSourceStream));
-                        break;
-                    case COMPRESSED_ONLY:
-                        inputStream = FileTransforms.getUncompressedStream(originalSourceStream);
-                        break;
-                    case CRYPTED_ONLY:
-                        inputStream = FileTransforms.getDecryptedStream(originalSourceStream);
-                        break;
-                    case NONE:
-                        inputStream = originalSourceStream;
-                        break;
-                    }
-                checkMagicAndCopyFileTo(new BufferedInputStream(inputStream), outputStream);
+                tempFile = new File(tempFileName);
+                outputStream = new FileOutputStream(tempFile);
+                // Word lists that are neither compressed nor crypted are copied straight
+                // from the file descriptor, without going through streams.
+                if (MODE_MIN != mode
+                        || !copyUntransformedWordList(afd, originalSourceStream, outputStream)) {
+                    // Get the appropriate decryption method for this try
+                    switch (mode) {
+                        case COMPRESSED_CRYPTED_COMPRESSED:
+                            inputStream = FileTransforms.getUncompressedStream(
+                                    FileTransforms.getDecryptedStream(
+                                            FileTransforms.getUncompressedStream(
+                                                    originalSourceStream)));
+                            break;
+                        case CRYPTED_COMPRESSED:
+                            inputStream = FileTransforms.getUncompressedStream(
+                                    FileTransforms.getDecryptedStream(originalSourceStream));
+                            break;
+                        case COMPRESSED_CRYPTED:
+                            inputStream = FileTransforms.getDecryptedStream(
+                                    FileTransforms.getUncompressedStream(originalSourceStream));
+                            break;
+                        case COMPRESSED_ONLY:
+                            inputStream =
+                                    FileTransforms.getUncompressedStream(originalSourceStream);
+                            break;
+                        case CRYPTED_ONLY:
+                            inputStream = FileTransforms.getDecryptedStream(originalSourceStream);
+                            break;
+                        case NONE:
+                            inputStream = originalSourceStream;
+                            break;
+                        }
+                    checkMagicAndWriteWordListTo(new BufferedInputStream(inputStream),
+                            new File(outputFileName), outputStream);
+                }
+                outputStream.close();
+                outputStream = null;
+                if (!tempFile.renameTo(new File(outputFileName))) {
+                    throw new IOException("Can't rename the word list to its cache file name");
+                }
                 if (0 >= resolver.delete(wordListUri, null, null)) {
                     Log.e(TAG, "Could not have the dictionary pack delete a word list");
                 }
@@ -186,11 +213,11 @@ public class BinaryDictionaryFileDumper {
                 if (DEBUG) {
                     Log.i(TAG, "Can't open word list in mode " + mode + " : " + e);
                 }
-                if (null != outputFile) {
+                if (null != tempFile) {
                     // This may or may not fail. The file may not have been created if the
                     // exception was thrown before it could be. Hence, both failure and
                     // success are expected outcomes, so we don't check the return value.
-                    outputFile.delete();
+                    tempFile.delete();
                 }
                 // Try the next method.
             } finally {
@@ -245,23 +272,72 @@ public class BinaryDictionaryFileDumper {
     }
 
     /**
-     * Copies the data in an input stream to a target file if the magic number matches.
+     * Copies a word list as is if it is neither compressed nor crypted.
+     *
+     * This checks the magic number at the start of the word list, and if it matches, has
+     * the kernel transfer the data from the file descriptor to the output file.
+     * Positioned reads are used so that the input stream can still be read from the
+     * start if the word list needs transforming.
      *
-     * If the magic number does not match the expected value, this method throws an
+     * @param afd the descriptor of the word list.
+     * @param input the stream opened on afd.
+     * @param output an outputstream to copy the data to.
+     * @return true if the word list was copied, false if it needs transforming.
+     */
+    private static boolean copyUntransformedWordList(final AssetFileDescriptor afd,
+            final FileInputStream input, final FileOutputStream output) throws IOException {
+        final FileChannel source = input.getChannel();
+        final long start = afd.getStartOffset();
+        final long length = AssetFileDescriptor.UNKNOWN_LENGTH == afd.getLength()
+                ? source.size() - start : afd.getLength();
+        final ByteBuffer magicNumberBuffer = ByteBuffer.allocate(MAGIC_NUMBER.length);
+        while (magicNumberBuffer.hasRemaining()) {
+            if (source.read(magicNumberBuffer, start + magicNumberBuffer.position()) < 0) {
+                return false;
+            }
+        }
+        if (!Arrays.equals(MAGIC_NUMBER, magicNumberBuffer.array())) return false;
+
+        final FileChannel destination = output.getChannel();
+        for (long copied = 0; copied < length; ) {
+            final long transferred = source.transferTo(start + copied, length - copied,
+                    destination);
+            if (transferred <= 0) {
+                throw new IOException("The word list is shorter than its announced length");
+            }
+            copied += transferred;
+        }
+        return true;
+    }
+
+    /**
+     * Writes a word list from an input stream to a target file if the magic number matches.
+     *
+     * The stream contains either a whole word list, which is copied, or a patch, which is
+     * applied to the current version of the word list.
+     * If the magic number does not match any of the expected values, this method throws an
      * IOException. Other usual conditions for IOException or FileNotFoundException
      * also apply.
      *
      * @param input the stream to be copied.
+     * @param currentFile the current version of the word list, for patches.
      * @param outputFile an outputstream to copy the data to.
      */
-    private static void checkMagicAndCopyFileTo(final BufferedInputStream input,
-            final FileOutputStream output) throws FileNotFoundException, IOException {
+    /* package for test */ static void checkMagicAndWriteWordListTo(
+            final BufferedInputStream input, final File currentFile,
+            final FileOutputStream output)
+            throws FileNotFoundException, IOException {
         // Check the magic number
         final byte[] magicNumberBuffer = new byte[MAGIC_NUMBER.length];
         final int readMagicNumberSize = input.read(magicNumberBuffer, 0, MAGIC_NUMBER.length);
         if (readMagicNumberSize < MAGIC_NUMBER.length) {
             throw new IOException("Less bytes to read than the magic number length");
         }
+        if (Arrays.equals(PATCH_MAGIC_NUMBER, magicNumberBuffer)) {
+            applyPatchTo(new DataInputStream(input), currentFile, output);
+            input.close();
+            return;
+        }
         if (!Arrays.equals(MAGIC_NUMBER, magicNumberBuffer)) {
             throw new IOException("Wrong magic number for downloaded file");
         }
@@ -273,4 +349,26 @@ public class BinaryDictionaryFileDumper {
             output.write(buffer, 0, readBytes);
         input.close();
     }
+
+    /**
+     * Applies a patch to a word list and writes the result to a target file.
+     *
+     * The current version of the word list is mapped, and BinaryDictionaryPatch checks the
+     * patch against it and the result against the new version that the patch records.
+     *
+     * @param patch the patch, after its magic number.
+     * @param currentFile the current version of the word list.
+     * @param output an outputstream to write the new version of the word list to.
+     */
+    private static void applyPatchTo(final DataInputStream patch, final File currentFile,
+            final FileOutputStream output) throws FileNotFoundException, IOException {
+        final FileInputStream current = new FileInputStream(currentFile);
+        try {
+            final FileChannel channel = current.getChannel();
+            BinaryDictionaryPatch.applyPatch(patch,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), output);
+        } finally {
+            current.close();
+        }
+    }
 }
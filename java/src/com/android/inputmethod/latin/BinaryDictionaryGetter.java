@@ -148,6 +148,20 @@ class BinaryDictionaryGetter {
         return getCacheDirectoryForLocale(locale, context) + File.separator + fileName;
     }
 
+    /**
+     * Generates the name of a temporary file to write a word list to before it is cached.
+     *
+     * The file is at the top of the cache directory rather than in the directory of a locale,
+     * so that a file left behind by an interrupted write is never taken for a word list.
+     * @param id the id of the dictionary for which to get a temporary file name
+     * @param context the context to use for getting the directory
+     * @return the name of the temporary file
+     */
+    public static String getTemporaryCacheFileName(String id, Context context) {
+        return getWordListCacheDirectory(context) + File.separator
+                + replaceFileNameDangerousCharacters(id) + ".tmp";
+    }
+
     /**
      * Returns a file address from a resource, or null if it cannot be opened.
      */
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Applies patches between two versions of a binary dictionary.
+ *
+ * A patch turns one exact version of a binary dictionary file into another one. It is made of
+ * a header followed by a list of operations that each either copy a range of the old file or
+ * insert new bytes. The format is as follows:
+ *
+ * magic number (2 bytes) : 0x78 0xD1. The first byte is the same as for a dictionary so that
+ *     both can be told apart by looking at the first two bytes.
+ * version (1 byte) : 1
+ * size of the old file (4 bytes), CRC32 of the old file (4 bytes)
+ * size of the new file (4 bytes), CRC32 of the new file (4 bytes)
+ * operations, each starting with an opcode (1 byte) :
+ *     OPCODE_COPY : offset in the old file (4 bytes), length (4 bytes)
+ *     OPCODE_INSERT : length (4 bytes), then as many bytes to insert
+ *     OPCODE_END : marks the end of the patch
+ * All numbers are big-endian.
+ *
+ * Patches are made by makedict, which shares this class, and applied by the IME to the word
+ * lists it downloads. This class does not depend on Android so that it builds in both.
+ */
+public class BinaryDictionaryPatch {
+    public static final int MAGIC_NUMBER = 0x78D1;
+    public static final int VERSION = 1;
+
+    public static final int OPCODE_END = 0;
+    public static final int OPCODE_COPY = 1;
+    public static final int OPCODE_INSERT = 2;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    /**
+     * Thrown when a patch is not well-formed, or is not for the dictionary it is applied to.
+     */
+    public static class InvalidPatchException extends IOException {
+        public InvalidPatchException(final String description) {
+            super(description);
+        }
+    }
+
+    // Prevents this class to be accidentally instantiated.
+    private BinaryDictionaryPatch() {
+    }
+
+    /**
+     * Computes the CRC32 of a dictionary, as stored in patches.
+     *
+     * @param data the dictionary, from index 0 to its limit. Its position is not changed.
+     */
+    public static int computeCrc(final ByteBuffer data) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer source = data.duplicate();
+        source.position(0);
+        final byte[] buffer = new byte[Math.min(BUFFER_SIZE, source.remaining())];
+        while (source.hasRemaining()) {
+            final int chunkSize = Math.min(buffer.length, source.remaining());
+            source.get(buffer, 0, chunkSize);
+            crc.update(buffer, 0, chunkSize);
+        }
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Applies a patch to a dictionary and writes the result to a stream.
+     *
+     * The patch is checked to be for this exact version of the dictionary, every operation is
+     * checked to stay within the old and the new dictionaries, and the result is checked
+     * against the size and checksum of the new version that the patch records. The output
+     * should be discarded if this throws, as part of the result may have been written.
+     *
+     * @param patch the patch, after its magic number.
+     * @param oldDict the dictionary to patch, from index 0 to its limit. Its position is not
+     *   changed.
+     * @param output the stream to write the new version of the dictionary to.
+     * @throws InvalidPatchException if the patch is not well-formed, or is not for this
+     *   dictionary.
+     */
+    public static void applyPatch(final DataInputStream patch, final ByteBuffer oldDict,
+            final OutputStream output) throws IOException {
+        final int version = patch.readUnsignedByte();
+        if (VERSION != version) {
+            throw new InvalidPatchException("Unsupported patch version : " + version);
+        }
+        final int oldSize = oldDict.limit();
+        if (oldSize != patch.readInt() || computeCrc(oldDict) != patch.readInt()) {
+            throw new InvalidPatchException("The patch is for another version of the dictionary");
+        }
+        final int newSize = patch.readInt();
+        final int newCrc = patch.readInt();
+        if (newSize < 0) throw new InvalidPatchException("Negative dictionary size : " + newSize);
+
+        final ByteBuffer old = oldDict.duplicate();
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long writtenSize = 0;
+        for (int opcode = patch.readUnsignedByte(); OPCODE_END != opcode;
+                opcode = patch.readUnsignedByte()) {
+            final boolean isCopy;
+            int length;
+            if (OPCODE_COPY == opcode) {
+                final int offset = patch.readInt();
+                length = patch.readInt();
+                if (offset < 0 || length < 0 || (long)offset + length > oldSize) {
+                    throw new InvalidPatchException("Copy out of the old dictionary : "
+                            + length + " bytes at " + offset);
+                }
+                old.position(offset);
+                isCopy = true;
+            } else if (OPCODE_INSERT == opcode) {
+                length = patch.readInt();
+                if (length < 0) throw new InvalidPatchException("Negative insert : " + length);
+                isCopy = false;
+            } else {
+                throw new InvalidPatchException("Unknown patch opcode : " + opcode);
+            }
+            if (writtenSize + length > newSize) {
+                throw new InvalidPatchException("The patch writes more than the new size");
+            }
+            writtenSize += length;
+            while (length > 0) {
+                final int chunkSize = Math.min(length, buffer.length);
+                if (isCopy) {
+                    old.get(buffer, 0, chunkSize);
+                } else {
+                    patch.readFully(buffer, 0, chunkSize);
+                }
+                output.write(buffer, 0, chunkSize);
+                crc.update(buffer, 0, chunkSize);
+                length -= chunkSize;
+            }
+        }
+        if (newSize != writtenSize || newCrc != (int)crc.getValue()) {
+            throw new InvalidPatchException("Patching did not give the expected dictionary");
+        }
+    }
+}
@@ -140,11 +140,28 @@ public class ExpandableDictionary extends Dictionary {
         return mRequiresReload;
     }
 
+    /**
+     * Returns whether the dictionary is being loaded. No words are found in the meantime.
+     */
+    public boolean isLoading() {
+        synchronized (mUpdatingLock) {
+            return mUpdatingDictionary;
+        }
+    }
+
     /** Override to load your dictionary here, on a background thread. */
     public void loadDictionaryAsync() {
         // empty base implementation
     }
 
+    /**
+     * Override to know when the dictionary has been loaded. This is called on the background
+     * thread, after the new words can be found.
+     */
+    protected void onDictionaryLoaded() {
+        // empty base implementation
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -553,6 +570,7 @@ public class ExpandableDictionary extends Dictionary {
             synchronized (mUpdatingLock) {
                 mUpdatingDictionary = false;
             }
+            onDictionaryLoaded();
         }
     }
 
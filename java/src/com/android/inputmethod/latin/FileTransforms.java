@@ -22,6 +22,10 @@ import java.io.OutputStream;
 import java.util.zip.GZIPInputStream;
 
 public class FileTransforms {
+    // The default buffer of GZIPInputStream is only 512 bytes, which makes inflating a word
+    // list go through many more reads than needed.
+    private static final int UNCOMPRESSED_STREAM_BUFFER_SIZE = 32 * 1024;
+
     public static OutputStream getCryptedStream(OutputStream out) {
         // Crypt the stream.
         return out;
@@ -33,6 +37,6 @@ public class FileTransforms {
     }
 
     public static InputStream getUncompressedStream(InputStream in) throws IOException {
-        return new GZIPInputStream(in);
+        return new GZIPInputStream(in, UNCOMPRESSED_STREAM_BUFFER_SIZE);
     }
 }
@@ -23,6 +23,7 @@ import android.util.Log;
 import com.android.inputmethod.keyboard.ProximityInfo;
 
 import java.io.File;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -97,10 +98,12 @@ public class Suggest implements Dictionary.WordCallback {
 
     private double mAutoCorrectionThreshold;
     private int[] mScores = new int[mPrefMaxSuggestions];
-    private int[] mBigramScores = new int[PREF_MAX_BIGRAMS];
 
     private ArrayList<CharSequence> mSuggestions = new ArrayList<CharSequence>();
-    ArrayList<CharSequence> mBigramSuggestions  = new ArrayList<CharSequence>();
+    // The bigrams are only used to pick and score the suggestions, so they are kept as plain
+    // characters and only copied to the pooled StringBuilders when they are suggested.
+    /* package for test */ final TopScoredWords mBigramWords =
+            new TopScoredWords(PREF_MAX_BIGRAMS, APPROX_MAX_WORD_LENGTH);
     private CharSequence mTypedWord;
 
     // TODO: Remove these member variables by passing more context to addWord() callback method
@@ -131,7 +134,8 @@ public class Suggest implements Dictionary.WordCallback {
             final Locale locale) {
         resetMainDict(context, dictionaryResId, locale);
 
-        // TODO: read the whitelist and init the pool asynchronously too.
+        // The whitelist loads itself on a background thread.
+        // TODO: init the pool asynchronously too.
         // initPool should be done asynchronously now that the pool is thread-safe.
         initWhitelistAndAutocorrectAndPool(context, locale);
     }
@@ -242,7 +246,7 @@ public class Suggest implements Dictionary.WordCallback {
         }
         mPrefMaxSuggestions = maxSuggestions;
         mScores = new int[mPrefMaxSuggestions];
-        mBigramScores = new int[PREF_MAX_BIGRAMS];
+        mBigramWords.clear();
         collectGarbage(mSuggestions, mPrefMaxSuggestions);
         StringBuilderPool.ensureCapacity(mPrefMaxSuggestions, getApproxMaxWordLength());
     }
@@ -276,14 +280,12 @@ public class Suggest implements Dictionary.WordCallback {
         return sb;
     }
 
-    protected void addBigramToSuggestions(CharSequence bigram) {
-        // TODO: Try to be a little more shrewd with resource allocation.
-        // At the moment we copy this object because the StringBuilders are pooled (see
-        // StringBuilderPool.java) and when we are finished using mSuggestions and
-        // mBigramSuggestions we will take everything from both and insert them back in the
-        // pool, so we can't allow the same object to be in both lists at the same time.
+    protected void addBigramToSuggestions(final int bigramIndex) {
+        // The StringBuilders are pooled (see StringBuilderPool.java) and recycled when we are
+        // finished using mSuggestions, so the bigram is copied from the buffer it is kept in.
         final StringBuilder sb = StringBuilderPool.getStringBuilder(getApproxMaxWordLength());
-        sb.append(bigram);
+        sb.append(mBigramWords.getWordBuffer(bigramIndex), 0,
+                mBigramWords.getWordLength(bigramIndex));
         mSuggestions.add(sb);
     }
 
@@ -310,8 +312,7 @@ public class Suggest implements Dictionary.WordCallback {
         if (wordComposer.size() <= 1 && (mCorrectionMode == CORRECTION_FULL_BIGRAM
                 || mCorrectionMode == CORRECTION_BASIC)) {
             // At first character typed, search only the bigrams
-            Arrays.fill(mBigramScores, 0);
-            collectGarbage(mBigramSuggestions, PREF_MAX_BIGRAMS);
+            mBigramWords.clear();
 
             if (!TextUtils.isEmpty(prevWordForBigram)) {
                 CharSequence lowerPrevWord = prevWordForBigram.toString().toLowerCase();
@@ -323,9 +324,9 @@ public class Suggest implements Dictionary.WordCallback {
                 }
                 if (TextUtils.isEmpty(typedWord)) {
                     // Nothing entered: return all bigrams for the previous word
-                    int insertCount = Math.min(mBigramSuggestions.size(), mPrefMaxSuggestions);
+                    int insertCount = Math.min(mBigramWords.size(), mPrefMaxSuggestions);
                     for (int i = 0; i < insertCount; ++i) {
-                        addBigramToSuggestions(mBigramSuggestions.get(i));
+                        addBigramToSuggestions(i);
                     }
                 } else {
                     // Word entered: return only bigrams that match the first char of the typed word
@@ -334,13 +335,12 @@ public class Suggest implements Dictionary.WordCallback {
                     // TODO: Must pay attention to locale when changing case.
                     final char currentCharUpper = Character.toUpperCase(currentChar);
                     int count = 0;
-                    final int bigramSuggestionSize = mBigramSuggestions.size();
+                    final int bigramSuggestionSize = mBigramWords.size();
                     for (int i = 0; i < bigramSuggestionSize; i++) {
-                        final CharSequence bigramSuggestion = mBigramSuggestions.get(i);
-                        final char bigramSuggestionFirstChar = bigramSuggestion.charAt(0);
+                        final char bigramSuggestionFirstChar = mBigramWords.getWordBuffer(i)[0];
                         if (bigramSuggestionFirstChar == currentChar
                                 || bigramSuggestionFirstChar == currentCharUpper) {
-                            addBigramToSuggestions(bigramSuggestion);
+                            addBigramToSuggestions(i);
                             if (++count > mPrefMaxSuggestions) break;
                         }
                     }
@@ -407,19 +407,13 @@ public class Suggest implements Dictionary.WordCallback {
     @Override
     public boolean addWord(final char[] word, final int offset, final int length, int score,
             final int dicTypeId, final Dictionary.DataType dataType) {
-        Dictionary.DataType dataTypeForLog = dataType;
-        final ArrayList<CharSequence> suggestions;
-        final int[] sortedScores;
-        final int prefMaxSuggestions;
-        if(dataType == Dictionary.DataType.BIGRAM) {
-            suggestions = mBigramSuggestions;
-            sortedScores = mBigramScores;
-            prefMaxSuggestions = PREF_MAX_BIGRAMS;
-        } else {
-            suggestions = mSuggestions;
-            sortedScores = mScores;
-            prefMaxSuggestions = mPrefMaxSuggestions;
+        if (dataType == Dictionary.DataType.BIGRAM) {
+            return addBigramWord(word, offset, length, score, dicTypeId);
         }
+        Dictionary.DataType dataTypeForLog = dataType;
+        final ArrayList<CharSequence> suggestions = mSuggestions;
+        final int[] sortedScores = mScores;
+        final int prefMaxSuggestions = mPrefMaxSuggestions;
 
         int pos = 0;
 
@@ -441,18 +435,18 @@ public class Suggest implements Dictionary.WordCallback {
         } else {
             if (dataType == Dictionary.DataType.UNIGRAM) {
                 // Check if the word was already added before (by bigram data)
-                int bigramSuggestion = searchBigramSuggestion(word,offset,length);
+                int bigramSuggestion = mBigramWords.indexOf(word, offset, length);
                 if(bigramSuggestion >= 0) {
                     dataTypeForLog = Dictionary.DataType.BIGRAM;
                     // turn freq from bigram into multiplier specified above
-                    double multiplier = (((double) mBigramScores[bigramSuggestion])
+                    double multiplier = (((double) mBigramWords.getScore(bigramSuggestion))
                             / MAXIMUM_BIGRAM_FREQUENCY)
                             * (BIGRAM_MULTIPLIER_MAX - BIGRAM_MULTIPLIER_MIN)
                             + BIGRAM_MULTIPLIER_MIN;
                     /* Log.d(TAG,"bigram num: " + bigramSuggestion
-                            + "  wordB: " + mBigramSuggestions.get(bigramSuggestion).toString()
+                            + "  wordB: " + mBigramWords.getWord(bigramSuggestion)
                             + "  currentScore: " + score + "  bigramScore: "
-                            + mBigramScores[bigramSuggestion]
+                            + mBigramWords.getScore(bigramSuggestion)
                             + "  multiplier: " + multiplier); */
                     score = (int)Math.round((score * multiplier));
                 }
@@ -498,24 +492,45 @@ public class Suggest implements Dictionary.WordCallback {
         return true;
     }
 
-    private int searchBigramSuggestion(final char[] word, final int offset, final int length) {
-        // TODO This is almost O(n^2). Might need fix.
-        // search whether the word appeared in bigram data
-        int bigramSuggestSize = mBigramSuggestions.size();
-        for(int i = 0; i < bigramSuggestSize; i++) {
-            if(mBigramSuggestions.get(i).length() == length) {
-                boolean chk = true;
-                for(int j = 0; j < length; j++) {
-                    if(mBigramSuggestions.get(i).charAt(j) != word[offset+j]) {
-                        chk = false;
-                        break;
-                    }
-                }
-                if(chk) return i;
+    private boolean addBigramWord(final char[] word, final int offset, final int length,
+            final int score, final int dicTypeId) {
+        final TopScoredWords bigrams = mBigramWords;
+        final int pos;
+        // Check if it's the same word, only caps are different
+        if (Utils.equalsIgnoreCase(mTypedWord, word, offset, length)) {
+            // If the current highest word is also equal to typed word, we need to compare
+            // frequency to determine the insertion position, like for the unigrams.
+            if (bigrams.size() > 0 && score <= bigrams.getScore(0)
+                    && Utils.equalsIgnoreCase(CharBuffer.wrap(bigrams.getWordBuffer(0), 0,
+                            bigrams.getWordLength(0)), word, offset, length)) {
+                pos = 1;
+            } else {
+                pos = 0;
             }
+        } else {
+            // Bigrams without a positive score are never kept.
+            if (score <= 0) return true;
+            pos = bigrams.getPosition(score, length);
+            if (pos < 0) return true;
         }
 
-        return -1;
+        final boolean isFull = bigrams.size() >= bigrams.getCapacity();
+        // TODO: Must pay attention to locale when changing case.
+        if (mIsAllUpperCase) {
+            final String upperCaseWord = new String(word, offset, length).toUpperCase();
+            bigrams.add(pos, upperCaseWord.toCharArray(), 0, upperCaseWord.length(), score);
+        } else {
+            bigrams.add(pos, word, offset, length, score);
+            if (mIsFirstCharCapitalized) {
+                final char[] buffer = bigrams.getWordBuffer(pos);
+                buffer[0] = Character.toUpperCase(buffer[0]);
+            }
+        }
+        if (!isFull) {
+            LatinImeLogger.onAddSuggestedWord(bigrams.getWord(pos), dicTypeId,
+                    Dictionary.DataType.BIGRAM);
+        }
+        return true;
     }
 
     private void collectGarbage(ArrayList<CharSequence> suggestions, int prefMaxSuggestions) {
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+/**
+ * The words with the best scores out of those offered, up to a fixed number of them.
+ *
+ * Words are sorted by decreasing score. Among words with the same score, the shorter ones come
+ * first, then the ones added first. The characters of the words are copied to buffers that are
+ * reused when words are dropped, so that adding a word does not allocate.
+ *
+ * This is not thread-safe and needs no lock: it is meant to be fed by a single thread, like the
+ * callbacks of a dictionary lookup. If several threads look up words for the same query, each
+ * one should use its own instance, and the instances be merged with addAll at the end.
+ */
+public class TopScoredWords {
+    private final int mCapacity;
+    private final int[] mScores;
+    private final int[] mLengths;
+    private final char[][] mWords;
+    private int mSize;
+
+    /**
+     * Creates an empty list.
+     *
+     * @param capacity the maximum number of words to keep.
+     * @param maxWordLength the expected maximum length of a word. Longer words are accepted,
+     *   but their buffer is allocated on demand.
+     */
+    public TopScoredWords(final int capacity, final int maxWordLength) {
+        mCapacity = capacity;
+        mScores = new int[capacity];
+        mLengths = new int[capacity];
+        mWords = new char[capacity][];
+        for (int i = 0; i < capacity; ++i) {
+            mWords[i] = new char[maxWordLength];
+        }
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int getScore(final int index) {
+        return mScores[index];
+    }
+
+    public int getWordLength(final int index) {
+        return mLengths[index];
+    }
+
+    /**
+     * Returns the buffer holding the characters of a word.
+     *
+     * The buffer is only valid until the next change to the list. The word is made of the
+     * first getWordLength(index) characters; the rest of the buffer is garbage.
+     */
+    public char[] getWordBuffer(final int index) {
+        return mWords[index];
+    }
+
+    public String getWord(final int index) {
+        return new String(mWords[index], 0, mLengths[index]);
+    }
+
+    /**
+     * Finds where a word with a given score and length would go.
+     *
+     * @return the index of the word, or -1 if it would not be kept.
+     */
+    public int getPosition(final int score, final int length) {
+        // When the list is full, a word has to beat the last one to be kept.
+        if (mSize >= mCapacity && (0 == mCapacity || mScores[mCapacity - 1] >= score)) {
+            return -1;
+        }
+        int position = 0;
+        while (position < mSize) {
+            final int positionScore = mScores[position];
+            if (positionScore < score || (positionScore == score && length < mLengths[position])) {
+                break;
+            }
+            ++position;
+        }
+        return position < mCapacity ? position : -1;
+    }
+
+    /**
+     * Inserts a word at an index, dropping the last word if the list is full.
+     *
+     * @param position the index to insert the word at, between 0 and size().
+     * @param word the buffer holding the characters of the word.
+     * @param offset the index of the first character of the word in the buffer.
+     * @param length the number of characters of the word.
+     * @param score the score of the word.
+     */
+    public void add(final int position, final char[] word, final int offset, final int length,
+            final int score) {
+        final int last = Math.min(mSize, mCapacity - 1);
+        // The buffer of the word that falls off the end, or of the first unused entry, is reused.
+        char[] buffer = mWords[last];
+        final int moveCount = last - position;
+        System.arraycopy(mScores, position, mScores, position + 1, moveCount);
+        System.arraycopy(mLengths, position, mLengths, position + 1, moveCount);
+        System.arraycopy(mWords, position, mWords, position + 1, moveCount);
+        if (buffer.length < length) buffer = new char[length];
+        System.arraycopy(word, offset, buffer, 0, length);
+        mWords[position] = buffer;
+        mLengths[position] = length;
+        mScores[position] = score;
+        if (mSize < mCapacity) ++mSize;
+    }
+
+    /**
+     * Adds a word at the position given by its score, if it is among the best.
+     *
+     * @return the index of the word, or -1 if it was not kept.
+     */
+    public int add(final char[] word, final int offset, final int length, final int score) {
+        final int position = getPosition(score, length);
+        if (position >= 0) add(position, word, offset, length, score);
+        return position;
+    }
+
+    /**
+     * Adds the words of another list, keeping the best of both.
+     */
+    public void addAll(final TopScoredWords other) {
+        for (int i = 0; i < other.mSize; ++i) {
+            // Once a word is not kept, the list is full and the following words, which don't
+            // have better scores, would not be kept either.
+            if (add(other.mWords[i], 0, other.mLengths[i], other.mScores[i]) < 0) break;
+        }
+    }
+
+    /**
+     * Finds a word in the list. The comparison is case-sensitive.
+     *
+     * @return the index of the word, or -1 if it is not in the list.
+     */
+    public int indexOf(final char[] word, final int offset, final int length) {
+        for (int i = 0; i < mSize; ++i) {
+            if (mLengths[i] != length) continue;
+            final char[] buffer = mWords[i];
+            int j = 0;
+            while (j < length && buffer[j] == word[offset + j]) ++j;
+            if (j == length) return i;
+        }
+        return -1;
+    }
+}
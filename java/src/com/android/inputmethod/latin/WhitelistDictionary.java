@@ -20,30 +20,60 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.Pair;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Locale;
+import java.util.TreeMap;
 
 public class WhitelistDictionary extends ExpandableDictionary {
 
     private static final boolean DBG = LatinImeLogger.sDBG;
     private static final String TAG = WhitelistDictionary.class.getSimpleName();
 
-    private final HashMap<String, Pair<Integer, String>> mWhitelistWords =
-            new HashMap<String, Pair<Integer, String>>();
+    /**
+     * The whitelist, as the lower case words to correct, sorted, and their corrections at the
+     * same indices. An instance is never modified once built.
+     */
+    private static class Whitelist {
+        public final String[] mBefore;
+        public final String[] mAfter;
+
+        public Whitelist(final String[] before, final String[] after) {
+            mBefore = before;
+            mAfter = after;
+        }
+
+        public String get(final String lowerCaseBefore) {
+            final int index = Arrays.binarySearch(mBefore, lowerCaseBefore);
+            return index < 0 ? null : mAfter[index];
+        }
+    }
+
+    private static final Whitelist EMPTY_WHITELIST = new Whitelist(new String[0], new String[0]);
+
+    // The raw string array resource, until it is parsed by the loading thread.
+    private String[] mWordlist;
+    private volatile Whitelist mWhitelist = EMPTY_WHITELIST;
 
-    // TODO: Conform to the async load contact of ExpandableDictionary
     public WhitelistDictionary(final Context context, final Locale locale) {
         super(context, Suggest.DIC_WHITELIST);
+        // Switching the locale of the resources is not thread-safe, so the resource is
+        // read here. Parsing it and building the dictionary is left to the loading thread.
         final Resources res = context.getResources();
         final Locale previousLocale = LocaleUtils.setSystemLocale(res, locale);
-        initWordlist(res.getStringArray(R.array.wordlist_whitelist));
+        mWordlist = res.getStringArray(R.array.wordlist_whitelist);
         LocaleUtils.setSystemLocale(res, previousLocale);
+        loadDictionary();
+    }
+
+    @Override
+    public void loadDictionaryAsync() {
+        final String[] wordlist = mWordlist;
+        mWordlist = null;
+        if (null != wordlist) initWordlist(wordlist);
     }
 
     private void initWordlist(String[] wordlist) {
-        mWhitelistWords.clear();
         final int N = wordlist.length;
         if (N % 3 != 0) {
             if (DBG) {
@@ -51,14 +81,14 @@ public class WhitelistDictionary extends ExpandableDictionary {
             }
             return;
         }
+        final TreeMap<String, String> whitelistWords = new TreeMap<String, String>();
         try {
             for (int i = 0; i < N; i += 3) {
                 final int score = Integer.valueOf(wordlist[i]);
                 final String before = wordlist[i + 1];
                 final String after = wordlist[i + 2];
                 if (before != null && after != null) {
-                    mWhitelistWords.put(
-                            before.toLowerCase(), new Pair<Integer, String>(score, after));
+                    whitelistWords.put(before.toLowerCase(), after);
                     addWord(after, score);
                 }
             }
@@ -67,18 +97,20 @@ public class WhitelistDictionary extends ExpandableDictionary {
                 Log.d(TAG, "The score of the word is invalid.");
             }
         }
+        final int size = whitelistWords.size();
+        mWhitelist = new Whitelist(whitelistWords.keySet().toArray(new String[size]),
+                whitelistWords.values().toArray(new String[size]));
     }
 
     public String getWhitelistedWord(String before) {
         if (before == null) return null;
         final String lowerCaseBefore = before.toLowerCase();
-        if(mWhitelistWords.containsKey(lowerCaseBefore)) {
-            if (DBG) {
-                Log.d(TAG, "--- found whitelistedWord: " + lowerCaseBefore);
-            }
-            return mWhitelistWords.get(lowerCaseBefore).second;
+        // This is empty until the whitelist is loaded.
+        final String after = mWhitelist.get(lowerCaseBefore);
+        if (DBG && null != after) {
+            Log.d(TAG, "--- found whitelistedWord: " + lowerCaseBefore);
         }
-        return null;
+        return after;
     }
 
     // See LatinIME#updateSuggestions. This breaks in the (queer) case that the whitelist
@@ -98,5 +130,6 @@ public class WhitelistDictionary extends ExpandableDictionary {
     }
 
     // Leave implementation of getWords and isValidWord to the superclass.
-    // The words have been added to the ExpandableDictionary with addWord() inside initWordlist.
+    // The words are added to the ExpandableDictionary with addWord() inside initWordlist, on
+    // the loading thread.
 }
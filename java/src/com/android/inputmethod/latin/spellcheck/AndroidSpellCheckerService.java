@@ -24,7 +24,6 @@ import android.util.Log;
 import android.view.textservice.SuggestionsInfo;
 import android.view.textservice.TextInfo;
 
-import com.android.inputmethod.compat.ArraysCompatUtils;
 import com.android.inputmethod.keyboard.ProximityInfo;
 import com.android.inputmethod.latin.BinaryDictionary;
 import com.android.inputmethod.latin.Dictionary;
@@ -32,21 +31,25 @@ import com.android.inputmethod.latin.Dictionary.DataType;
 import com.android.inputmethod.latin.Dictionary.WordCallback;
 import com.android.inputmethod.latin.DictionaryCollection;
 import com.android.inputmethod.latin.DictionaryFactory;
+import com.android.inputmethod.latin.ExpandableDictionary;
 import com.android.inputmethod.latin.Flag;
 import com.android.inputmethod.latin.LocaleUtils;
 import com.android.inputmethod.latin.R;
 import com.android.inputmethod.latin.SynchronouslyLoadedContactsDictionary;
 import com.android.inputmethod.latin.SynchronouslyLoadedUserDictionary;
+import com.android.inputmethod.latin.TopScoredWords;
 import com.android.inputmethod.latin.Utils;
 import com.android.inputmethod.latin.WhitelistDictionary;
 import com.android.inputmethod.latin.WordComposer;
 
+import java.nio.CharBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Locale;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Service for spell checking, using LatinIME's dictionaries and mechanisms.
@@ -54,7 +57,11 @@ import java.util.TreeMap;
 public class AndroidSpellCheckerService extends SpellCheckerService {
     private static final String TAG = AndroidSpellCheckerService.class.getSimpleName();
     private static final boolean DBG = false;
-    private static final int POOL_SIZE = 2;
+    // Spell checking a long text keeps as many threads busy as there are text fields, so let
+    // each core work with its own dictionary.
+    private static final int POOL_SIZE = Math.max(2, Runtime.getRuntime().availableProcessors());
+    // The number of results cached for each locale.
+    private static final int RESULT_CACHE_SIZE = 1000;
 
     private static final int CAPITALIZE_NONE = 0; // No caps, or mixed case
     private static final int CAPITALIZE_FIRST = 1; // First only
@@ -74,6 +81,8 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
     }
     private Map<String, DictionaryPool> mDictionaryPools =
             Collections.synchronizedMap(new TreeMap<String, DictionaryPool>());
+    private Map<String, ResultCache<CheckResult>> mResultCaches =
+            Collections.synchronizedMap(new TreeMap<String, ResultCache<CheckResult>>());
     private Map<String, Dictionary> mUserDictionaries =
             Collections.synchronizedMap(new TreeMap<String, Dictionary>());
     private Map<String, Dictionary> mWhitelistDictionaries =
@@ -85,6 +94,12 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
     // The threshold for a suggestion to be considered "likely".
     private double mLikelyThreshold;
 
+    // Incremented each time a user dictionary or the contacts dictionary is done reloading, so
+    // that the results computed with the former words can be told apart and dropped from the
+    // result caches. Results computed during the reload wait for it, so they are never stored
+    // with the new generation.
+    private final AtomicInteger mDictionaryGeneration = new AtomicInteger();
+
     @Override public void onCreate() {
         super.onCreate();
         mSuggestionThreshold =
@@ -93,19 +108,34 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
                 Double.parseDouble(getString(R.string.spellchecker_likely_threshold_value));
     }
 
+    private int getDictionaryGeneration() {
+        return mDictionaryGeneration.get();
+    }
+
     @Override
     public Session createSession() {
         return new AndroidSpellCheckerSession(this);
     }
 
-    private static SuggestionsInfo getNotInDictEmptySuggestions() {
-        return new SuggestionsInfo(0, EMPTY_STRING_ARRAY);
+    /**
+     * The result of checking a string. Unlike SuggestionsInfo, it can be kept and reused.
+     */
+    private static class CheckResult {
+        public final int mFlags;
+        public final String[] mSuggestions;
+        public CheckResult(final int flags, final String[] suggestions) {
+            mFlags = flags;
+            mSuggestions = suggestions;
+        }
+        public SuggestionsInfo toSuggestionsInfo() {
+            return new SuggestionsInfo(mFlags, mSuggestions);
+        }
     }
 
-    private static SuggestionsInfo getInDictEmptySuggestions() {
-        return new SuggestionsInfo(SuggestionsInfo.RESULT_ATTR_IN_THE_DICTIONARY,
-                EMPTY_STRING_ARRAY);
-    }
+    private static final CheckResult NOT_IN_DICT_EMPTY_RESULT =
+            new CheckResult(0, EMPTY_STRING_ARRAY);
+    private static final CheckResult IN_DICT_EMPTY_RESULT =
+            new CheckResult(SuggestionsInfo.RESULT_ATTR_IN_THE_DICTIONARY, EMPTY_STRING_ARRAY);
 
     private static class SuggestionsGatherer implements WordCallback {
         public static class Result {
@@ -117,38 +147,47 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
             }
         }
 
-        private final ArrayList<CharSequence> mSuggestions;
-        private final int[] mScores;
-        private final String mOriginalText;
+        private final TopScoredWords mSuggestions;
         private final double mSuggestionThreshold;
         private final double mLikelyThreshold;
         private final int mMaxLength;
-        private int mLength = 0;
+        private String mOriginalText;
 
         // The two following attributes are only ever filled if the requested max length
         // is 0 (or less, which is treated the same).
-        private String mBestSuggestion = null;
-        private int mBestScore = Integer.MIN_VALUE; // As small as possible
+        private String mBestSuggestion;
+        private int mBestScore;
 
-        SuggestionsGatherer(final String originalText, final double suggestionThreshold,
-                final double likelyThreshold, final int maxLength) {
-            mOriginalText = originalText;
+        SuggestionsGatherer(final double suggestionThreshold, final double likelyThreshold,
+                final int maxLength) {
             mSuggestionThreshold = suggestionThreshold;
             mLikelyThreshold = likelyThreshold;
             mMaxLength = maxLength;
-            mSuggestions = new ArrayList<CharSequence>(maxLength + 1);
-            mScores = new int[mMaxLength];
+            mSuggestions = new TopScoredWords(Math.max(0, maxLength),
+                    BinaryDictionary.MAX_WORD_LENGTH);
+        }
+
+        /**
+         * Prepares the gatherer to gather the suggestions for a new text.
+         *
+         * This must be called before gathering any suggestions, and lets a single gatherer be
+         * used for many texts in turn.
+         */
+        public void reset(final String originalText) {
+            mOriginalText = originalText;
+            mSuggestions.clear();
+            mBestSuggestion = null;
+            mBestScore = Integer.MIN_VALUE; // As small as possible
         }
 
+        // This is called by the thread that looks up the words in the dictionary, and by no
+        // other, so it needs no lock. Words that don't make the cut are rejected before any
+        // allocation, and the kept words are copied into buffers that are reused.
         @Override
-        synchronized public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
+        public boolean addWord(char[] word, int wordOffset, int wordLength, int score,
                 int dicTypeId, DataType dataType) {
-            final int positionIndex = ArraysCompatUtils.binarySearch(mScores, 0, mLength, score);
-            // binarySearch returns the index if the element exists, and -<insertion index> - 1
-            // if it doesn't. See documentation for binarySearch.
-            final int insertIndex = positionIndex >= 0 ? positionIndex : -positionIndex - 1;
-
-            if (insertIndex == 0 && mLength >= mMaxLength) {
+            final int insertIndex = mSuggestions.getPosition(score, wordLength);
+            if (insertIndex < 0) {
                 // In the future, we may want to keep track of the best suggestion score even if
                 // we are asked for 0 suggestions. In this case, we can use the following
                 // (tested) code to keep it:
@@ -163,43 +202,32 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
                 //         mBestSuggestion = new String(word, wordOffset, wordLength);
                 //     }
                 // }
-                return true;
-            }
-            if (insertIndex >= mMaxLength) {
-                // We found a suggestion, but its score is too weak to be kept considering
-                // the suggestion limit.
+                // Otherwise, we found a suggestion, but its score is too weak to be kept
+                // considering the suggestion limit.
                 return true;
             }
 
             // Compute the normalized score and skip this word if it's normalized score does not
             // make the threshold.
-            final String wordString = new String(word, wordOffset, wordLength);
-            final double normalizedScore =
-                    Utils.calcNormalizedScore(mOriginalText, wordString, score);
+            final double normalizedScore = Utils.calcNormalizedScore(mOriginalText,
+                    CharBuffer.wrap(word, wordOffset, wordLength), score);
             if (normalizedScore < mSuggestionThreshold) {
-                if (DBG) Log.i(TAG, wordString + " does not make the score threshold");
+                if (DBG) {
+                    Log.i(TAG, new String(word, wordOffset, wordLength)
+                            + " does not make the score threshold");
+                }
                 return true;
             }
 
-            if (mLength < mMaxLength) {
-                final int copyLen = mLength - insertIndex;
-                ++mLength;
-                System.arraycopy(mScores, insertIndex, mScores, insertIndex + 1, copyLen);
-                mSuggestions.add(insertIndex, wordString);
-            } else {
-                System.arraycopy(mScores, 1, mScores, 0, insertIndex);
-                mSuggestions.add(insertIndex, wordString);
-                mSuggestions.remove(0);
-            }
-            mScores[insertIndex] = score;
-
+            mSuggestions.add(insertIndex, word, wordOffset, wordLength, score);
             return true;
         }
 
         public Result getResults(final int capitalizeType, final Locale locale) {
             final String[] gatheredSuggestions;
             final boolean hasLikelySuggestions;
-            if (0 == mLength) {
+            final int length = mSuggestions.size();
+            if (0 == length) {
                 // Either we found no suggestions, or we found some BUT the max length was 0.
                 // If we found some mBestSuggestion will not be null. If it is null, then
                 // we found none, regardless of the max length.
@@ -213,35 +241,34 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
                     hasLikelySuggestions = (normalizedScore > mLikelyThreshold);
                 }
             } else {
-                if (DBG) {
-                    if (mLength != mSuggestions.size()) {
-                        Log.e(TAG, "Suggestion size is not the same as stored mLength");
-                    }
-                    for (int i = mLength - 1; i >= 0; --i) {
-                        Log.i(TAG, "" + mScores[i] + " " + mSuggestions.get(i));
+                // The words are already sorted by decreasing score.
+                final ArrayList<CharSequence> suggestions = new ArrayList<CharSequence>(length);
+                for (int i = 0; i < length; ++i) {
+                    if (DBG) {
+                        Log.i(TAG, "" + mSuggestions.getScore(i) + " " + mSuggestions.getWord(i));
                     }
+                    suggestions.add(mSuggestions.getWord(i));
                 }
-                Collections.reverse(mSuggestions);
-                Utils.removeDupes(mSuggestions);
+                Utils.removeDupes(suggestions);
                 if (CAPITALIZE_ALL == capitalizeType) {
-                    for (int i = 0; i < mSuggestions.size(); ++i) {
+                    for (int i = 0; i < suggestions.size(); ++i) {
                         // get(i) returns a CharSequence which is actually a String so .toString()
                         // should return the same object.
-                        mSuggestions.set(i, mSuggestions.get(i).toString().toUpperCase(locale));
+                        suggestions.set(i, suggestions.get(i).toString().toUpperCase(locale));
                     }
                 } else if (CAPITALIZE_FIRST == capitalizeType) {
-                    for (int i = 0; i < mSuggestions.size(); ++i) {
+                    for (int i = 0; i < suggestions.size(); ++i) {
                         // Likewise
-                        mSuggestions.set(i, Utils.toTitleCase(mSuggestions.get(i).toString(),
+                        suggestions.set(i, Utils.toTitleCase(suggestions.get(i).toString(),
                                 locale));
                     }
                 }
                 // This returns a String[], while toArray() returns an Object[] which cannot be cast
                 // into a String[].
-                gatheredSuggestions = mSuggestions.toArray(EMPTY_STRING_ARRAY);
+                gatheredSuggestions = suggestions.toArray(EMPTY_STRING_ARRAY);
 
-                final int bestScore = mScores[mLength - 1];
-                final CharSequence bestSuggestion = mSuggestions.get(0);
+                final int bestScore = mSuggestions.getScore(0);
+                final CharSequence bestSuggestion = suggestions.get(0);
                 final double normalizedScore =
                         Utils.calcNormalizedScore(mOriginalText, bestSuggestion, bestScore);
                 hasLikelySuggestions = (normalizedScore > mLikelyThreshold);
@@ -260,6 +287,17 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
     public boolean onUnbind(final Intent intent) {
         final Map<String, DictionaryPool> oldPools = mDictionaryPools;
         mDictionaryPools = Collections.synchronizedMap(new TreeMap<String, DictionaryPool>());
+        final Map<String, ResultCache<CheckResult>> oldResultCaches = mResultCaches;
+        mResultCaches =
+                Collections.synchronizedMap(new TreeMap<String, ResultCache<CheckResult>>());
+        if (DBG) {
+            for (Map.Entry<String, ResultCache<CheckResult>> entry : oldResultCaches.entrySet()) {
+                final ResultCache<CheckResult> cache = entry.getValue();
+                Log.i(TAG, "Result cache for " + entry.getKey() + " : " + cache.getHitCount()
+                        + " hits, " + cache.getMissCount() + " misses, hit ratio "
+                        + cache.getHitRatio());
+            }
+        }
         final Map<String, Dictionary> oldUserDictionaries = mUserDictionaries;
         mUserDictionaries = Collections.synchronizedMap(new TreeMap<String, Dictionary>());
         final Map<String, Dictionary> oldWhitelistDictionaries = mWhitelistDictionaries;
@@ -294,17 +332,48 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         return pool;
     }
 
+    private ResultCache<CheckResult> getResultCache(final String locale) {
+        synchronized (mResultCaches) {
+            ResultCache<CheckResult> cache = mResultCaches.get(locale);
+            if (null == cache) {
+                cache = new ResultCache<CheckResult>(RESULT_CACHE_SIZE);
+                mResultCaches.put(locale, cache);
+            }
+            return cache;
+        }
+    }
+
+    private boolean isWhitelistLoaded(final String locale) {
+        final Dictionary whitelistDictionary = mWhitelistDictionaries.get(locale);
+        return whitelistDictionary instanceof ExpandableDictionary
+                && !((ExpandableDictionary)whitelistDictionary).isLoading();
+    }
+
     public DictAndProximity createDictAndProximity(final Locale locale) {
         final ProximityInfo proximityInfo = ProximityInfo.createSpellCheckerProximityInfo();
         final Resources resources = getResources();
         final int fallbackResourceId = Utils.getMainDictionaryResourceId(resources);
-        final DictionaryCollection dictionaryCollection =
+        final DictionaryCollection mainDictionary =
                 DictionaryFactory.createDictionaryFromManager(this, locale, fallbackResourceId,
                         USE_FULL_EDIT_DISTANCE_FLAG_ARRAY);
+        final DictionaryCollection dictionaryCollection = new DictionaryCollection(mainDictionary);
         final String localeStr = locale.toString();
         Dictionary userDictionary = mUserDictionaries.get(localeStr);
         if (null == userDictionary) {
-            userDictionary = new SynchronouslyLoadedUserDictionary(this, localeStr, true);
+            userDictionary = new SynchronouslyLoadedUserDictionary(this, localeStr, true) {
+                // Reload as soon as the words change rather than on the next lookup, which
+                // the result cache may never make.
+                @Override
+                public void setRequiresReload(final boolean reload) {
+                    super.setRequiresReload(reload);
+                    if (reload) loadDictionary();
+                }
+
+                @Override
+                protected void onDictionaryLoaded() {
+                    mDictionaryGeneration.incrementAndGet();
+                }
+            };
             mUserDictionaries.put(localeStr, userDictionary);
         }
         dictionaryCollection.addDictionary(userDictionary);
@@ -315,11 +384,23 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         }
         dictionaryCollection.addDictionary(whitelistDictionary);
         if (null == mContactsDictionary) {
-            mContactsDictionary = new SynchronouslyLoadedContactsDictionary(this);
+            mContactsDictionary = new SynchronouslyLoadedContactsDictionary(this) {
+                // Same as for the user dictionary.
+                @Override
+                public void setRequiresReload(final boolean reload) {
+                    super.setRequiresReload(reload);
+                    if (reload) loadDictionary();
+                }
+
+                @Override
+                protected void onDictionaryLoaded() {
+                    mDictionaryGeneration.incrementAndGet();
+                }
+            };
         }
         // TODO: add a setting to use or not contacts when checking spelling
         dictionaryCollection.addDictionary(mContactsDictionary);
-        return new DictAndProximity(dictionaryCollection, proximityInfo);
+        return new DictAndProximity(dictionaryCollection, mainDictionary, proximityInfo);
     }
 
     // This method assumes the text is not empty or null.
@@ -344,6 +425,7 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
     private static class AndroidSpellCheckerSession extends Session {
         // Immutable, but need the locale which is not available in the constructor yet
         private DictionaryPool mDictionaryPool;
+        private ResultCache<CheckResult> mResultCache;
         // Likewise
         private Locale mLocale;
 
@@ -357,6 +439,7 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         public void onCreate() {
             final String localeString = getLocale();
             mDictionaryPool = mService.getDictionaryPool(localeString);
+            mResultCache = mService.getResultCache(localeString);
             mLocale = LocaleUtils.constructLocaleFromString(localeString);
         }
 
@@ -396,6 +479,80 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
             return (letterCount * 4 < length * 3);
         }
 
+        /**
+         * Checks a string with a dictionary of the pool.
+         *
+         * The composer and the gatherer are reset and reused, so that checking many strings
+         * in a row does not allocate them again for each string.
+         *
+         * @param text the string to check.
+         * @param dictInfo the dictionary to check it with.
+         * @param composer a composer to spell the string with.
+         * @param gatherer a gatherer for the suggestions, made for the suggestions limit.
+         * @return the result of the check.
+         */
+        private CheckResult checkText(final String text, final DictAndProximity dictInfo,
+                final WordComposer composer, final SuggestionsGatherer gatherer) {
+            if (shouldFilterOut(text)) {
+                return dictInfo.mDictionary.isValidWord(text) ? IN_DICT_EMPTY_RESULT
+                        : NOT_IN_DICT_EMPTY_RESULT;
+            }
+
+            // TODO: Don't gather suggestions if the limit is <= 0 unless necessary
+            gatherer.reset(text);
+            composer.reset();
+            final int length = text.length();
+            for (int i = 0; i < length; ++i) {
+                final int character = text.codePointAt(i);
+                final int proximityIndex = SpellCheckerProximityInfo.getIndexOf(character);
+                final int[] proximities;
+                if (-1 == proximityIndex) {
+                    proximities = new int[] { character };
+                } else {
+                    // The composer only ever reorders a row whose first code is not the
+                    // character itself, so the rows can be shared instead of copied.
+                    proximities = SpellCheckerProximityInfo.getRow(proximityIndex);
+                }
+                composer.add(character, proximities,
+                        WordComposer.NOT_A_COORDINATE, WordComposer.NOT_A_COORDINATE);
+            }
+
+            final int capitalizeType = getCapitalizationType(text);
+            dictInfo.mDictionary.getWords(composer, gatherer, dictInfo.mProximityInfo);
+            boolean isInDict = dictInfo.mDictionary.isValidWord(text);
+            if (!isInDict && CAPITALIZE_NONE != capitalizeType) {
+                // We want to test the word again if it's all caps or first caps only.
+                // If it's fully down, we already tested it, if it's mixed case, we don't
+                // want to test a lowercase version of it.
+                isInDict = dictInfo.mDictionary.isValidWord(text.toLowerCase(mLocale));
+            }
+
+            final SuggestionsGatherer.Result result = gatherer.getResults(capitalizeType, mLocale);
+
+            if (DBG) {
+                Log.i(TAG, "Spell checking results for " + text + " with suggestion limit "
+                        + gatherer.mMaxLength);
+                Log.i(TAG, "IsInDict = " + isInDict);
+                Log.i(TAG, "LooksLikeTypo = " + (!isInDict));
+                Log.i(TAG, "HasLikelySuggestions = " + result.mHasLikelySuggestions);
+                if (null != result.mSuggestions) {
+                    for (String suggestion : result.mSuggestions) {
+                        Log.i(TAG, suggestion);
+                    }
+                }
+            }
+
+            // TODO: actually use result.mHasLikelySuggestions
+            final int flags =
+                    (isInDict ? SuggestionsInfo.RESULT_ATTR_IN_THE_DICTIONARY
+                            : SuggestionsInfo.RESULT_ATTR_LOOKS_LIKE_TYPO);
+            return new CheckResult(flags, result.mSuggestions);
+        }
+
+        private static String getResultCacheKey(final String text, final int suggestionsLimit) {
+            return suggestionsLimit + " " + text;
+        }
+
         // Note : this must be reentrant
         /**
          * Gets a list of suggestions for a specific string. This returns a list of possible
@@ -405,98 +562,69 @@ public class AndroidSpellCheckerService extends SpellCheckerService {
         @Override
         public SuggestionsInfo onGetSuggestions(final TextInfo textInfo,
                 final int suggestionsLimit) {
-            try {
-                final String text = textInfo.getText();
-
-                if (shouldFilterOut(text)) {
-                    DictAndProximity dictInfo = null;
-                    try {
-                        dictInfo = mDictionaryPool.takeOrGetNull();
-                        if (null == dictInfo) return getNotInDictEmptySuggestions();
-                        return dictInfo.mDictionary.isValidWord(text) ? getInDictEmptySuggestions()
-                                : getNotInDictEmptySuggestions();
-                    } finally {
-                        if (null != dictInfo) {
-                            if (!mDictionaryPool.offer(dictInfo)) {
-                                Log.e(TAG, "Can't re-insert a dictionary into its pool");
-                            }
-                        }
-                    }
-                }
+            return onGetSuggestionsMultiple(new TextInfo[] { textInfo }, suggestionsLimit,
+                    false)[0];
+        }
 
-                // TODO: Don't gather suggestions if the limit is <= 0 unless necessary
-                final SuggestionsGatherer suggestionsGatherer = new SuggestionsGatherer(text,
-                        mService.mSuggestionThreshold, mService.mLikelyThreshold, suggestionsLimit);
-                final WordComposer composer = new WordComposer();
-                final int length = text.length();
+        // Note : this must be reentrant
+        /**
+         * Gets lists of suggestions for several strings at once.
+         *
+         * A single dictionary of the pool is used for the whole batch, and only taken if some
+         * string was not checked recently by any session of the same locale.
+         */
+        @Override
+        public SuggestionsInfo[] onGetSuggestionsMultiple(final TextInfo[] textInfos,
+                final int suggestionsLimit, final boolean sequentialWords) {
+            final int length = textInfos.length;
+            final SuggestionsInfo[] retval = new SuggestionsInfo[length];
+            final int generation = mService.getDictionaryGeneration();
+            WordComposer composer = null;
+            SuggestionsGatherer gatherer = null;
+            DictAndProximity dictInfo = null;
+            try {
                 for (int i = 0; i < length; ++i) {
-                    final int character = text.codePointAt(i);
-                    final int proximityIndex = SpellCheckerProximityInfo.getIndexOf(character);
-                    final int[] proximities;
-                    if (-1 == proximityIndex) {
-                        proximities = new int[] { character };
-                    } else {
-                        proximities = Arrays.copyOfRange(SpellCheckerProximityInfo.PROXIMITY,
-                                proximityIndex,
-                                proximityIndex + SpellCheckerProximityInfo.ROW_SIZE);
-                    }
-                    composer.add(character, proximities,
-                            WordComposer.NOT_A_COORDINATE, WordComposer.NOT_A_COORDINATE);
-                }
-
-                final int capitalizeType = getCapitalizationType(text);
-                boolean isInDict = true;
-                DictAndProximity dictInfo = null;
-                try {
-                    dictInfo = mDictionaryPool.takeOrGetNull();
-                    if (null == dictInfo) return getNotInDictEmptySuggestions();
-                    dictInfo.mDictionary.getWords(composer, suggestionsGatherer,
-                            dictInfo.mProximityInfo);
-                    isInDict = dictInfo.mDictionary.isValidWord(text);
-                    if (!isInDict && CAPITALIZE_NONE != capitalizeType) {
-                        // We want to test the word again if it's all caps or first caps only.
-                        // If it's fully down, we already tested it, if it's mixed case, we don't
-                        // want to test a lowercase version of it.
-                        isInDict = dictInfo.mDictionary.isValidWord(text.toLowerCase(mLocale));
-                    }
-                } finally {
-                    if (null != dictInfo) {
-                        if (!mDictionaryPool.offer(dictInfo)) {
-                            Log.e(TAG, "Can't re-insert a dictionary into its pool");
+                    final String text = textInfos[i].getText();
+                    final String key = getResultCacheKey(text, suggestionsLimit);
+                    CheckResult result = mResultCache.get(key, generation);
+                    if (null == result) {
+                        if (null == dictInfo) dictInfo = mDictionaryPool.takeOrGetNull();
+                        if (null == dictInfo) {
+                            result = NOT_IN_DICT_EMPTY_RESULT;
+                        } else {
+                            if (null == gatherer) {
+                                composer = new WordComposer();
+                                gatherer = new SuggestionsGatherer(mService.mSuggestionThreshold,
+                                        mService.mLikelyThreshold, suggestionsLimit);
+                            }
+                            // The whitelist finds no words until it is loaded.
+                            final boolean isCacheable = mService.isWhitelistLoaded(getLocale());
+                            try {
+                                result = checkText(text, dictInfo, composer, gatherer);
+                                if (isCacheable) mResultCache.put(key, result, generation);
+                            } catch (RuntimeException e) {
+                                // Don't kill the keyboard if there is a bug in the spell checker
+                                if (DBG) {
+                                    throw e;
+                                } else {
+                                    Log.e(TAG, "Exception while spellcheking: " + e);
+                                    result = NOT_IN_DICT_EMPTY_RESULT;
+                                }
+                            }
                         }
                     }
+                    retval[i] = result.toSuggestionsInfo();
+                    retval[i].setCookieAndSequence(textInfos[i].getCookie(),
+                            textInfos[i].getSequence());
                 }
-
-                final SuggestionsGatherer.Result result = suggestionsGatherer.getResults(
-                        capitalizeType, mLocale);
-
-                if (DBG) {
-                    Log.i(TAG, "Spell checking results for " + text + " with suggestion limit "
-                            + suggestionsLimit);
-                    Log.i(TAG, "IsInDict = " + isInDict);
-                    Log.i(TAG, "LooksLikeTypo = " + (!isInDict));
-                    Log.i(TAG, "HasLikelySuggestions = " + result.mHasLikelySuggestions);
-                    if (null != result.mSuggestions) {
-                        for (String suggestion : result.mSuggestions) {
-                            Log.i(TAG, suggestion);
-                        }
+            } finally {
+                if (null != dictInfo) {
+                    if (!mDictionaryPool.offer(dictInfo)) {
+                        Log.e(TAG, "Can't re-insert a dictionary into its pool");
                     }
                 }
-
-                // TODO: actually use result.mHasLikelySuggestions
-                final int flags =
-                        (isInDict ? SuggestionsInfo.RESULT_ATTR_IN_THE_DICTIONARY
-                                : SuggestionsInfo.RESULT_ATTR_LOOKS_LIKE_TYPO);
-                return new SuggestionsInfo(flags, result.mSuggestions);
-            } catch (RuntimeException e) {
-                // Don't kill the keyboard if there is a bug in the spell checker
-                if (DBG) {
-                    throw e;
-                } else {
-                    Log.e(TAG, "Exception while spellcheking: " + e);
-                    return getNotInDictEmptySuggestions();
-                }
             }
+            return retval;
         }
     }
 }
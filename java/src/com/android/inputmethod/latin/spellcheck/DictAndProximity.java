@@ -24,9 +24,14 @@ import com.android.inputmethod.keyboard.ProximityInfo;
  */
 public class DictAndProximity {
     public final Dictionary mDictionary;
+    // The part of mDictionary that belongs to this instance only. The rest of it, like the
+    // user dictionary, is shared with the other instances and must not be closed with it.
+    public final Dictionary mOwnDictionary;
     public final ProximityInfo mProximityInfo;
-    public DictAndProximity(final Dictionary dictionary, final ProximityInfo proximityInfo) {
+    public DictAndProximity(final Dictionary dictionary, final Dictionary ownDictionary,
+            final ProximityInfo proximityInfo) {
         mDictionary = dictionary;
+        mOwnDictionary = ownDictionary;
         mProximityInfo = proximityInfo;
     }
 }
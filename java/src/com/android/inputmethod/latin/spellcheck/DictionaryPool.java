@@ -16,43 +16,107 @@
 
 package com.android.inputmethod.latin.spellcheck;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
 import java.util.Locale;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * A blocking queue that creates dictionaries up to a certain limit as necessary.
+ * A pool that creates dictionaries up to a certain limit as necessary.
+ *
+ * Dictionaries are handed out most recently used first, so that the ones that are not needed
+ * any more stay idle. Those that stay idle for IDLE_TIMEOUT_MILLIS are closed, except the last
+ * one. Dictionaries are created outside of any lock, and the eviction, which runs on the main
+ * thread, does not lock either.
  */
-@SuppressWarnings("serial")
-public class DictionaryPool extends LinkedBlockingQueue<DictAndProximity> {
+public class DictionaryPool {
+    private static final String TAG = DictionaryPool.class.getSimpleName();
+    private static final boolean DBG = false;
+    private static final long IDLE_TIMEOUT_MILLIS = 60 * 1000;
+    private static final int MIN_SIZE = 1;
+
+    private static class IdleDictionary {
+        public final DictAndProximity mDictAndProximity;
+        public final long mIdleSince;
+        public IdleDictionary(final DictAndProximity dictAndProximity, final long idleSince) {
+            mDictAndProximity = dictAndProximity;
+            mIdleSince = idleSince;
+        }
+    }
+
     private final AndroidSpellCheckerService mService;
     private final int mMaxSize;
     private final Locale mLocale;
-    private int mSize;
+    // The idle dictionaries, the most recently used first.
+    private final LinkedBlockingDeque<IdleDictionary> mIdleDictionaries;
+    private final Handler mHandler;
+    private final Runnable mEvictIdleDictionaries = new Runnable() {
+        @Override
+        public void run() {
+            evictIdleDictionaries();
+        }
+    };
+    // The number of dictionaries created and not closed, including those being created.
+    private final AtomicInteger mSize = new AtomicInteger();
+    // Whether mEvictIdleDictionaries is posted, so that returning a dictionary does not post
+    // it again.
+    private final AtomicBoolean mEvictionPending = new AtomicBoolean();
     private volatile boolean mClosed;
 
+    // Statistics
+    private final AtomicLong mTakeCount = new AtomicLong();
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mWaitCount = new AtomicLong();
+    private final AtomicLong mWaitTimeMillis = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
     public DictionaryPool(final int maxSize, final AndroidSpellCheckerService service,
             final Locale locale) {
-        super();
         mMaxSize = maxSize;
         mService = service;
         mLocale = locale;
-        mSize = 0;
+        mIdleDictionaries = new LinkedBlockingDeque<IdleDictionary>();
+        mHandler = new Handler(Looper.getMainLooper());
         mClosed = false;
     }
 
-    @Override
     public DictAndProximity take() throws InterruptedException {
-        final DictAndProximity dict = poll();
-        if (null != dict) return dict;
-        synchronized(this) {
-            if (mSize >= mMaxSize) {
-                // Our pool is already full. Wait until some dictionary is ready.
-                return super.take();
-            } else {
-                ++mSize;
+        mTakeCount.incrementAndGet();
+        final IdleDictionary idle = mIdleDictionaries.pollFirst();
+        if (null != idle) {
+            mHitCount.incrementAndGet();
+            return idle.mDictAndProximity;
+        }
+        if (reserveSlot()) {
+            // Creating a dictionary reads files, so it is done after the slot is reserved and
+            // does not hold up the threads that only need an idle one.
+            try {
                 return mService.createDictAndProximity(mLocale);
+            } catch (RuntimeException e) {
+                mSize.decrementAndGet();
+                throw e;
             }
         }
+        // Our pool is already full. Wait until some dictionary is ready.
+        final long startTime = SystemClock.uptimeMillis();
+        final DictAndProximity dict = mIdleDictionaries.takeFirst().mDictAndProximity;
+        mWaitCount.incrementAndGet();
+        mWaitTimeMillis.addAndGet(SystemClock.uptimeMillis() - startTime);
+        return dict;
+    }
+
+    private boolean reserveSlot() {
+        while (true) {
+            final int size = mSize.get();
+            if (size >= mMaxSize) return false;
+            if (mSize.compareAndSet(size, size + 1)) return true;
+        }
     }
 
     // Convenience method
@@ -67,20 +131,92 @@ public class DictionaryPool extends LinkedBlockingQueue<DictAndProximity> {
     public void close() {
         synchronized(this) {
             mClosed = true;
-            for (DictAndProximity dict : this) {
-                dict.mDictionary.close();
+            mHandler.removeCallbacks(mEvictIdleDictionaries);
+            // Dictionaries are polled one by one so that none is also closed by the eviction.
+            for (IdleDictionary idle = mIdleDictionaries.pollFirst(); null != idle;
+                    idle = mIdleDictionaries.pollFirst()) {
+                idle.mDictAndProximity.mDictionary.close();
             }
-            clear();
+        }
+        if (DBG) {
+            Log.i(TAG, "Pool for " + mLocale + " : " + mTakeCount + " takes, " + mHitCount
+                    + " hits, " + mWaitCount + " waits for " + mWaitTimeMillis + "ms, "
+                    + mEvictionCount + " evictions");
         }
     }
 
-    @Override
     public boolean offer(final DictAndProximity dict) {
-        if (mClosed) {
-            dict.mDictionary.close();
-            return false;
-        } else {
-            return super.offer(dict);
+        synchronized(this) {
+            if (!mClosed) {
+                mIdleDictionaries.offerFirst(new IdleDictionary(dict, SystemClock.uptimeMillis()));
+                scheduleEviction();
+                return true;
+            }
+        }
+        dict.mDictionary.close();
+        return false;
+    }
+
+    /**
+     * Posts the eviction for when the oldest idle dictionary times out, unless it is posted.
+     *
+     * This is called after a dictionary is made idle, and the eviction clears the pending flag
+     * before it looks at the idle dictionaries, so no idle dictionary goes unchecked.
+     */
+    private void scheduleEviction() {
+        if (!mEvictionPending.compareAndSet(false, true)) return;
+        final IdleDictionary oldest = mIdleDictionaries.peekLast();
+        final long idleTime = null == oldest ? 0 : SystemClock.uptimeMillis() - oldest.mIdleSince;
+        mHandler.postDelayed(mEvictIdleDictionaries, Math.max(0, IDLE_TIMEOUT_MILLIS - idleTime));
+    }
+
+    // Called on the main thread.
+    private void evictIdleDictionaries() {
+        mEvictionPending.set(false);
+        while (true) {
+            if (mClosed || mSize.get() <= MIN_SIZE) return;
+            final IdleDictionary oldest = mIdleDictionaries.peekLast();
+            if (null == oldest) return;
+            if (SystemClock.uptimeMillis() - oldest.mIdleSince < IDLE_TIMEOUT_MILLIS) {
+                scheduleEviction();
+                return;
+            }
+            // It may have been taken in the meantime.
+            if (!mIdleDictionaries.removeLastOccurrence(oldest)) continue;
+            mSize.decrementAndGet();
+            mEvictionCount.incrementAndGet();
+            // The other dictionaries of the collection are shared with the other instances.
+            oldest.mDictAndProximity.mOwnDictionary.close();
         }
     }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    public long getTakeCount() {
+        return mTakeCount.get();
+    }
+
+    /**
+     * Returns the number of takes that were served by an idle dictionary right away.
+     */
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    /**
+     * Returns the number of takes that had to wait for a dictionary to be returned.
+     */
+    public long getWaitCount() {
+        return mWaitCount.get();
+    }
+
+    public long getWaitTimeMillis() {
+        return mWaitTimeMillis.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictionCount.get();
+    }
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin.spellcheck;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of spell checking results that can be used by several threads at once.
+ *
+ * The entries are spread over several segments by the hash of their key. Each segment has its
+ * own lock and drops its least recently used entries when it is full, so that threads using
+ * different keys rarely wait for each other.
+ *
+ * Entries are only valid for the generation of the dictionaries they were computed with. A
+ * segment drops all its entries when it first sees a more recent generation, and results
+ * computed with an older generation are not kept.
+ */
+public class ResultCache<V> {
+    private static final int SEGMENT_COUNT = 4;
+
+    @SuppressWarnings("serial")
+    private static class Segment<V> extends LinkedHashMap<String, V> {
+        private final int mMaxSize;
+        private int mGeneration;
+
+        public Segment(final int maxSize) {
+            super(maxSize, 0.75f, true);
+            mMaxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+            return size() > mMaxSize;
+        }
+
+        // Must be called with the lock of the segment held. Returns whether the segment is
+        // now at the passed generation.
+        public boolean updateGeneration(final int generation) {
+            if (generation > mGeneration) {
+                clear();
+                mGeneration = generation;
+            }
+            return generation == mGeneration;
+        }
+    }
+
+    private final Segment<V>[] mSegments;
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+
+    @SuppressWarnings("unchecked")
+    public ResultCache(final int maxSize) {
+        mSegments = new Segment[SEGMENT_COUNT];
+        final int segmentSize = Math.max(1, maxSize / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; ++i) {
+            mSegments[i] = new Segment<V>(segmentSize);
+        }
+    }
+
+    private Segment<V> getSegment(final String key) {
+        final int hash = key.hashCode();
+        return mSegments[((hash >>> 16) ^ hash) & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * Returns the result cached for a key.
+     *
+     * @param key the key of the result.
+     * @param generation the current generation of the dictionaries.
+     * @return the result, or null if there is none for this generation.
+     */
+    public V get(final String key, final int generation) {
+        final Segment<V> segment = getSegment(key);
+        final V result;
+        synchronized (segment) {
+            result = segment.updateGeneration(generation) ? segment.get(key) : null;
+        }
+        if (null == result) {
+            mMissCount.incrementAndGet();
+        } else {
+            mHitCount.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Caches a result.
+     *
+     * @param key the key of the result.
+     * @param result the result.
+     * @param generation the generation of the dictionaries the result was computed with.
+     */
+    public void put(final String key, final V result, final int generation) {
+        final Segment<V> segment = getSegment(key);
+        synchronized (segment) {
+            if (segment.updateGeneration(generation)) segment.put(key, result);
+        }
+    }
+
+    public long getHitCount() {
+        return mHitCount.get();
+    }
+
+    public long getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * Returns the part of the lookups that found a result, between 0 and 1.
+     */
+    public double getHitRatio() {
+        final long hitCount = mHitCount.get();
+        final long lookupCount = hitCount + mMissCount.get();
+        return 0 == lookupCount ? 0 : (double)hitCount / lookupCount;
+    }
+}
@@ -19,6 +19,7 @@ package com.android.inputmethod.latin.spellcheck;
 import com.android.inputmethod.keyboard.KeyDetector;
 import com.android.inputmethod.keyboard.ProximityInfo;
 
+import java.util.Arrays;
 import java.util.TreeMap;
 
 public class SpellCheckerProximityInfo {
@@ -80,9 +81,13 @@ public class SpellCheckerProximityInfo {
         NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL,
         NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL, NUL,
     };
+    // The rows of PROXIMITY as separate arrays, so that they don't have to be copied for each
+    // character checked.
+    final private static int[][] ROWS = new int[PROXIMITY.length / ROW_SIZE][];
     static {
         for (int i = 0; i < PROXIMITY.length; i += ROW_SIZE) {
             if (NUL != PROXIMITY[i]) INDICES.put(PROXIMITY[i], i);
+            ROWS[i / ROW_SIZE] = Arrays.copyOfRange(PROXIMITY, i, i + ROW_SIZE);
         }
     }
     public static int getIndexOf(int characterCode) {
@@ -90,4 +95,13 @@ public class SpellCheckerProximityInfo {
         if (null == result) return -1;
         return result;
     }
+
+    /**
+     * Returns the row of PROXIMITY starting at an index returned by getIndexOf.
+     *
+     * The row is shared and must not be modified.
+     */
+    public static int[] getRow(int index) {
+        return ROWS[index / ROW_SIZE];
+    }
 }
@@ -110,14 +110,22 @@ static jint latinime_BinaryDictionary_open(JNIEnv *env, jobject object,
     Dictionary *dictionary = NULL;
     if (BinaryFormat::UNKNOWN_FORMAT == BinaryFormat::detectFormat((uint8_t*)dictBuf)) {
         LOGE("DICT: dictionary format is unknown, bad magic number");
+    } else if (dictSize <= NEW_DICTIONARY_HEADER_SIZE
+            || !BinaryFormat::prewarmNodes((uint8_t*)dictBuf + NEW_DICTIONARY_HEADER_SIZE,
+                    dictSize - NEW_DICTIONARY_HEADER_SIZE, 0, PREWARM_DEPTH)) {
+        // This also reads through the first levels of the trie, so that the first lookups
+        // do not have to wait for their pages to be read from storage.
+        LOGE("DICT: dictionary is truncated or corrupt");
+    } else {
+        dictionary = new Dictionary(dictBuf, dictSize, fd, adjust, typedLetterMultiplier,
+                fullWordMultiplier, maxWordLength, maxWords, maxAlternatives);
+    }
+    if (!dictionary) {
 #ifdef USE_MMAP_FOR_DICTIONARY
         releaseDictBuf(((char*)dictBuf) - adjust, adjDictSize, fd);
 #else // USE_MMAP_FOR_DICTIONARY
         releaseDictBuf(dictBuf, 0, 0);
 #endif // USE_MMAP_FOR_DICTIONARY
-    } else {
-        dictionary = new Dictionary(dictBuf, dictSize, fd, adjust, typedLetterMultiplier,
-                fullWordMultiplier, maxWordLength, maxWords, maxAlternatives);
     }
     PROF_END(66);
     PROF_CLOSE;
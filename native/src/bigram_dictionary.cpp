@@ -22,6 +22,7 @@
 #include "bigram_dictionary.h"
 #include "dictionary.h"
 #include "binary_format.h"
+#include "words_priority_queue.h"
 
 namespace latinime {
 
@@ -30,57 +31,81 @@ BigramDictionary::BigramDictionary(const unsigned char *dict, int maxWordLength,
         Dictionary *parentDictionary)
     : DICT(dict + NEW_DICTIONARY_HEADER_SIZE), MAX_WORD_LENGTH(maxWordLength),
     MAX_ALTERNATIVES(maxAlternatives), IS_LATEST_DICT_VERSION(isLatestDictVersion),
-    HAS_BIGRAM(hasBigram), mParentDictionary(parentDictionary) {
+    HAS_BIGRAM(hasBigram), HAS_GROUPED_BIGRAMS(BinaryFormat::hasGroupedBigrams(dict)),
+    mParentDictionary(parentDictionary), mBigramQueue(0) {
     if (DEBUG_DICT) {
         LOGI("BigramDictionary - constructor");
         LOGI("Has Bigram : %d", hasBigram);
     }
+    initFirstCharIndex();
 }
 
 BigramDictionary::~BigramDictionary() {
+    delete mBigramQueue;
+    delete[] mRootChildrenPositions;
+    delete[] mRootChildrenFirstChars;
+}
+
+// Reads the root node once to be able to tell the first char of a word from its address.
+void BigramDictionary::initFirstCharIndex() {
+    int pos = 0;
+    const int count = BinaryFormat::getGroupCountAndForwardPointer(DICT, &pos);
+    mRootChildrenCount = 0;
+    mRootChildrenPositions = new int[count];
+    mRootChildrenFirstChars = new int32_t[count];
+    for (int i = 0; i < count; ++i) {
+        const uint8_t flags = BinaryFormat::getFlagsAndForwardPointer(DICT, &pos);
+        const int32_t character = BinaryFormat::getCharCodeAndForwardPointer(DICT, &pos);
+        if (UnigramDictionary::FLAG_HAS_MULTIPLE_CHARS & flags) {
+            pos = BinaryFormat::skipOtherCharacters(DICT, pos);
+        }
+        pos = BinaryFormat::skipFrequency(flags, pos);
+        // Like in BinaryFormat::getWordAtAddress, shared children don't count: they never hold
+        // a bigram target and are not laid out in the order of their parents.
+        if (BinaryFormat::hasChildrenInFlags(flags)
+                && !(UnigramDictionary::FLAG_HAS_SHARED_CHILDREN & flags)) {
+            mRootChildrenPositions[mRootChildrenCount] =
+                    BinaryFormat::readChildrenPosition(DICT, flags, pos);
+            mRootChildrenFirstChars[mRootChildrenCount] = character;
+            ++mRootChildrenCount;
+        }
+        pos = BinaryFormat::skipChildrenPosAndAttributes(DICT, flags, pos);
+    }
+}
+
+// Returns the first char of the word whose last char group is at address, or NOT_A_CHARACTER
+// if it can't be told without reading the word.
+// The nodes under a root char group are all written after its children position and before
+// the children position of the next root char group that has children, which is also what
+// BinaryFormat::getWordAtAddress relies on. Finding the first char is thus a binary search.
+int32_t BigramDictionary::getFirstCharOfWordAtAddress(const int address) const {
+    if (0 == mRootChildrenCount || address < mRootChildrenPositions[0]) {
+        // The address is in the root node.
+        return NOT_A_CHARACTER;
+    }
+    int low = 0;
+    int high = mRootChildrenCount - 1;
+    while (low < high) {
+        const int middle = (low + high + 1) / 2;
+        if (mRootChildrenPositions[middle] <= address) {
+            low = middle;
+        } else {
+            high = middle - 1;
+        }
+    }
+    return mRootChildrenFirstChars[low];
 }
 
 bool BigramDictionary::addWordBigram(unsigned short *word, int length, int frequency) {
-    word[length] = 0;
     if (DEBUG_DICT) {
 #ifdef FLAG_DBG
         char s[length + 1];
-        for (int i = 0; i <= length; i++) s[i] = word[i];
+        for (int i = 0; i < length; i++) s[i] = word[i];
+        s[length] = 0;
         LOGI("Bigram: Found word = %s, freq = %d :", s, frequency);
 #endif
     }
-
-    // Find the right insertion point
-    int insertAt = 0;
-    while (insertAt < mMaxBigrams) {
-        if (frequency > mBigramFreq[insertAt] || (mBigramFreq[insertAt] == frequency
-                && length < Dictionary::wideStrLen(mBigramChars + insertAt * MAX_WORD_LENGTH))) {
-            break;
-        }
-        insertAt++;
-    }
-    if (DEBUG_DICT) {
-        LOGI("Bigram: InsertAt -> %d maxBigrams: %d", insertAt, mMaxBigrams);
-    }
-    if (insertAt < mMaxBigrams) {
-        memmove((char*) mBigramFreq + (insertAt + 1) * sizeof(mBigramFreq[0]),
-               (char*) mBigramFreq + insertAt * sizeof(mBigramFreq[0]),
-               (mMaxBigrams - insertAt - 1) * sizeof(mBigramFreq[0]));
-        mBigramFreq[insertAt] = frequency;
-        memmove((char*) mBigramChars + (insertAt + 1) * MAX_WORD_LENGTH * sizeof(short),
-               (char*) mBigramChars + (insertAt    ) * MAX_WORD_LENGTH * sizeof(short),
-               (mMaxBigrams - insertAt - 1) * sizeof(short) * MAX_WORD_LENGTH);
-        unsigned short *dest = mBigramChars + (insertAt    ) * MAX_WORD_LENGTH;
-        while (length--) {
-            *dest++ = *word++;
-        }
-        *dest = 0; // NULL terminate
-        if (DEBUG_DICT) {
-            LOGI("Bigram: Added word at %d", insertAt);
-        }
-        return true;
-    }
-    return false;
+    return mBigramQueue->push(frequency, word, length);
 }
 
 /* Parameters :
@@ -93,9 +118,10 @@ bool BigramDictionary::addWordBigram(unsigned short *word, int length, int frequ
  * maxWordLength: the maximum size of a word.
  * maxBigrams: the maximum number of bigrams fitting in the bigramChars array.
  * maxAlteratives: unused.
- * This method returns the number of bigrams this word has, for backward compatibility.
- * Note: this is not the number of bigrams output in the array, which is the number of
- * bigrams this word has WHOSE first letter also matches the letter the user typed.
+ * This method returns the number of bigrams output in the array, that is the number of
+ * bigrams this word has WHOSE first letter also matches the letter the user typed. When the
+ * bigrams are grouped by first letter, the list is not read further than the last one that
+ * may match, so the total number of bigrams this word has is not known.
  * TODO: this may not be a sensible thing to do. It makes sense when the bigrams are
  * used to match the first letter of the second word, but once the user has typed more
  * and the bigrams are used to boost unigram result scores, it makes little sense to
@@ -110,6 +136,12 @@ int BigramDictionary::getBigrams(unsigned short *prevWord, int prevWordLength, i
     mBigramChars = bigramChars;
     mInputCodes = codes;
     mMaxBigrams = maxBigrams;
+    if (!mBigramQueue || mBigramQueue->getMaxWords() != maxBigrams) {
+        delete mBigramQueue;
+        mBigramQueue = new WordsPriorityQueue(maxBigrams, MAX_WORD_LENGTH,
+                true /* shorterWordsFirst */);
+    }
+    mBigramQueue->clear();
 
     const uint8_t* const root = DICT;
     int pos = BinaryFormat::getTerminalPosition(root, prevWord, prevWordLength);
@@ -124,33 +156,47 @@ int BigramDictionary::getBigrams(unsigned short *prevWord, int prevWordLength, i
     }
     pos = BinaryFormat::skipChildrenPosition(flags, pos);
     pos = BinaryFormat::skipFrequency(flags, pos);
+    // No bigram target starting with a greater char than this may match
+    int32_t maxFirstChar = NOT_A_CHARACTER;
+    for (int i = 0; i < MAX_ALTERNATIVES; ++i) {
+        maxFirstChar = max(maxFirstChar, codes[i]);
+    }
     int bigramFlags;
-    int bigramCount = 0;
     do {
         bigramFlags = BinaryFormat::getFlagsAndForwardPointer(root, &pos);
         uint16_t bigramBuffer[MAX_WORD_LENGTH];
         const int bigramPos = BinaryFormat::getAttributeAddressAndForwardPointer(root, bigramFlags,
                 &pos);
-        const int length = BinaryFormat::getWordAtAddress(root, bigramPos, MAX_WORD_LENGTH,
-                bigramBuffer);
-
-        if (checkFirstCharacter(bigramBuffer)) {
+        // Reading the word is expensive, so only do it when its first char may match
+        int32_t firstChar = getFirstCharOfWordAtAddress(bigramPos);
+        int length = 0;
+        if (NOT_A_CHARACTER == firstChar) {
+            length = BinaryFormat::getWordAtAddress(root, bigramPos, MAX_WORD_LENGTH,
+                    bigramBuffer);
+            if (0 == length) continue;
+            firstChar = bigramBuffer[0];
+        }
+        if (HAS_GROUPED_BIGRAMS && firstChar > maxFirstChar) break;
+        if (checkFirstCharacter(firstChar)) {
+            if (0 == length) {
+                length = BinaryFormat::getWordAtAddress(root, bigramPos, MAX_WORD_LENGTH,
+                        bigramBuffer);
+            }
             const int frequency = UnigramDictionary::MASK_ATTRIBUTE_FREQUENCY & bigramFlags;
             addWordBigram(bigramBuffer, length, frequency);
         }
-        ++bigramCount;
     } while (0 != (UnigramDictionary::FLAG_ATTRIBUTE_HAS_NEXT & bigramFlags));
-    return bigramCount;
+    return mBigramQueue->outputSuggestions(mBigramFreq, mBigramChars);
 }
 
-bool BigramDictionary::checkFirstCharacter(unsigned short *word) {
+bool BigramDictionary::checkFirstCharacter(const int32_t firstChar) {
     // Checks whether this word starts with same character or neighboring characters of
     // what user typed.
 
     int *inputCodes = mInputCodes;
     int maxAlt = MAX_ALTERNATIVES;
     while (maxAlt > 0) {
-        if ((unsigned int) *inputCodes == (unsigned int) *word) {
+        if ((unsigned int) *inputCodes == (unsigned int) firstChar) {
             return true;
         }
         inputCodes++;
@@ -17,9 +17,12 @@
 #ifndef LATINIME_BIGRAM_DICTIONARY_H
 #define LATINIME_BIGRAM_DICTIONARY_H
 
+#include <stdint.h>
+
 namespace latinime {
 
 class Dictionary;
+class WordsPriorityQueue;
 class BigramDictionary {
 public:
     BigramDictionary(const unsigned char *dict, int maxWordLength, int maxAlternatives,
@@ -35,18 +38,28 @@ private:
     void searchForTerminalNode(int addressLookingFor, int frequency);
     bool getFirstBitOfByte(int *pos) { return (DICT[*pos] & 0x80) > 0; }
     bool getSecondBitOfByte(int *pos) { return (DICT[*pos] & 0x40) > 0; }
-    bool checkFirstCharacter(unsigned short *word);
+    bool checkFirstCharacter(const int32_t firstChar);
+    void initFirstCharIndex();
+    int32_t getFirstCharOfWordAtAddress(const int address) const;
 
     const unsigned char *DICT;
     const int MAX_WORD_LENGTH;
     const int MAX_ALTERNATIVES;
     const bool IS_LATEST_DICT_VERSION;
     const bool HAS_BIGRAM;
+    const bool HAS_GROUPED_BIGRAMS;
 
     Dictionary *mParentDictionary;
     int *mBigramFreq;
     int mMaxBigrams;
     unsigned short *mBigramChars;
+    // Holds the best bigrams found so far, in fixed slots, until they are output
+    WordsPriorityQueue *mBigramQueue;
+    // The children positions of the root char groups that have children, in increasing order,
+    // and the char each of these groups starts with
+    int mRootChildrenCount;
+    int *mRootChildrenPositions;
+    int32_t *mRootChildrenFirstChars;
     int *mInputCodes;
     int mInputLength;
 };
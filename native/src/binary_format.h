@@ -27,16 +27,27 @@ private:
     const static int32_t CHARACTER_ARRAY_TERMINATOR = 0x1F;
     const static int MULTIPLE_BYTE_CHARACTER_ADDITIONAL_SIZE = 2;
 
+    static int getOptions(const uint8_t* const dict);
+    static bool isCharacterInBounds(const uint8_t* const root, const int size, const int pos);
+
 public:
     const static int UNKNOWN_FORMAT = -1;
     const static int FORMAT_VERSION_1 = 1;
     const static uint16_t FORMAT_VERSION_1_MAGIC_NUMBER = 0x78B1;
+    // Header option: the char groups with children may store their subtree max frequency
+    const static int OPTION_HAS_SUBTREE_MAX_FREQUENCIES = 0x1;
+    // Header option: the bigrams of each char group are sorted by the first char of their target
+    const static int OPTION_GROUPED_BIGRAMS = 0x2;
 
     static int detectFormat(const uint8_t* const dict);
+    static bool hasSubtreeMaxFrequencies(const uint8_t* const dict);
+    static bool hasGroupedBigrams(const uint8_t* const dict);
     static int getGroupCountAndForwardPointer(const uint8_t* const dict, int* pos);
     static uint8_t getFlagsAndForwardPointer(const uint8_t* const dict, int* pos);
     static int32_t getCharCodeAndForwardPointer(const uint8_t* const dict, int* pos);
     static int readFrequencyWithoutMovingPointer(const uint8_t* const dict, const int pos);
+    static int readSubtreeMaxFrequencyWithoutMovingPointer(const uint8_t* const dict,
+            const uint8_t flags, const int pos);
     static int skipOtherCharacters(const uint8_t* const dict, const int pos);
     static int skipAttributes(const uint8_t* const dict, const int pos);
     static int skipChildrenPosition(const uint8_t flags, const int pos);
@@ -52,6 +63,8 @@ public:
             const int length);
     static int getWordAtAddress(const uint8_t* const root, const int address, const int maxDepth,
             uint16_t* outWord);
+    static bool prewarmNodes(const uint8_t* const root, const int size, const int pos,
+            const int depth);
 };
 
 inline int BinaryFormat::detectFormat(const uint8_t* const dict) {
@@ -60,6 +73,20 @@ inline int BinaryFormat::detectFormat(const uint8_t* const dict) {
     return UNKNOWN_FORMAT;
 }
 
+inline int BinaryFormat::getOptions(const uint8_t* const dict) {
+    if (FORMAT_VERSION_1 != detectFormat(dict)) return 0;
+    // The options are on two bytes after the magic number and the version, in big endian
+    return (dict[3] << 8) + dict[4];
+}
+
+inline bool BinaryFormat::hasSubtreeMaxFrequencies(const uint8_t* const dict) {
+    return 0 != (OPTION_HAS_SUBTREE_MAX_FREQUENCIES & getOptions(dict));
+}
+
+inline bool BinaryFormat::hasGroupedBigrams(const uint8_t* const dict) {
+    return 0 != (OPTION_GROUPED_BIGRAMS & getOptions(dict));
+}
+
 inline int BinaryFormat::getGroupCountAndForwardPointer(const uint8_t* const dict, int* pos) {
     return dict[(*pos)++];
 }
@@ -92,6 +119,14 @@ inline int BinaryFormat::readFrequencyWithoutMovingPointer(const uint8_t* const
     return dict[pos];
 }
 
+// Reads the max frequency of the char group and its descendants, if it is stored. Like for
+// the frequency, pos has to point right after the characters.
+inline int BinaryFormat::readSubtreeMaxFrequencyWithoutMovingPointer(const uint8_t* const dict,
+        const uint8_t flags, const int pos) {
+    if (!(UnigramDictionary::FLAG_HAS_SUBTREE_MAX_FREQUENCY & flags)) return NOT_A_FREQUENCY;
+    return dict[UnigramDictionary::FLAG_IS_TERMINAL & flags ? pos + 1 : pos];
+}
+
 inline int BinaryFormat::skipOtherCharacters(const uint8_t* const dict, const int pos) {
     int currentPos = pos;
     int32_t character = dict[currentPos++];
@@ -139,8 +174,11 @@ inline int BinaryFormat::skipChildrenPosition(const uint8_t flags, const int pos
     return pos + childrenAddressSize(flags);
 }
 
+// Skips the frequency and the subtree max frequency, whichever are present.
 inline int BinaryFormat::skipFrequency(const uint8_t flags, const int pos) {
-    return UnigramDictionary::FLAG_IS_TERMINAL & flags ? pos + 1 : pos;
+    const int currentPos = UnigramDictionary::FLAG_IS_TERMINAL & flags ? pos + 1 : pos;
+    return UnigramDictionary::FLAG_HAS_SUBTREE_MAX_FREQUENCY & flags
+            ? currentPos + 1 : currentPos;
 }
 
 inline int BinaryFormat::skipAllAttributes(const uint8_t* const dict, const uint8_t flags,
@@ -268,8 +306,8 @@ inline int BinaryFormat::getTerminalPosition(const uint8_t* const root,
                     if (wordPos == length) {
                         return charGroupPos;
                     }
-                    pos = BinaryFormat::skipFrequency(UnigramDictionary::FLAG_IS_TERMINAL, pos);
                 }
+                pos = BinaryFormat::skipFrequency(flags, pos);
                 if (UnigramDictionary::FLAG_GROUP_ADDRESS_TYPE_NOADDRESS
                         == (UnigramDictionary::MASK_GROUP_ADDRESS_TYPE & flags)) {
                     return NOT_VALID_WORD;
@@ -354,9 +392,11 @@ inline int BinaryFormat::getWordAtAddress(const uint8_t* const root, const int a
 
             // The fact that this group has children is very important. Since we already know
             // that this group does not match, if it has no children we know it is irrelevant
-            // to what we are searching for.
+            // to what we are searching for. Shared children never hold a bigram target and are
+            // not laid out in order, so they count as no children here.
             const bool hasChildren = (UnigramDictionary::FLAG_GROUP_ADDRESS_TYPE_NOADDRESS !=
-                    (UnigramDictionary::MASK_GROUP_ADDRESS_TYPE & flags));
+                    (UnigramDictionary::MASK_GROUP_ADDRESS_TYPE & flags))
+                    && !(UnigramDictionary::FLAG_HAS_SHARED_CHILDREN & flags);
             // We will write in `found' whether we have passed the children address we are
             // searching for. For example if we search for "beer", the children of b are less
             // than the address we are searching for and the children of c are greater. When we
@@ -437,6 +477,61 @@ inline int BinaryFormat::getWordAtAddress(const uint8_t* const root, const int a
     return 0;
 }
 
+// Checks that the character at pos, which may take several bytes, is within the first size
+// bytes of the dictionary.
+inline bool BinaryFormat::isCharacterInBounds(const uint8_t* const root, const int size,
+        const int pos) {
+    if (pos >= size) return false;
+    const int32_t character = root[pos];
+    if (character >= MINIMAL_ONE_BYTE_CHARACTER_VALUE || CHARACTER_ARRAY_TERMINATOR == character) {
+        return true;
+    }
+    return pos + MULTIPLE_BYTE_CHARACTER_ADDITIONAL_SIZE < size;
+}
+
+// Reads through the node at pos and its descendants down to the given depth, so that the
+// pages they are on are in memory before the first lookup needs them. This also checks that
+// all the groups read are within the size of the dictionary, so that a truncated or corrupt
+// file is caught when it is opened rather than when looking up words. Returns false if a
+// group is out of bounds.
+inline bool BinaryFormat::prewarmNodes(const uint8_t* const root, const int size,
+        const int pos, const int depth) {
+    if (pos < 0 || pos >= size) return false;
+    int currentPos = pos;
+    int charGroupCount = getGroupCountAndForwardPointer(root, &currentPos);
+    for (; charGroupCount > 0; --charGroupCount) {
+        if (currentPos >= size) return false;
+        const uint8_t flags = getFlagsAndForwardPointer(root, &currentPos);
+        if (!isCharacterInBounds(root, size, currentPos)) return false;
+        int32_t character = getCharCodeAndForwardPointer(root, &currentPos);
+        if (UnigramDictionary::FLAG_HAS_MULTIPLE_CHARS & flags) {
+            while (NOT_A_CHARACTER != character) {
+                if (!isCharacterInBounds(root, size, currentPos)) return false;
+                character = getCharCodeAndForwardPointer(root, &currentPos);
+            }
+        }
+        currentPos = skipFrequency(flags, currentPos);
+        if (currentPos + childrenAddressSize(flags) > size) return false;
+        if (depth > 1 && hasChildrenInFlags(flags)) {
+            if (!prewarmNodes(root, size, readChildrenPosition(root, flags, currentPos),
+                    depth - 1)) {
+                return false;
+            }
+        }
+        currentPos = skipChildrenPosition(flags, currentPos);
+        // Same as skipAllAttributes, but checking each attribute is in bounds.
+        if (UnigramDictionary::FLAG_HAS_BIGRAMS & flags) {
+            uint8_t attributeFlags;
+            do {
+                if (currentPos >= size) return false;
+                attributeFlags = getFlagsAndForwardPointer(root, &currentPos);
+                currentPos += attributeAddressSize(attributeFlags);
+            } while (UnigramDictionary::FLAG_ATTRIBUTE_HAS_NEXT & attributeFlags);
+        }
+    }
+    return currentPos <= size;
+}
+
 } // namespace latinime
 
 #endif // LATINIME_BINARY_FORMAT_H
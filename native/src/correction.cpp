@@ -79,8 +79,12 @@ inline static void initEditDistance(int *editDistanceTable) {
     }
 }
 
+// input must be in base lower case, as computed once per input by initCorrection.
+// compositeGlyphs may be NULL. Otherwise, a digraph in the input is matched to its composite
+// glyph in the output at no cost.
 inline static void calcEditDistanceOneStep(int *editDistanceTable, const unsigned short *input,
-        const int inputLength, const unsigned short *output, const int outputLength) {
+        const int inputLength, const unsigned short *output, const int outputLength,
+        const int *compositeGlyphs) {
     // Let dp[i][j] be editDistanceTable[i * (inputLength + 1) + j].
     // Assuming that dp[0][0] ... dp[outputLength - 1][inputLength] are already calculated,
     // and calculate dp[ouputLength][0] ... dp[outputLength][inputLength].
@@ -92,14 +96,18 @@ inline static void calcEditDistanceOneStep(int *editDistanceTable, const unsigne
     const uint32_t co = Dictionary::toBaseLowerCase(output[outputLength - 1]);
     const uint32_t prevCO =
             outputLength >= 2 ? Dictionary::toBaseLowerCase(output[outputLength - 2]) : 0;
+    // latin_tolower is a binary search, so only call it when there are digraphs to match
+    const int lowerCO = compositeGlyphs ? latin_tolower(output[outputLength - 1]) : 0;
     for (int i = 1; i <= inputLength; ++i) {
-        const uint32_t ci = Dictionary::toBaseLowerCase(input[i - 1]);
-        const uint16_t cost = (ci == co) ? 0 : 1;
+        const uint32_t ci = input[i - 1];
+        const int cost = (ci == co) ? 0 : 1;
         current[i] = min(current[i - 1] + 1, min(prev[i] + 1, prev[i - 1] + cost));
-        if (i >= 2 && prevprev && ci == prevCO
-                && co == Dictionary::toBaseLowerCase(input[i - 2])) {
+        if (i >= 2 && prevprev && ci == prevCO && co == input[i - 2]) {
             current[i] = min(current[i], prevprev[i - 2] + 1);
         }
+        if (i >= 2 && compositeGlyphs && compositeGlyphs[i - 2] == lowerCO) {
+            current[i] = min(current[i], prev[i - 2]);
+        }
     }
 }
 
@@ -133,6 +141,20 @@ void Correction::initCorrection(const ProximityInfo *pi, const int inputLength,
     mInputLength = inputLength;
     mMaxDepth = maxDepth;
     mMaxEditDistance = mInputLength < 5 ? 2 : mInputLength / 2;
+    const unsigned short *primaryInputWord = pi->getPrimaryInputWord();
+    for (int i = 0; i < inputLength; ++i) {
+        mBaseLowerInputWord[i] = Dictionary::toBaseLowerCase(primaryInputWord[i]);
+    }
+    mMaxFinalFreqRate = RankingAlgorithm::calcMaxFinalFreqRate(inputLength, this);
+    mDigraphCompositeGlyphs = 0;
+    // The first row is overwritten by the other rows of a shorter input.
+    initEditDistance(mEditDistanceTable);
+    mEditDistanceRowCount = 0;
+}
+
+void Correction::setDigraphCompositeGlyphs(const int *compositeGlyphs) {
+    mDigraphCompositeGlyphs = compositeGlyphs;
+    mEditDistanceRowCount = 0;
 }
 
 void Correction::initCorrectionState(
@@ -187,6 +209,7 @@ int Correction::getFinalFreq(const int freq, unsigned short **word, int *wordLen
     }
 
     *word = mWord;
+    updateEditDistanceTable(outputIndex + 1);
     return Correction::RankingAlgorithm::calculateFinalFreq(
             inputIndex, outputIndex, freq, mEditDistanceTable, this);
 }
@@ -205,6 +228,7 @@ bool Correction::initProcessState(const int outputIndex) {
     mTransposedCount = mCorrectionStates[outputIndex].mTransposedCount;
     mExcessiveCount = mCorrectionStates[outputIndex].mExcessiveCount;
     mSkippedCount = mCorrectionStates[outputIndex].mSkippedCount;
+    mDigraphCount = mCorrectionStates[outputIndex].mDigraphCount;
     mLastCharExceeded = mCorrectionStates[outputIndex].mLastCharExceeded;
 
     mTransposedPos = mCorrectionStates[outputIndex].mTransposedPos;
@@ -260,6 +284,7 @@ void Correction::incrementOutputIndex() {
     mCorrectionStates[mOutputIndex].mTransposedCount = mTransposedCount;
     mCorrectionStates[mOutputIndex].mExcessiveCount = mExcessiveCount;
     mCorrectionStates[mOutputIndex].mSkippedCount = mSkippedCount;
+    mCorrectionStates[mOutputIndex].mDigraphCount = mDigraphCount;
 
     mCorrectionStates[mOutputIndex].mSkipPos = mSkipPos;
     mCorrectionStates[mOutputIndex].mTransposedPos = mTransposedPos;
@@ -283,11 +308,35 @@ bool Correction::needsToPrune() const {
     return mOutputIndex - 1 >= mMaxDepth || mProximityCount > mMaxEditDistance;
 }
 
+int Correction::getFinalFreqUpperBound(const int maxFreq) const {
+    // The bound is rounded up so that it stays admissible despite the floating point error.
+    const double bound = maxFreq * mMaxFinalFreqRate + 1.0;
+    return bound >= S_INT_MAX ? S_INT_MAX : (int)bound;
+}
+
 void Correction::addCharToCurrentWord(const int32_t c) {
     mWord[mOutputIndex] = c;
-    const unsigned short *primaryInputWord = mProximityInfo->getPrimaryInputWord();
-    calcEditDistanceOneStep(mEditDistanceTable, primaryInputWord, mInputLength,
-            mWord, mOutputIndex + 1);
+    // The rows from this char on are stale now. As most of the words traversed never get a
+    // final frequency, they are only calculated on demand by updateEditDistanceTable.
+    if (mEditDistanceRowCount > mOutputIndex) {
+        mEditDistanceRowCount = mOutputIndex;
+    }
+}
+
+void Correction::updateEditDistanceTable(const int outputLength) {
+    for (int i = mEditDistanceRowCount + 1; i <= outputLength; ++i) {
+        calcEditDistanceOneStep(mEditDistanceTable, mBaseLowerInputWord, mInputLength,
+                mWord, i, mDigraphCompositeGlyphs);
+    }
+    if (mEditDistanceRowCount < outputLength) {
+        mEditDistanceRowCount = outputLength;
+    }
+}
+
+// Whether c is the glyph for the digraph the user typed at the current input index.
+bool Correction::isDigraphCompositeGlyph(const int32_t c) const {
+    return mDigraphCompositeGlyphs && mInputIndex < mInputLength - 1
+            && mDigraphCompositeGlyphs[mInputIndex] == latin_tolower(c);
 }
 
 // TODO: inline?
@@ -495,6 +544,11 @@ Correction::CorrectionType Correction::processCharAndCalcState(
         mMatching = true;
         ++mEquivalentCharCount;
         mDistances[mOutputIndex] = mProximityInfo->getNormalizedSquaredDistance(mInputIndex, 0);
+        if (isDigraphCompositeGlyph(c)) {
+            // Both chars of the digraph are matched to c: skip the second one for free.
+            ++mDigraphCount;
+            incrementInputIndex();
+        }
     } else if (ProximityInfo::NEAR_PROXIMITY_CHAR == matchedProximityCharId) {
         mProximityMatching = true;
         ++mProximityCount;
@@ -624,7 +678,10 @@ inline static bool isUpperCase(unsigned short c) {
 int Correction::RankingAlgorithm::calculateFinalFreq(const int inputIndex, const int outputIndex,
         const int freq, int* editDistanceTable, const Correction* correction) {
     const int excessivePos = correction->getExcessivePos();
-    const int inputLength = correction->mInputLength;
+    // A digraph matched to a single char counts as one input char, so that the word gets the
+    // same score as if the user had typed that char.
+    const int digraphCount = correction->mDigraphCount;
+    const int inputLength = correction->mInputLength - digraphCount;
     const int typedLetterMultiplier = correction->TYPED_LETTER_MULTIPLIER;
     const int fullWordMultiplier = correction->FULL_WORD_MULTIPLIER;
     const ProximityInfo *proximityInfo = correction->mProximityInfo;
@@ -640,8 +697,8 @@ int Correction::RankingAlgorithm::calculateFinalFreq(const int inputIndex, const
     }
 
     // TODO: find more robust way
-    bool sameLength = lastCharExceeded ? (inputLength == inputIndex + 2)
-            : (inputLength == inputIndex + 1);
+    bool sameLength = lastCharExceeded ? (inputLength == inputIndex - digraphCount + 2)
+            : (inputLength == inputIndex - digraphCount + 1);
 
     // TODO: use mExcessiveCount
     const int matchCount = inputLength - correction->mProximityCount - excessiveCount;
@@ -650,7 +707,7 @@ int Correction::RankingAlgorithm::calculateFinalFreq(const int inputIndex, const
     const bool skipped = skippedCount > 0;
 
     const int quoteDiffCount = max(0, getQuoteCount(word, outputIndex + 1)
-            - getQuoteCount(proximityInfo->getPrimaryInputWord(), inputLength));
+            - getQuoteCount(proximityInfo->getPrimaryInputWord(), correction->mInputLength));
 
     // TODO: Calculate edit distance for transposed and excessive
     int ed = 0;
@@ -661,7 +718,8 @@ int Correction::RankingAlgorithm::calculateFinalFreq(const int inputIndex, const
     // TODO: Optimize this.
     // TODO: Ignoring edit distance for transposed char, for now
     if (transposedCount == 0 && (proximityMatchedCount > 0 || skipped || excessiveCount > 0)) {
-        ed = getCurrentEditDistance(editDistanceTable, inputLength, outputIndex + 1);
+        ed = getCurrentEditDistance(editDistanceTable, correction->mInputLength,
+                outputIndex + 1);
         const int matchWeight = powerIntCapped(typedLetterMultiplier,
                 max(inputLength, outputIndex + 1) - ed);
         multiplyIntCapped(matchWeight, &finalFreq);
@@ -845,6 +903,35 @@ int Correction::RankingAlgorithm::calculateFinalFreq(const int inputIndex, const
     return finalFreq;
 }
 
+// Computes the product of every promotion calculateFinalFreq may apply for this input length,
+// ignoring all demotions. All the arithmetic in calculateFinalFreq rounds down or caps, so the
+// result multiplied by a unigram frequency is an upper bound of the final frequency.
+// - The match weight is at most T^(min(inputLength, outputLength)) because the edit distance is
+//   at least the difference of lengths, and there is at most one more T or
+//   WORDS_WITH_JUST_ONE_CORRECTION_PROMOTION_RATE for a single correction.
+// - Each proximity char consumes an input char, so there are at most inputLength more T's, and
+//   as many ZERO_DISTANCE_PROMOTION_RATE for the touch position calibration.
+// - Then come the full exact match, the no correction, the match-skip and the full word
+//   promotions.
+/* static */
+double Correction::RankingAlgorithm::calcMaxFinalFreqRate(const int inputLength,
+        const Correction* correction) {
+    const double typedLetterMultiplier = correction->TYPED_LETTER_MULTIPLIER;
+    double rate = 1.0;
+    for (int i = 0; i < inputLength; ++i) {
+        rate *= typedLetterMultiplier * typedLetterMultiplier;
+        if (CALIBRATE_SCORE_BY_TOUCH_COORDINATES) {
+            rate *= ZERO_DISTANCE_PROMOTION_RATE / 100.0;
+        }
+    }
+    rate *= max(typedLetterMultiplier, WORDS_WITH_JUST_ONE_CORRECTION_PROMOTION_RATE / 100.0);
+    rate *= 255;
+    rate *= FULL_MATCHED_WORDS_PROMOTION_RATE / 100.0;
+    rate *= WORDS_WITH_MATCH_SKIP_PROMOTION_RATE / 100.0;
+    rate *= correction->FULL_WORD_MULTIPLIER;
+    return rate;
+}
+
 /* static */
 int Correction::RankingAlgorithm::calcFreqForSplitTwoWords(
         const int firstFreq, const int secondFreq, const Correction* correction,
@@ -40,6 +40,10 @@ public:
     Correction(const int typedLetterMultiplier, const int fullWordMultiplier);
     void initCorrection(
             const ProximityInfo *pi, const int inputLength, const int maxWordLength);
+    // compositeGlyphs holds, for each input index, the glyph the digraph starting there stands
+    // for, or 0. A digraph is then matched to its glyph in the dictionary as if the user had
+    // typed that glyph. Pass NULL to match every input char on its own, which is the default.
+    void setDigraphCompositeGlyphs(const int *compositeGlyphs);
     void initCorrectionState(const int rootPos, const int childCount, const bool traverseAll);
 
     // TODO: remove
@@ -73,6 +77,10 @@ public:
 
     bool needsToPrune() const;
 
+    // Returns an upper bound of the final frequency of any word whose unigram frequency is
+    // not above maxFreq, whatever the corrections needed to reach it.
+    int getFinalFreqUpperBound(const int maxFreq) const;
+
     int getFreqForSplitTwoWords(
             const int firstFreq, const int secondFreq, const unsigned short *word);
     int getFinalFreq(const int freq, unsigned short **word, int* wordLength);
@@ -100,9 +108,11 @@ private:
     inline bool needsToTraverseAllNodes();
     inline void startToTraverseAllNodes();
     inline bool isQuote(const unsigned short c);
+    inline bool isDigraphCompositeGlyph(const int32_t c) const;
     inline CorrectionType processSkipChar(
             const int32_t c, const bool isTerminal, const bool inputIndexIncremented);
     inline void addCharToCurrentWord(const int32_t c);
+    inline void updateEditDistanceTable(const int outputLength);
 
     const int TYPED_LETTER_MULTIPLIER;
     const int FULL_WORD_MULTIPLIER;
@@ -112,10 +122,13 @@ private:
     int mMaxEditDistance;
     int mMaxDepth;
     int mInputLength;
+    // The highest possible ratio of a final frequency to its unigram frequency for this input
+    double mMaxFinalFreqRate;
     int mSpaceProximityPos;
     int mMissingSpacePos;
     int mTerminalInputIndex;
     int mTerminalOutputIndex;
+    const int *mDigraphCompositeGlyphs;
 
     // The following arrays are state buffer.
     unsigned short mWord[MAX_WORD_LENGTH_INTERNAL];
@@ -124,6 +137,10 @@ private:
     // Edit distance calculation requires a buffer with (N+1)^2 length for the input length N.
     // Caveat: Do not create multiple tables per thread as this table eats up RAM a lot.
     int mEditDistanceTable[(MAX_WORD_LENGTH_INTERNAL + 1) * (MAX_WORD_LENGTH_INTERNAL + 1)];
+    // The number of chars of mWord whose rows in the table are up to date
+    int mEditDistanceRowCount;
+    // The input in base lower case, which the edit distance compares every output char with
+    unsigned short mBaseLowerInputWord[MAX_WORD_LENGTH_INTERNAL];
 
     CorrectionState mCorrectionStates[MAX_WORD_LENGTH_INTERNAL];
 
@@ -137,6 +154,8 @@ private:
     int mExcessiveCount;
     int mTransposedCount;
     int mSkippedCount;
+    // The number of digraphs matched to a single char, which count as one input char each
+    int mDigraphCount;
 
     int mTransposedPos;
     int mExcessivePos;
@@ -156,6 +175,7 @@ private:
                 const int freq, int *editDistanceTable, const Correction* correction);
         static int calcFreqForSplitTwoWords(const int firstFreq, const int secondFreq,
                 const Correction* correction, const unsigned short *word);
+        static double calcMaxFinalFreqRate(const int inputLength, const Correction* correction);
     };
 };
 } // namespace latinime
@@ -34,6 +34,7 @@ struct CorrectionState {
     uint8_t mTransposedCount;
     uint8_t mExcessiveCount;
     uint8_t mSkippedCount;
+    uint8_t mDigraphCount;
 
     int8_t mTransposedPos;
     int8_t mExcessivePos;
@@ -69,6 +70,7 @@ inline static void initCorrectionState(CorrectionState *state, const int rootPos
     state->mTransposedCount = 0;
     state->mExcessiveCount = 0;
     state->mSkippedCount = 0;
+    state->mDigraphCount = 0;
 
     state->mLastCharExceeded = false;
 
@@ -160,12 +160,16 @@ static void dumpWord(const unsigned short* word, const int length) {
 // TODO: remove this constant when the switch to the new dict format is over
 #define DICTIONARY_HEADER_SIZE 2
 #define NEW_DICTIONARY_HEADER_SIZE 5
+// The number of levels of the trie that are read through when a dictionary is opened, so
+// that the first lookups do not have to fault their pages in.
+#define PREWARM_DEPTH 3
 #define NOT_VALID_WORD -99
 #define NOT_A_CHARACTER -1
 #define NOT_A_DISTANCE -1
 #define EQUIVALENT_CHAR_WITHOUT_DISTANCE_INFO -2
 #define PROXIMITY_CHAR_WITHOUT_DISTANCE_INFO -3
 #define NOT_A_INDEX -1
+#define NOT_A_FREQUENCY -1
 
 #define KEYCODE_SPACE ' '
 
@@ -202,9 +206,9 @@ static void dumpWord(const unsigned short* word, const int length) {
 
 #define MAX_DEPTH_MULTIPLIER 3
 
-// TODO: Reduce this constant if possible; check the maximum number of umlauts in the same German
-// word in the dictionary
-#define DEFAULT_MAX_UMLAUT_SEARCH_DEPTH 5
+// The char groups whose subtree max frequency is cached at load time are those less deep than
+// this. The top levels of the trie are where cutting a subtree saves the most.
+#define MAX_DEPTH_FOR_SUBTREE_FREQ_CACHE 3
 
 // Minimum suggest depth for one word for all cases except for missing space suggestions.
 #define MIN_SUGGEST_DEPTH 1
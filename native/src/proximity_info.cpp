@@ -43,12 +43,13 @@ ProximityInfo::ProximityInfo(const int maxProximityCharsSize, const int keyboard
           KEYBOARD_HEIGHT(keyboardHeight), GRID_WIDTH(gridWidth), GRID_HEIGHT(gridHeight),
           CELL_WIDTH((keyboardWidth + gridWidth - 1) / gridWidth),
           CELL_HEIGHT((keyboardHeight + gridHeight - 1) / gridHeight),
-          KEY_COUNT(min(keyCount, MAX_KEY_COUNT_IN_A_KEYBOARD)),
+          KEY_COUNT(max(keyCount, 0)),
           HAS_TOUCH_POSITION_CORRECTION_DATA(keyCount > 0 && keyXCoordinates && keyYCoordinates
                   && keyWidths && keyHeights && keyCharCodes && sweetSpotCenterXs
                   && sweetSpotCenterYs && sweetSpotRadii),
           mInputXCoordinates(NULL), mInputYCoordinates(NULL),
-          mTouchPositionCorrectionEnabled(false) {
+          mTouchPositionCorrectionEnabled(false), mCachedInputLength(0),
+          mCachedInputHasCoordinates(false) {
     const int proximityGridLength = GRID_WIDTH * GRID_HEIGHT * MAX_PROXIMITY_CHARS_SIZE;
     mProximityCharsArray = new uint32_t[proximityGridLength];
     if (DEBUG_PROXIMITY_INFO) {
@@ -62,7 +63,16 @@ ProximityInfo::ProximityInfo(const int maxProximityCharsSize, const int keyboard
     for (int i = 0; i < normalizedSquaredDistancesLength; ++i) {
         mNormalizedSquaredDistances[i] = NOT_A_DISTANCE;
     }
+    mCachedInputCodes = new int[normalizedSquaredDistancesLength];
 
+    mKeyXCoordinates = new int32_t[KEY_COUNT];
+    mKeyYCoordinates = new int32_t[KEY_COUNT];
+    mKeyWidths = new int32_t[KEY_COUNT];
+    mKeyHeights = new int32_t[KEY_COUNT];
+    mKeyCharCodes = new int32_t[KEY_COUNT];
+    mSweetSpotCenterXs = new float[KEY_COUNT];
+    mSweetSpotCenterYs = new float[KEY_COUNT];
+    mSweetSpotRadii = new float[KEY_COUNT];
     copyOrFillZero(mKeyXCoordinates, keyXCoordinates, KEY_COUNT * sizeof(mKeyXCoordinates[0]));
     copyOrFillZero(mKeyYCoordinates, keyYCoordinates, KEY_COUNT * sizeof(mKeyYCoordinates[0]));
     copyOrFillZero(mKeyWidths, keyWidths, KEY_COUNT * sizeof(mKeyWidths[0]));
@@ -78,18 +88,45 @@ ProximityInfo::ProximityInfo(const int maxProximityCharsSize, const int keyboard
 }
 
 // Build the reversed look up table from the char code to the index in mKeyXCoordinates,
-// mKeyYCoordinates, mKeyWidths, mKeyHeights, mKeyCharCodes.
+// mKeyYCoordinates, mKeyWidths, mKeyHeights, mKeyCharCodes. It is a hash table so that it
+// stays small for the char codes of any script.
 void ProximityInfo::initializeCodeToKeyIndex() {
-    memset(mCodeToKeyIndex, -1, (MAX_CHAR_CODE + 1) * sizeof(mCodeToKeyIndex[0]));
+    int size = 1;
+    while (size < KEY_COUNT * 2) {
+        size <<= 1;
+    }
+    mCodeToKeyIndexMask = size - 1;
+    mCodeToKeyIndex = new CodeToKeyIndexEntry[size];
+    for (int i = 0; i < size; ++i) {
+        mCodeToKeyIndex[i].mCode = NOT_A_CHARACTER;
+        mCodeToKeyIndex[i].mKeyIndex = NOT_A_INDEX;
+    }
     for (int i = 0; i < KEY_COUNT; ++i) {
         const int code = mKeyCharCodes[i];
-        if (0 <= code && code <= MAX_CHAR_CODE) {
-            mCodeToKeyIndex[code] = i;
+        // Negative codes are for the functional keys, like shift or delete.
+        if (code < 0) continue;
+        int slot = code & mCodeToKeyIndexMask;
+        while (mCodeToKeyIndex[slot].mCode != NOT_A_CHARACTER
+                && mCodeToKeyIndex[slot].mCode != code) {
+            slot = (slot + 1) & mCodeToKeyIndexMask;
         }
+        // The last key with a given code wins.
+        mCodeToKeyIndex[slot].mCode = code;
+        mCodeToKeyIndex[slot].mKeyIndex = i;
     }
 }
 
 ProximityInfo::~ProximityInfo() {
+    delete[] mCodeToKeyIndex;
+    delete[] mSweetSpotRadii;
+    delete[] mSweetSpotCenterYs;
+    delete[] mSweetSpotCenterXs;
+    delete[] mKeyCharCodes;
+    delete[] mKeyHeights;
+    delete[] mKeyWidths;
+    delete[] mKeyYCoordinates;
+    delete[] mKeyXCoordinates;
+    delete[] mCachedInputCodes;
     delete[] mNormalizedSquaredDistances;
     delete[] mProximityCharsArray;
 }
@@ -124,11 +161,25 @@ void ProximityInfo::setInputParams(const int* inputCodes, const int inputLength,
     mTouchPositionCorrectionEnabled =
             HAS_TOUCH_POSITION_CORRECTION_DATA && xCoordinates && yCoordinates;
     mInputLength = inputLength;
-    for (int i = 0; i < inputLength; ++i) {
+    // Usually, the input only got one more char since the last call: skip the positions that
+    // did not change.
+    const bool hasCoordinates = xCoordinates && yCoordinates;
+    int firstChangedIndex = 0;
+    if (hasCoordinates == mCachedInputHasCoordinates) {
+        const int cachedLength = min(inputLength, mCachedInputLength);
+        while (firstChangedIndex < cachedLength && isSameInputAsCachedAt(
+                firstChangedIndex, inputCodes, xCoordinates, yCoordinates)) {
+            ++firstChangedIndex;
+        }
+    }
+    mCachedInputHasCoordinates = hasCoordinates;
+    mCachedInputLength = inputLength;
+    for (int i = firstChangedIndex; i < inputLength; ++i) {
+        cacheInputAt(i, inputCodes, xCoordinates, yCoordinates);
         mPrimaryInputWord[i] = getPrimaryCharAt(i);
     }
     mPrimaryInputWord[inputLength] = 0;
-    for (int i = 0; i < mInputLength; ++i) {
+    for (int i = firstChangedIndex; i < mInputLength; ++i) {
         const int *proximityChars = getProximityCharsAt(i);
         for (int j = 0; j < MAX_PROXIMITY_CHARS_SIZE && proximityChars[j] > 0; ++j) {
             const int currentChar = proximityChars[j];
@@ -146,6 +197,29 @@ void ProximityInfo::setInputParams(const int* inputCodes, const int inputLength,
     }
 }
 
+// Whether the input at index is the same as in the cache, so that it has the same distances.
+inline bool ProximityInfo::isSameInputAsCachedAt(const int index, const int *inputCodes,
+        const int *xCoordinates, const int *yCoordinates) const {
+    const int start = index * MAX_PROXIMITY_CHARS_SIZE;
+    if (memcmp(mCachedInputCodes + start, inputCodes + start,
+            MAX_PROXIMITY_CHARS_SIZE * sizeof(inputCodes[0]))) {
+        return false;
+    }
+    return !xCoordinates || (mCachedInputXCoordinates[index] == xCoordinates[index]
+            && mCachedInputYCoordinates[index] == yCoordinates[index]);
+}
+
+inline void ProximityInfo::cacheInputAt(const int index, const int *inputCodes,
+        const int *xCoordinates, const int *yCoordinates) {
+    const int start = index * MAX_PROXIMITY_CHARS_SIZE;
+    memcpy(mCachedInputCodes + start, inputCodes + start,
+            MAX_PROXIMITY_CHARS_SIZE * sizeof(inputCodes[0]));
+    if (xCoordinates) {
+        mCachedInputXCoordinates[index] = xCoordinates[index];
+        mCachedInputYCoordinates[index] = yCoordinates[index];
+    }
+}
+
 inline float square(const float x) { return x * x; }
 
 float ProximityInfo::calculateNormalizedSquaredDistance(
@@ -167,11 +241,16 @@ int ProximityInfo::getKeyIndex(const int c) const {
         // We do not have the coordinate data
         return NOT_A_INDEX;
     }
-    const unsigned short baseLowerC = Dictionary::toBaseLowerCase(c);
-    if (baseLowerC > MAX_CHAR_CODE) {
-        return NOT_A_INDEX;
+    const int baseLowerC = Dictionary::toBaseLowerCase(c);
+    // The table is at most half full, so this always reaches an empty slot.
+    int slot = baseLowerC & mCodeToKeyIndexMask;
+    while (mCodeToKeyIndex[slot].mCode != NOT_A_CHARACTER) {
+        if (mCodeToKeyIndex[slot].mCode == baseLowerC) {
+            return mCodeToKeyIndex[slot].mKeyIndex;
+        }
+        slot = (slot + 1) & mCodeToKeyIndexMask;
     }
-    return mCodeToKeyIndex[baseLowerC];
+    return NOT_A_INDEX;
 }
 
 float ProximityInfo::calculateSquaredDistanceFromSweetSpotCenter(
@@ -282,7 +361,5 @@ bool ProximityInfo::sameAsTyped(const unsigned short *word, int length) const {
 
 const int ProximityInfo::NORMALIZED_SQUARED_DISTANCE_SCALING_FACTOR_LOG_2;
 const int ProximityInfo::NORMALIZED_SQUARED_DISTANCE_SCALING_FACTOR;
-const int ProximityInfo::MAX_KEY_COUNT_IN_A_KEYBOARD;
-const int ProximityInfo::MAX_CHAR_CODE;
 
 } // namespace latinime
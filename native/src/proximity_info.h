@@ -69,13 +69,18 @@ public:
     }
 
 private:
-    // The max number of the keys in one keyboard layout
-    static const int MAX_KEY_COUNT_IN_A_KEYBOARD = 64;
-    // The upper limit of the char code in mCodeToKeyIndex
-    static const int MAX_CHAR_CODE = 127;
+    // An entry of the hash table from the char code of a key to its index
+    struct CodeToKeyIndexEntry {
+        int mCode;
+        int mKeyIndex;
+    };
 
     int getStartIndexFromCoordinates(const int x, const int y) const;
     void initializeCodeToKeyIndex();
+    bool isSameInputAsCachedAt(const int index, const int *inputCodes,
+            const int *xCoordinates, const int *yCoordinates) const;
+    void cacheInputAt(const int index, const int *inputCodes,
+            const int *xCoordinates, const int *yCoordinates);
     float calculateNormalizedSquaredDistance(const int keyIndex, const int inputIndex) const;
     float calculateSquaredDistanceFromSweetSpotCenter(
             const int keyIndex, const int inputIndex) const;
@@ -101,17 +106,29 @@ private:
     bool mTouchPositionCorrectionEnabled;
     uint32_t *mProximityCharsArray;
     int *mNormalizedSquaredDistances;
-    int32_t mKeyXCoordinates[MAX_KEY_COUNT_IN_A_KEYBOARD];
-    int32_t mKeyYCoordinates[MAX_KEY_COUNT_IN_A_KEYBOARD];
-    int32_t mKeyWidths[MAX_KEY_COUNT_IN_A_KEYBOARD];
-    int32_t mKeyHeights[MAX_KEY_COUNT_IN_A_KEYBOARD];
-    int32_t mKeyCharCodes[MAX_KEY_COUNT_IN_A_KEYBOARD];
-    float mSweetSpotCenterXs[MAX_KEY_COUNT_IN_A_KEYBOARD];
-    float mSweetSpotCenterYs[MAX_KEY_COUNT_IN_A_KEYBOARD];
-    float mSweetSpotRadii[MAX_KEY_COUNT_IN_A_KEYBOARD];
+    // The following arrays have KEY_COUNT elements.
+    int32_t *mKeyXCoordinates;
+    int32_t *mKeyYCoordinates;
+    int32_t *mKeyWidths;
+    int32_t *mKeyHeights;
+    int32_t *mKeyCharCodes;
+    float *mSweetSpotCenterXs;
+    float *mSweetSpotCenterYs;
+    float *mSweetSpotRadii;
     int mInputLength;
     unsigned short mPrimaryInputWord[MAX_WORD_LENGTH_INTERNAL];
-    int mCodeToKeyIndex[MAX_CHAR_CODE + 1];
+    // An open addressing hash table with linear probing, whose size is a power of two at least
+    // twice the key count. The char codes of a layout are mostly consecutive, so they are used
+    // as their own hash.
+    CodeToKeyIndexEntry *mCodeToKeyIndex;
+    int mCodeToKeyIndexMask;
+    // A copy of the input of the previous call to setInputParams, whose distances are still
+    // in mNormalizedSquaredDistances. Only the positions that changed since are computed again.
+    int mCachedInputLength;
+    bool mCachedInputHasCoordinates;
+    int *mCachedInputCodes;
+    int mCachedInputXCoordinates[MAX_WORD_LENGTH_INTERNAL];
+    int mCachedInputYCoordinates[MAX_WORD_LENGTH_INTERNAL];
 };
 
 } // namespace latinime
@@ -16,6 +16,7 @@
 */
 
 #include <assert.h>
+#include <stdlib.h>
 #include <string.h>
 
 #define LOG_TAG "LatinIME: unigram_dictionary.cpp"
@@ -29,9 +30,9 @@
 namespace latinime {
 
 const UnigramDictionary::digraph_t UnigramDictionary::GERMAN_UMLAUT_DIGRAPHS[] =
-        { { 'a', 'e' },
-        { 'o', 'e' },
-        { 'u', 'e' } };
+        { { 'a', 'e', 0xE4 }, // U+00E4 LATIN SMALL LETTER A WITH DIAERESIS
+        { 'o', 'e', 0xF6 },   // U+00F6 LATIN SMALL LETTER O WITH DIAERESIS
+        { 'u', 'e', 0xFC } }; // U+00FC LATIN SMALL LETTER U WITH DIAERESIS
 
 // TODO: check the header
 UnigramDictionary::UnigramDictionary(const uint8_t* const streamStart, int typedLetterMultiplier,
@@ -43,27 +44,135 @@ UnigramDictionary::UnigramDictionary(const uint8_t* const streamStart, int typed
     TYPED_LETTER_MULTIPLIER(typedLetterMultiplier), FULL_WORD_MULTIPLIER(fullWordMultiplier),
       // TODO : remove this variable.
     ROOT_POS(0),
-    BYTES_IN_ONE_CHAR(MAX_PROXIMITY_CHARS * sizeof(int)),
-    MAX_UMLAUT_SEARCH_DEPTH(DEFAULT_MAX_UMLAUT_SEARCH_DEPTH) {
+    HAS_SUBTREE_MAX_FREQUENCIES(BinaryFormat::hasSubtreeMaxFrequencies(streamStart)),
+    BYTES_IN_ONE_CHAR(MAX_PROXIMITY_CHARS * sizeof(int)) {
     if (DEBUG_DICT) {
         LOGI("UnigramDictionary - constructor");
     }
     mCorrection = new Correction(typedLetterMultiplier, fullWordMultiplier);
+    mSuggestionQueue = new WordsPriorityQueue(MAX_WORDS, MAX_WORD_LENGTH,
+            false /* shorterWordsFirst */);
+    mMergesDuplicateWords = false;
+    mSubtreeFreqCache = 0;
+    mSubtreeFreqCacheSize = 0;
+    // Dictionaries that store the subtree max frequencies need no cache.
+    if (!HAS_SUBTREE_MAX_FREQUENCIES) {
+        initSubtreeFreqCache();
+    }
 }
 
 UnigramDictionary::~UnigramDictionary() {
     delete mCorrection;
+    delete mSuggestionQueue;
+    delete[] mSubtreeFreqCache;
+}
+
+// Returns the number of char groups less deep than MAX_DEPTH_FOR_SUBTREE_FREQ_CACHE in the node
+// at nodePos and its descendants.
+int UnigramDictionary::countCharGroupsForSubtreeFreqCache(const int nodePos,
+        const int depth) const {
+    if (depth >= MAX_DEPTH_FOR_SUBTREE_FREQ_CACHE) return 0;
+    int pos = nodePos;
+    int count = BinaryFormat::getGroupCountAndForwardPointer(DICT_ROOT, &pos);
+    int total = count;
+    for (; count > 0; --count) {
+        const uint8_t flags = BinaryFormat::getFlagsAndForwardPointer(DICT_ROOT, &pos);
+        BinaryFormat::getCharCodeAndForwardPointer(DICT_ROOT, &pos);
+        if (FLAG_HAS_MULTIPLE_CHARS & flags) {
+            pos = BinaryFormat::skipOtherCharacters(DICT_ROOT, pos);
+        }
+        pos = BinaryFormat::skipFrequency(flags, pos);
+        const int childrenPos = BinaryFormat::readChildrenPosition(DICT_ROOT, flags, pos);
+        if (-1 != childrenPos) {
+            total += countCharGroupsForSubtreeFreqCache(childrenPos, depth + 1);
+        }
+        pos = BinaryFormat::skipChildrenPosAndAttributes(DICT_ROOT, flags, pos);
+    }
+    return total;
+}
+
+// Walks the node at nodePos and all its descendants, records the max frequency of the char
+// groups that are shallow enough in the cache, and returns the max frequency of the node.
+int UnigramDictionary::fillSubtreeFreqCache(const int nodePos, const int depth) {
+    int pos = nodePos;
+    int maxFreq = 0;
+    for (int count = BinaryFormat::getGroupCountAndForwardPointer(DICT_ROOT, &pos); count > 0;
+            --count) {
+        const int charGroupPos = pos;
+        const uint8_t flags = BinaryFormat::getFlagsAndForwardPointer(DICT_ROOT, &pos);
+        BinaryFormat::getCharCodeAndForwardPointer(DICT_ROOT, &pos);
+        if (FLAG_HAS_MULTIPLE_CHARS & flags) {
+            pos = BinaryFormat::skipOtherCharacters(DICT_ROOT, pos);
+        }
+        int groupMaxFreq = (FLAG_IS_TERMINAL & flags)
+                ? BinaryFormat::readFrequencyWithoutMovingPointer(DICT_ROOT, pos) : 0;
+        pos = BinaryFormat::skipFrequency(flags, pos);
+        const int childrenPos = BinaryFormat::readChildrenPosition(DICT_ROOT, flags, pos);
+        if (-1 != childrenPos) {
+            const int childrenMaxFreq = fillSubtreeFreqCache(childrenPos, depth + 1);
+            groupMaxFreq = max(groupMaxFreq, childrenMaxFreq);
+        }
+        pos = BinaryFormat::skipChildrenPosAndAttributes(DICT_ROOT, flags, pos);
+        if (depth < MAX_DEPTH_FOR_SUBTREE_FREQ_CACHE) {
+            mSubtreeFreqCache[mSubtreeFreqCacheSize].mPos = charGroupPos;
+            mSubtreeFreqCache[mSubtreeFreqCacheSize].mMaxFreq = groupMaxFreq;
+            ++mSubtreeFreqCacheSize;
+        }
+        maxFreq = max(maxFreq, groupMaxFreq);
+    }
+    return maxFreq;
+}
+
+/* static */
+int UnigramDictionary::compareSubtreeFreqPositions(const void *left, const void *right) {
+    return ((const SubtreeFreq*)left)->mPos - ((const SubtreeFreq*)right)->mPos;
+}
+
+void UnigramDictionary::initSubtreeFreqCache() {
+    const int size = countCharGroupsForSubtreeFreqCache(ROOT_POS, 0);
+    mSubtreeFreqCache = new SubtreeFreq[size];
+    mSubtreeFreqCacheSize = 0;
+    fillSubtreeFreqCache(ROOT_POS, 0);
+    qsort(mSubtreeFreqCache, mSubtreeFreqCacheSize, sizeof(mSubtreeFreqCache[0]),
+            compareSubtreeFreqPositions);
+    if (DEBUG_DICT) {
+        LOGI("Cached the subtree max frequency of %d char groups", mSubtreeFreqCacheSize);
+    }
 }
 
-static inline unsigned int getCodesBufferSize(const int* codes, const int codesSize,
-        const int MAX_PROXIMITY_CHARS) {
-    return sizeof(*codes) * MAX_PROXIMITY_CHARS * codesSize;
+// Returns the max frequency in the subtree of the char group at charGroupPos, or
+// NOT_A_FREQUENCY if it is neither stored in the dictionary nor in the cache.
+int UnigramDictionary::getSubtreeMaxFreq(const int charGroupPos) const {
+    if (HAS_SUBTREE_MAX_FREQUENCIES) {
+        int pos = charGroupPos;
+        const uint8_t flags = BinaryFormat::getFlagsAndForwardPointer(DICT_ROOT, &pos);
+        BinaryFormat::getCharCodeAndForwardPointer(DICT_ROOT, &pos);
+        if (FLAG_HAS_MULTIPLE_CHARS & flags) {
+            pos = BinaryFormat::skipOtherCharacters(DICT_ROOT, pos);
+        }
+        return BinaryFormat::readSubtreeMaxFrequencyWithoutMovingPointer(DICT_ROOT, flags, pos);
+    }
+    int low = 0;
+    int high = mSubtreeFreqCacheSize - 1;
+    while (low <= high) {
+        const int middle = (low + high) / 2;
+        const int middlePos = mSubtreeFreqCache[middle].mPos;
+        if (middlePos == charGroupPos) return mSubtreeFreqCache[middle].mMaxFreq;
+        if (middlePos < charGroupPos) {
+            low = middle + 1;
+        } else {
+            high = middle - 1;
+        }
+    }
+    return NOT_A_FREQUENCY;
 }
 
-bool UnigramDictionary::isDigraph(const int* codes, const int i, const int codesSize) const {
+// Returns the composite glyph of the digraph starting at index i, or 0 if there is none.
+int UnigramDictionary::getDigraphCompositeGlyph(const int* codes, const int i,
+        const int codesSize) const {
 
     // There can't be a digraph if we don't have at least 2 characters to examine
-    if (i + 2 > codesSize) return false;
+    if (i + 2 > codesSize) return 0;
 
     // Search for the first char of some digraph
     int lastDigraphIndex = -1;
@@ -73,89 +182,61 @@ bool UnigramDictionary::isDigraph(const int* codes, const int i, const int codes
         if (thisChar == GERMAN_UMLAUT_DIGRAPHS[lastDigraphIndex].first) break;
     }
     // No match: return early
-    if (lastDigraphIndex < 0) return false;
+    if (lastDigraphIndex < 0) return 0;
 
     // It's an interesting digraph if the second char matches too.
-    return GERMAN_UMLAUT_DIGRAPHS[lastDigraphIndex].second == codes[(i + 1) * MAX_PROXIMITY_CHARS];
-}
-
-// Mostly the same arguments as the non-recursive version, except:
-// codes is the original value. It points to the start of the work buffer, and gets passed as is.
-// codesSize is the size of the user input (thus, it is the size of codesSrc).
-// codesDest is the current point in the work buffer.
-// codesSrc is the current point in the user-input, original, content-unmodified buffer.
-// codesRemain is the remaining size in codesSrc.
-void UnigramDictionary::getWordWithDigraphSuggestionsRec(ProximityInfo *proximityInfo,
-        const int *xcoordinates, const int* ycoordinates, const int *codesBuffer,
-        const int codesBufferSize, const int flags, const int* codesSrc, const int codesRemain,
-        const int currentDepth, int* codesDest, unsigned short* outWords, int* frequencies) {
-
-    if (currentDepth < MAX_UMLAUT_SEARCH_DEPTH) {
-        for (int i = 0; i < codesRemain; ++i) {
-            if (isDigraph(codesSrc, i, codesRemain)) {
-                // Found a digraph. We will try both spellings. eg. the word is "pruefen"
-
-                // Copy the word up to the first char of the digraph, then continue processing
-                // on the remaining part of the word, skipping the second char of the digraph.
-                // In our example, copy "pru" and continue running on "fen"
-                // Make i the index of the second char of the digraph for simplicity. Forgetting
-                // to do that results in an infinite recursion so take care!
-                ++i;
-                memcpy(codesDest, codesSrc, i * BYTES_IN_ONE_CHAR);
-                getWordWithDigraphSuggestionsRec(proximityInfo, xcoordinates, ycoordinates,
-                        codesBuffer, codesBufferSize, flags,
-                        codesSrc + (i + 1) * MAX_PROXIMITY_CHARS, codesRemain - i - 1,
-                        currentDepth + 1, codesDest + i * MAX_PROXIMITY_CHARS, outWords,
-                        frequencies);
-
-                // Copy the second char of the digraph in place, then continue processing on
-                // the remaining part of the word.
-                // In our example, after "pru" in the buffer copy the "e", and continue on "fen"
-                memcpy(codesDest + i * MAX_PROXIMITY_CHARS, codesSrc + i * MAX_PROXIMITY_CHARS,
-                        BYTES_IN_ONE_CHAR);
-                getWordWithDigraphSuggestionsRec(proximityInfo, xcoordinates, ycoordinates,
-                        codesBuffer, codesBufferSize, flags, codesSrc + i * MAX_PROXIMITY_CHARS,
-                        codesRemain - i, currentDepth + 1, codesDest + i * MAX_PROXIMITY_CHARS,
-                        outWords, frequencies);
-                return;
-            }
-        }
+    if (GERMAN_UMLAUT_DIGRAPHS[lastDigraphIndex].second != codes[(i + 1) * MAX_PROXIMITY_CHARS]) {
+        return 0;
     }
-
-    // If we come here, we hit the end of the word: let's check it against the dictionary.
-    // In our example, we'll come here once for "prufen" and then once for "pruefen".
-    // If the word contains several digraphs, we'll come it for the product of them.
-    // eg. if the word is "ueberpruefen" we'll test, in order, against
-    // "uberprufen", "uberpruefen", "ueberprufen", "ueberpruefen".
-    const unsigned int remainingBytes = BYTES_IN_ONE_CHAR * codesRemain;
-    if (0 != remainingBytes)
-        memcpy(codesDest, codesSrc, remainingBytes);
-
-    getWordSuggestions(proximityInfo, xcoordinates, ycoordinates, codesBuffer,
-            (codesDest - codesBuffer) / MAX_PROXIMITY_CHARS + codesRemain, outWords, frequencies,
-            flags);
+    return GERMAN_UMLAUT_DIGRAPHS[lastDigraphIndex].compositeGlyph;
 }
 
 int UnigramDictionary::getSuggestions(ProximityInfo *proximityInfo, const int *xcoordinates,
         const int *ycoordinates, const int *codes, const int codesSize, const int flags,
         unsigned short *outWords, int *frequencies) {
 
+    PROF_OPEN;
+    mSuggestionQueue->clear();
+    mMergesDuplicateWords = false;
     if (REQUIRES_GERMAN_UMLAUT_PROCESSING & flags)
-    { // Incrementally tune the word and try all possibilities
-        int codesBuffer[getCodesBufferSize(codes, codesSize, MAX_PROXIMITY_CHARS)];
-        getWordWithDigraphSuggestionsRec(proximityInfo, xcoordinates, ycoordinates, codesBuffer,
-                codesSize, flags, codes, codesSize, 0, codesBuffer, outWords, frequencies);
+    { // Match the digraphs to their glyphs in a single traversal of the dictionary
+        int compositeGlyphs[codesSize];
+        int shortCodesSize = codesSize;
+        for (int i = 0; i < codesSize; ++i) {
+            compositeGlyphs[i] = getDigraphCompositeGlyph(codes, i, codesSize);
+            if (0 != compositeGlyphs[i]) --shortCodesSize;
+        }
+        getWordSuggestions(proximityInfo, xcoordinates, ycoordinates, codes, codesSize,
+                outWords, frequencies, flags, compositeGlyphs);
+        if (shortCodesSize < codesSize) {
+            // Then look up the word spelled without the second char of any digraph, eg. "prufen"
+            // for "pruefen", so that the words spelled with the plain vowel get all the
+            // corrections and split words too. Only these two spellings are tried: the mixed ones
+            // like "ueberprufen", of which there are 2^n, are only reached through corrections.
+            // The words found by both passes are kept once, with their best frequency.
+            int shortCodes[shortCodesSize * MAX_PROXIMITY_CHARS];
+            int shortXCoordinates[shortCodesSize];
+            int shortYCoordinates[shortCodesSize];
+            int j = 0;
+            for (int i = 0; i < codesSize; ++i, ++j) {
+                memcpy(shortCodes + j * MAX_PROXIMITY_CHARS, codes + i * MAX_PROXIMITY_CHARS,
+                        BYTES_IN_ONE_CHAR);
+                shortXCoordinates[j] = xcoordinates[i];
+                shortYCoordinates[j] = ycoordinates[i];
+                if (0 != compositeGlyphs[i]) ++i;
+            }
+            mMergesDuplicateWords = true;
+            getWordSuggestions(proximityInfo, shortXCoordinates, shortYCoordinates, shortCodes,
+                    j, outWords, frequencies, flags, 0);
+        }
     } else { // Normal processing
         getWordSuggestions(proximityInfo, xcoordinates, ycoordinates, codes, codesSize,
-                outWords, frequencies, flags);
+                outWords, frequencies, flags, 0);
     }
 
     PROF_START(20);
-    // Get the word count
-    int suggestedWordsCount = 0;
-    while (suggestedWordsCount < MAX_WORDS && mFrequencies[suggestedWordsCount] > 0) {
-        suggestedWordsCount++;
-    }
+    // Sort the candidates once, and get the word count
+    const int suggestedWordsCount = mSuggestionQueue->outputSuggestions(frequencies, outWords);
 
     if (DEBUG_DICT) {
         LOGI("Returning %d words", suggestedWordsCount);
@@ -176,16 +257,14 @@ int UnigramDictionary::getSuggestions(ProximityInfo *proximityInfo, const int *x
 
 void UnigramDictionary::getWordSuggestions(ProximityInfo *proximityInfo,
         const int *xcoordinates, const int *ycoordinates, const int *codes, const int codesSize,
-        unsigned short *outWords, int *frequencies, const int flags) {
+        unsigned short *outWords, int *frequencies, const int flags,
+        const int *digraphCompositeGlyphs) {
 
-    PROF_OPEN;
     PROF_START(0);
     initSuggestions(
             proximityInfo, xcoordinates, ycoordinates, codes, codesSize, outWords, frequencies);
+    mCorrection->setDigraphCompositeGlyphs(digraphCompositeGlyphs);
     if (DEBUG_DICT) assert(codesSize == mInputLength);
-
-    const int maxDepth = min(mInputLength * MAX_DEPTH_MULTIPLIER, MAX_WORD_LENGTH);
-    mCorrection->initCorrection(mProximityInfo, mInputLength, maxDepth);
     PROF_END(0);
 
     const bool useFullEditDistance = USE_FULL_EDIT_DISTANCE & flags;
@@ -206,6 +285,18 @@ void UnigramDictionary::getWordSuggestions(ProximityInfo *proximityInfo,
     // Note: This line is intentionally left blank
     PROF_END(4);
 
+    getSplitWordsSuggestions(
+            proximityInfo, xcoordinates, ycoordinates, codesSize, useFullEditDistance);
+}
+
+void UnigramDictionary::getSplitWordsSuggestions(ProximityInfo *proximityInfo,
+        const int *xcoordinates, const int *ycoordinates, const int codesSize,
+        const bool useFullEditDistance) {
+    if (mInputLength >= MAX_WORD_LENGTH) return;
+    // Both kinds of split words are made of a prefix and a suffix of the input: look them up
+    // once for all the split positions.
+    initSplitWordsTable(mInputLength);
+
     PROF_START(5);
     // Suggestions with missing space
     if (SUGGEST_WORDS_WITH_MISSING_SPACE_CHARACTER
@@ -251,6 +342,8 @@ void UnigramDictionary::initSuggestions(ProximityInfo *proximityInfo, const int
     mInputLength = codesSize;
     proximityInfo->setInputParams(codes, codesSize, xCoordinates, yCoordinates);
     mProximityInfo = proximityInfo;
+    const int maxDepth = min(mInputLength * MAX_DEPTH_MULTIPLIER, MAX_WORD_LENGTH);
+    mCorrection->initCorrection(mProximityInfo, mInputLength, maxDepth);
 }
 
 static inline void registerNextLetter(unsigned short c, int *nextLetters, int nextLettersSize) {
@@ -259,7 +352,6 @@ static inline void registerNextLetter(unsigned short c, int *nextLetters, int ne
     }
 }
 
-// TODO: We need to optimize addWord by using STL or something
 // TODO: This needs to take an const unsigned short* and not tinker with its contents
 bool UnigramDictionary::addWord(unsigned short *word, int length, int frequency) {
     word[length] = 0;
@@ -276,46 +368,14 @@ bool UnigramDictionary::addWord(unsigned short *word, int length, int frequency)
         }
         return false;
     }
-
-    // Find the right insertion point
-    int insertAt = 0;
-    while (insertAt < MAX_WORDS) {
-        // TODO: How should we sort words with the same frequency?
-        if (frequency > mFrequencies[insertAt]) {
-            break;
-        }
-        insertAt++;
-    }
-    if (insertAt < MAX_WORDS) {
-        if (DEBUG_DICT) {
-#ifdef FLAG_DBG
-            char s[length + 1];
-            for (int i = 0; i <= length; i++) s[i] = word[i];
-            LOGI("Added word = %s, freq = %d, %d", s, frequency, S_INT_MAX);
-#endif
-        }
-        memmove((char*) mFrequencies + (insertAt + 1) * sizeof(mFrequencies[0]),
-               (char*) mFrequencies + insertAt * sizeof(mFrequencies[0]),
-               (MAX_WORDS - insertAt - 1) * sizeof(mFrequencies[0]));
-        mFrequencies[insertAt] = frequency;
-        memmove((char*) mOutputChars + (insertAt + 1) * MAX_WORD_LENGTH * sizeof(short),
-               (char*) mOutputChars + insertAt * MAX_WORD_LENGTH * sizeof(short),
-               (MAX_WORDS - insertAt - 1) * sizeof(short) * MAX_WORD_LENGTH);
-        unsigned short *dest = mOutputChars + insertAt * MAX_WORD_LENGTH;
-        while (length--) {
-            *dest++ = *word++;
-        }
-        *dest = 0; // NULL terminate
-        if (DEBUG_DICT) {
-            LOGI("Added word at %d", insertAt);
-        }
-        return true;
-    }
-    return false;
+    if (mMergesDuplicateWords) return mSuggestionQueue->pushUnique(frequency, word, length);
+    return mSuggestionQueue->push(frequency, word, length);
 }
 
 static const char QUOTE = '\'';
 static const char SPACE = ' ';
+// Marks a suffix of the input that was not looked up yet in the split words table
+static const int NOT_LOOKED_UP = -2;
 
 void UnigramDictionary::getSuggestionCandidates(const bool useFullEditDistance) {
     // TODO: Remove setCorrectionParams
@@ -408,27 +468,30 @@ void UnigramDictionary::getSplitTwoWordsSuggestion(
         return;
 
     const int newWordLength = firstWordLength + secondWordLength + 1;
-    // Allocating variable length array on stack
-    unsigned short word[newWordLength];
-    const int firstFreq = getMostFrequentWordLike(firstWordStartPos, firstWordLength, mWord);
+    // Allocating variable length array on stack, with room for the terminator set by addWord
+    unsigned short word[newWordLength + 1];
+    const int firstFreq = mPrefixFreqs[firstWordLength - 1];
     if (DEBUG_DICT) {
         LOGI("First freq: %d", firstFreq);
     }
     if (firstFreq <= 0) return;
 
+    const unsigned short *firstWord =
+            mPrefixWords + (firstWordLength - 1) * MAX_WORD_LENGTH_INTERNAL;
     for (int i = 0; i < firstWordLength; ++i) {
-        word[i] = mWord[i];
+        word[i] = firstWord[i];
     }
 
-    const int secondFreq = getMostFrequentWordLike(secondWordStartPos, secondWordLength, mWord);
+    const int secondFreq = getMostFrequentSuffixLike(secondWordStartPos, inputLength);
     if (DEBUG_DICT) {
         LOGI("Second  freq:  %d", secondFreq);
     }
     if (secondFreq <= 0) return;
 
+    const unsigned short *secondWord = mSuffixWords + secondWordStartPos * MAX_WORD_LENGTH_INTERNAL;
     word[firstWordLength] = SPACE;
     for (int i = (firstWordLength + 1); i < newWordLength; ++i) {
-        word[i] = mWord[i - firstWordLength - 1];
+        word[i] = secondWord[i - firstWordLength - 1];
     }
 
     const int pairFreq = mCorrection->getFreqForSplitTwoWords(firstFreq, secondFreq, word);
@@ -439,16 +502,31 @@ void UnigramDictionary::getSplitTwoWordsSuggestion(
     return;
 }
 
-// Wrapper for getMostFrequentWordLikeInner, which matches it to the previous
-// interface.
-inline int UnigramDictionary::getMostFrequentWordLike(const int startInputIndex,
-        const int inputLength, unsigned short *word) {
-    uint16_t inWord[inputLength];
-
+// Fills the split words table with the words like each prefix of the input, and marks the
+// suffixes as not looked up yet.
+void UnigramDictionary::initSplitWordsTable(const int inputLength) {
     for (int i = 0; i < inputLength; ++i) {
-        inWord[i] = (uint16_t)mProximityInfo->getPrimaryCharAt(startInputIndex + i);
+        mSplitInWord[i] = (uint16_t)mProximityInfo->getPrimaryCharAt(i);
+        mSuffixFreqs[i] = NOT_LOOKED_UP;
+    }
+    // Zero out the rest, as the lookup reads past the end of the input when the dictionary has
+    // a char group with several chars there.
+    memset(mSplitInWord + inputLength, 0,
+            (MAX_WORD_LENGTH_INTERNAL + 1 - inputLength) * sizeof(mSplitInWord[0]));
+    getMostFrequentWordsLike(mSplitInWord, inputLength, 1, mPrefixFreqs, mPrefixWords);
+}
+
+// Returns the frequency of the most frequent word like the input from startInputIndex to the
+// end, which is then in the split words table, looking it up if needed.
+int UnigramDictionary::getMostFrequentSuffixLike(const int startInputIndex,
+        const int inputLength) {
+    if (NOT_LOOKED_UP == mSuffixFreqs[startInputIndex]) {
+        const int length = inputLength - startInputIndex;
+        getMostFrequentWordsLike(mSplitInWord + startInputIndex, length, length,
+                mSuffixFreqs + startInputIndex,
+                mSuffixWords + startInputIndex * MAX_WORD_LENGTH_INTERNAL);
     }
-    return getMostFrequentWordLikeInner(inWord, inputLength, word);
+    return mSuffixFreqs[startInputIndex];
 }
 
 // This function will take the position of a character array within a CharGroup,
@@ -512,14 +590,20 @@ static inline void onTerminalWordLike(const int freq, int32_t* newWord, const in
     }
 }
 
-// Will find the highest frequency of the words like the one passed as an argument,
-// that is, everything that only differs by case/accents.
-int UnigramDictionary::getMostFrequentWordLikeInner(const uint16_t * const inWord,
-        const int length, short unsigned int* outWord) {
+// Will find the highest frequency of the words like the prefixes of the one passed as an
+// argument, that is, everything that only differs by case/accents, in a single walk.
+// For each prefix length i from minLength to length, the frequency is written into
+// maxFreqs[i - minLength], or NOT_A_FREQUENCY if there is no such word, and the word into
+// the (i - minLength)-th row of MAX_WORD_LENGTH_INTERNAL chars of outWords.
+// inWord must be followed by a zero.
+void UnigramDictionary::getMostFrequentWordsLike(const uint16_t * const inWord,
+        const int length, const int minLength, int *maxFreqs, unsigned short *outWords) {
     int32_t newWord[MAX_WORD_LENGTH_INTERNAL];
     int depth = 0;
-    int maxFreq = -1;
     const uint8_t* const root = DICT_ROOT;
+    for (int i = 0; i <= length - minLength; ++i) {
+        maxFreqs[i] = NOT_A_FREQUENCY;
+    }
 
     mStackChildCount[0] = root[0];
     mStackInputIndex[0] = 0;
@@ -536,9 +620,11 @@ int UnigramDictionary::getMostFrequentWordLikeInner(const uint16_t * const inWor
             // into inputIndex if there is a match.
             const bool isAlike = testCharGroupForContinuedLikeness(flags, root, pos, inWord,
                     inputIndex, newWord, &inputIndex, &pos);
-            if (isAlike && (FLAG_IS_TERMINAL & flags) && (inputIndex == length)) {
+            if (isAlike && (FLAG_IS_TERMINAL & flags) && (inputIndex >= minLength)) {
                 const int frequency = BinaryFormat::readFrequencyWithoutMovingPointer(root, pos);
-                onTerminalWordLike(frequency, newWord, inputIndex, outWord, &maxFreq);
+                const int index = inputIndex - minLength;
+                onTerminalWordLike(frequency, newWord, inputIndex,
+                        outWords + index * MAX_WORD_LENGTH_INTERNAL, &maxFreqs[index]);
             }
             pos = BinaryFormat::skipFrequency(flags, pos);
             const int siblingPos = BinaryFormat::skipChildrenPosAndAttributes(root, flags, pos);
@@ -568,7 +654,6 @@ int UnigramDictionary::getMostFrequentWordLikeInner(const uint16_t * const inWor
         }
         --depth;
     }
-    return maxFreq;
 }
 
 bool UnigramDictionary::isValidWord(const uint16_t* const inWord, const int length) const {
@@ -603,6 +688,33 @@ inline bool UnigramDictionary::processCurrentNode(const int initialPos,
     }
     int pos = initialPos;
 
+    // Optimization: Once we have enough candidates, skip this group and all its descendants if
+    // not even the most frequent word in there could beat the worst candidate we have, with the
+    // best corrections possible. Unless the dictionary stores it, only the first levels of the
+    // trie have their max frequency cached, and char group depths are never deeper than the
+    // output index. The lookup is not even tried when a subtree of the lowest frequency could
+    // not be cut.
+    if (mSuggestionQueue->isFull() && (HAS_SUBTREE_MAX_FREQUENCIES
+            || correction->getOutputIndex() < MAX_DEPTH_FOR_SUBTREE_FREQ_CACHE)
+            && correction->getFinalFreqUpperBound(1) <= mSuggestionQueue->getMinFrequency()) {
+        const int subtreeMaxFreq = getSubtreeMaxFreq(initialPos);
+        if (NOT_A_FREQUENCY != subtreeMaxFreq && correction->getFinalFreqUpperBound(
+                subtreeMaxFreq) <= mSuggestionQueue->getMinFrequency()) {
+            const uint8_t flags = BinaryFormat::getFlagsAndForwardPointer(DICT_ROOT, &pos);
+            BinaryFormat::getCharCodeAndForwardPointer(DICT_ROOT, &pos);
+            if (FLAG_HAS_MULTIPLE_CHARS & flags) {
+                pos = BinaryFormat::skipOtherCharacters(DICT_ROOT, pos);
+            }
+            pos = BinaryFormat::skipFrequency(flags, pos);
+            *nextSiblingPosition =
+                    BinaryFormat::skipChildrenPosAndAttributes(DICT_ROOT, flags, pos);
+            if (DEBUG_DICT_FULL) {
+                LOGI("Subtree was cut by its max frequency %d.", subtreeMaxFreq);
+            }
+            return false;
+        }
+    }
+
     // Flags contain the following information:
     // - Address type (MASK_GROUP_ADDRESS_TYPE) on two bits:
     //   - FLAG_GROUP_ADDRESS_TYPE_{ONE,TWO,THREE}_BYTES means there are children and their address
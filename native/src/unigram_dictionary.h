@@ -22,6 +22,7 @@
 #include "correction_state.h"
 #include "defines.h"
 #include "proximity_info.h"
+#include "words_priority_queue.h"
 
 #ifndef NULL
 #define NULL 0
@@ -46,9 +47,15 @@ public:
     // Flag for terminal groups
     static const int FLAG_IS_TERMINAL = 0x10;
 
+    // Flag for subtree max frequency presence
+    static const int FLAG_HAS_SUBTREE_MAX_FREQUENCY = 0x08;
+
     // Flag for bigram presence
     static const int FLAG_HAS_BIGRAMS = 0x04;
 
+    // Flag for children shared with other groups, in dictionaries with merged tails
+    static const int FLAG_HAS_SHARED_CHILDREN = 0x02;
+
     // Attribute (bigram/shortcut) related flags:
     // Flag for presence of more attributes
     static const int FLAG_ATTRIBUTE_HAS_NEXT = 0x80;
@@ -78,12 +85,11 @@ private:
 
     void getWordSuggestions(ProximityInfo *proximityInfo, const int *xcoordinates,
             const int *ycoordinates, const int *codes, const int codesSize,
-            unsigned short *outWords, int *frequencies, const int flags);
-    bool isDigraph(const int* codes, const int i, const int codesSize) const;
-    void getWordWithDigraphSuggestionsRec(ProximityInfo *proximityInfo,
-        const int *xcoordinates, const int* ycoordinates, const int *codesBuffer,
-        const int codesBufferSize, const int flags, const int* codesSrc, const int codesRemain,
-        const int currentDepth, int* codesDest, unsigned short* outWords, int* frequencies);
+            unsigned short *outWords, int *frequencies, const int flags,
+            const int *digraphCompositeGlyphs);
+    void getSplitWordsSuggestions(ProximityInfo *proximityInfo, const int *xcoordinates,
+            const int *ycoordinates, const int codesSize, const bool useFullEditDistance);
+    int getDigraphCompositeGlyph(const int* codes, const int i, const int codesSize) const;
     void initSuggestions(ProximityInfo *proximityInfo, const int *xcoordinates,
             const int *ycoordinates, const int *codes, const int codesSize,
             unsigned short *outWords, int *frequencies);
@@ -101,10 +107,15 @@ private:
     bool processCurrentNode(const int initialPos,
             Correction *correction, int *newCount,
             int *newChildPosition, int *nextSiblingPosition);
-    int getMostFrequentWordLike(const int startInputIndex, const int inputLength,
-            unsigned short *word);
-    int getMostFrequentWordLikeInner(const uint16_t* const inWord, const int length,
-            short unsigned int* outWord);
+    void initSplitWordsTable(const int inputLength);
+    int getMostFrequentSuffixLike(const int startInputIndex, const int inputLength);
+    void getMostFrequentWordsLike(const uint16_t* const inWord, const int length,
+            const int minLength, int *maxFreqs, unsigned short *outWords);
+    int countCharGroupsForSubtreeFreqCache(const int nodePos, const int depth) const;
+    int fillSubtreeFreqCache(const int nodePos, const int depth);
+    void initSubtreeFreqCache();
+    int getSubtreeMaxFreq(const int charGroupPos) const;
+    static int compareSubtreeFreqPositions(const void *left, const void *right);
 
     const uint8_t* const DICT_ROOT;
     const int MAX_WORD_LENGTH;
@@ -114,8 +125,8 @@ private:
     const int TYPED_LETTER_MULTIPLIER;
     const int FULL_WORD_MULTIPLIER;
     const int ROOT_POS;
+    const bool HAS_SUBTREE_MAX_FREQUENCIES;
     const unsigned int BYTES_IN_ONE_CHAR;
-    const int MAX_UMLAUT_SEARCH_DEPTH;
 
     // Flags for special processing
     // Those *must* match the flags in BinaryDictionary.Flags.ALL_FLAGS in BinaryDictionary.java
@@ -125,16 +136,37 @@ private:
         REQUIRES_GERMAN_UMLAUT_PROCESSING = 0x1,
         USE_FULL_EDIT_DISTANCE = 0x2
     };
-    static const struct digraph_t { int first; int second; } GERMAN_UMLAUT_DIGRAPHS[];
+    static const struct digraph_t { int first; int second; int compositeGlyph; }
+            GERMAN_UMLAUT_DIGRAPHS[];
 
     int *mFrequencies;
     unsigned short *mOutputChars;
     ProximityInfo *mProximityInfo;
     Correction *mCorrection;
+    // Holds the best candidates found so far, in fixed slots, until they are output
+    WordsPriorityQueue *mSuggestionQueue;
+    // Whether the words found may be in the queue already, from an earlier pass on another
+    // spelling of the input
+    bool mMergesDuplicateWords;
+    // The highest frequency in the subtree of each char group of the first levels of the trie,
+    // computed once at load time and sorted by char group position. This bounds the score of
+    // anything below a char group so that hopeless subtrees can be cut from the search.
+    struct SubtreeFreq { int mPos; int mMaxFreq; };
+    SubtreeFreq *mSubtreeFreqCache;
+    int mSubtreeFreqCacheSize;
     int mInputLength;
     // MAX_WORD_LENGTH_INTERNAL must be bigger than MAX_WORD_LENGTH
     unsigned short mWord[MAX_WORD_LENGTH_INTERNAL];
 
+    // The split words table. The input is looked up once, and for each length i, the most
+    // frequent word like the first i chars is stored at i - 1, or NOT_A_FREQUENCY if there is
+    // none. The words like each suffix are looked up lazily, and stored at their start index.
+    uint16_t mSplitInWord[MAX_WORD_LENGTH_INTERNAL + 1];
+    int mPrefixFreqs[MAX_WORD_LENGTH_INTERNAL];
+    unsigned short mPrefixWords[MAX_WORD_LENGTH_INTERNAL * MAX_WORD_LENGTH_INTERNAL];
+    int mSuffixFreqs[MAX_WORD_LENGTH_INTERNAL];
+    unsigned short mSuffixWords[MAX_WORD_LENGTH_INTERNAL * MAX_WORD_LENGTH_INTERNAL];
+
     int mStackChildCount[MAX_WORD_LENGTH_INTERNAL];// TODO: remove
     int mStackInputIndex[MAX_WORD_LENGTH_INTERNAL];// TODO: remove
     int mStackSiblingPos[MAX_WORD_LENGTH_INTERNAL];// TODO: remove
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#ifndef LATINIME_WORDS_PRIORITY_QUEUE_H
+#define LATINIME_WORDS_PRIORITY_QUEUE_H
+
+#include <string.h>
+
+#include "defines.h"
+
+namespace latinime {
+
+// A bounded priority queue keeping the best MAX_WORDS suggestions.
+// Words are copied once into a fixed slot that never moves; only slot indices are shuffled
+// around in a binary min-heap, so that the worst word is always at the top and can be evicted
+// in O(log(MAX_WORDS)). The suggestions are sorted only once, when they are output.
+class WordsPriorityQueue {
+public:
+    WordsPriorityQueue(const int maxWords, const int maxWordLength, const bool shorterWordsFirst)
+        : MAX_WORDS(maxWords), MAX_WORD_LENGTH(maxWordLength),
+          SHORTER_WORDS_FIRST(shorterWordsFirst), mSize(0), mSequence(0) {
+        mHeap = new int[MAX_WORDS];
+        mFrequencies = new int[MAX_WORDS];
+        mLengths = new int[MAX_WORDS];
+        mSequences = new int[MAX_WORDS];
+        mWords = new unsigned short[MAX_WORDS * MAX_WORD_LENGTH];
+    }
+
+    ~WordsPriorityQueue() {
+        delete[] mHeap;
+        delete[] mFrequencies;
+        delete[] mLengths;
+        delete[] mSequences;
+        delete[] mWords;
+    }
+
+    void clear() {
+        mSize = 0;
+        mSequence = 0;
+    }
+
+    int size() const {
+        return mSize;
+    }
+
+    int getMaxWords() const {
+        return MAX_WORDS;
+    }
+
+    bool isFull() const {
+        return mSize >= MAX_WORDS;
+    }
+
+    // Returns the frequency of the worst word in the queue, or 0 if the queue is not full yet,
+    // as any positive frequency would still make it in.
+    int getMinFrequency() const {
+        return isFull() ? mFrequencies[mHeap[0]] : 0;
+    }
+
+    // Returns true if the word was added to the queue.
+    bool push(const int frequency, const unsigned short *word, const int length) {
+        // A zero frequency is what the Java side uses to mark an empty output slot.
+        if (frequency <= 0 || length > MAX_WORD_LENGTH) return false;
+        int slot;
+        if (!isFull()) {
+            slot = mSize;
+            setWord(slot, frequency, word, length);
+            mHeap[mSize] = slot;
+            siftUp(mSize);
+            ++mSize;
+        } else {
+            // The new word has not been set yet, so compare it against the top by hand
+            // with the same ordering as isWorse().
+            slot = mHeap[0];
+            const int minFrequency = mFrequencies[slot];
+            if (frequency < minFrequency) return false;
+            if (frequency == minFrequency
+                    && !(SHORTER_WORDS_FIRST && length < mLengths[slot])) {
+                return false;
+            }
+            setWord(slot, frequency, word, length);
+            siftDown(0, mSize);
+        }
+        if (DEBUG_DICT) {
+            LOGI("Added word at slot %d, freq = %d", slot, frequency);
+        }
+        return true;
+    }
+
+    // Same as push(), but a word that is in the queue already is not added again: it only
+    // gets the best of its two frequencies. This is linear in the size of the queue.
+    bool pushUnique(const int frequency, const unsigned short *word, const int length) {
+        if (frequency <= 0 || length > MAX_WORD_LENGTH) return false;
+        for (int i = 0; i < mSize; ++i) {
+            const int slot = mHeap[i];
+            if (mLengths[slot] != length
+                    || memcmp(mWords + slot * MAX_WORD_LENGTH, word, length * sizeof(word[0]))) {
+                continue;
+            }
+            if (frequency <= mFrequencies[slot]) return false;
+            // A better frequency can only move the word away from the top of the heap.
+            mFrequencies[slot] = frequency;
+            siftDown(i, mSize);
+            return true;
+        }
+        return push(frequency, word, length);
+    }
+
+    // Writes the words in descending order into the output buffers, which use the layout
+    // expected by the Java side, and returns the number of words written. This empties
+    // the queue.
+    int outputSuggestions(int *frequencies, unsigned short *outputChars) {
+        const int size = mSize;
+        // In-place heap sort: popping the worst word each time leaves the heap array sorted
+        // from the best word to the worst.
+        for (int last = size - 1; last > 0; --last) {
+            swap(0, last);
+            siftDown(0, last);
+        }
+        for (int i = 0; i < size; ++i) {
+            const int slot = mHeap[i];
+            const int length = mLengths[slot];
+            unsigned short *dest = outputChars + i * MAX_WORD_LENGTH;
+            memcpy(dest, mWords + slot * MAX_WORD_LENGTH, length * sizeof(dest[0]));
+            if (length < MAX_WORD_LENGTH) dest[length] = 0; // NULL terminate
+            frequencies[i] = mFrequencies[slot];
+        }
+        for (int i = size; i < MAX_WORDS; ++i) {
+            frequencies[i] = 0;
+        }
+        clear();
+        return size;
+    }
+
+private:
+    void setWord(const int slot, const int frequency, const unsigned short *word,
+            const int length) {
+        memcpy(mWords + slot * MAX_WORD_LENGTH, word, length * sizeof(word[0]));
+        mFrequencies[slot] = frequency;
+        mLengths[slot] = length;
+        mSequences[slot] = mSequence++;
+    }
+
+    // Whether the word in slotA ranks after the word in slotB. Words with the same frequency
+    // keep the order in which they were found, optionally putting shorter words first.
+    bool isWorse(const int slotA, const int slotB) const {
+        if (mFrequencies[slotA] != mFrequencies[slotB]) {
+            return mFrequencies[slotA] < mFrequencies[slotB];
+        }
+        if (SHORTER_WORDS_FIRST && mLengths[slotA] != mLengths[slotB]) {
+            return mLengths[slotA] > mLengths[slotB];
+        }
+        return mSequences[slotA] > mSequences[slotB];
+    }
+
+    void swap(const int i, const int j) {
+        const int tmp = mHeap[i];
+        mHeap[i] = mHeap[j];
+        mHeap[j] = tmp;
+    }
+
+    void siftUp(int index) {
+        while (index > 0) {
+            const int parent = (index - 1) / 2;
+            if (!isWorse(mHeap[index], mHeap[parent])) break;
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    void siftDown(int index, const int size) {
+        while (true) {
+            const int left = index * 2 + 1;
+            if (left >= size) break;
+            const int right = left + 1;
+            const int worst = (right < size && isWorse(mHeap[right], mHeap[left])) ? right : left;
+            if (!isWorse(mHeap[worst], mHeap[index])) break;
+            swap(index, worst);
+            index = worst;
+        }
+    }
+
+    const int MAX_WORDS;
+    const int MAX_WORD_LENGTH;
+    const bool SHORTER_WORDS_FIRST;
+    int mSize;
+    int mSequence;
+    // Slot indices, arranged as a min-heap with the worst word at the top
+    int *mHeap;
+    // Per-slot data
+    int *mFrequencies;
+    int *mLengths;
+    int *mSequences;
+    unsigned short *mWords;
+};
+
+} // namespace latinime
+
+#endif // LATINIME_WORDS_PRIORITY_QUEUE_H
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+public class BinaryDictionaryFileDumperTests extends AndroidTestCase {
+    private static final byte[] CURRENT_WORD_LIST =
+            { 0x78, (byte)0xB1, 0, 0, 'o', 'l', 'd', ' ', 'w', 'o', 'r', 'd', 's' };
+    private static final byte[] NEW_WORD_LIST =
+            { 0x78, (byte)0xB1, 0, 0, 'n', 'e', 'w', ' ', 'w', 'o', 'r', 'd', 's' };
+
+    private File mCurrentFile;
+    private File mOutputFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCurrentFile = File.createTempFile("current", ".dict");
+        mOutputFile = File.createTempFile("output", ".dict");
+        final FileOutputStream current = new FileOutputStream(mCurrentFile);
+        current.write(CURRENT_WORD_LIST);
+        current.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCurrentFile.delete();
+        mOutputFile.delete();
+        super.tearDown();
+    }
+
+    private static int computeCrc(final byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int)crc.getValue();
+    }
+
+    // Writes the header of a patch from CURRENT_WORD_LIST to NEW_WORD_LIST.
+    private static DataOutputStream writePatchHeader(final ByteArrayOutputStream patch)
+            throws IOException {
+        final DataOutputStream out = new DataOutputStream(patch);
+        out.writeShort(BinaryDictionaryPatch.MAGIC_NUMBER);
+        out.writeByte(BinaryDictionaryPatch.VERSION);
+        out.writeInt(CURRENT_WORD_LIST.length);
+        out.writeInt(computeCrc(CURRENT_WORD_LIST));
+        out.writeInt(NEW_WORD_LIST.length);
+        out.writeInt(computeCrc(NEW_WORD_LIST));
+        return out;
+    }
+
+    private static void writeCopy(final DataOutputStream out, final int offset, final int length)
+            throws IOException {
+        out.writeByte(BinaryDictionaryPatch.OPCODE_COPY);
+        out.writeInt(offset);
+        out.writeInt(length);
+    }
+
+    private static void writeInsert(final DataOutputStream out, final String data)
+            throws IOException {
+        out.writeByte(BinaryDictionaryPatch.OPCODE_INSERT);
+        out.writeInt(data.length());
+        out.writeBytes(data);
+    }
+
+    private void writeWordList(final byte[] input) throws IOException {
+        final FileOutputStream output = new FileOutputStream(mOutputFile);
+        try {
+            BinaryDictionaryFileDumper.checkMagicAndWriteWordListTo(
+                    new BufferedInputStream(new ByteArrayInputStream(input)), mCurrentFile,
+                    output);
+        } finally {
+            output.close();
+        }
+    }
+
+    private byte[] readOutputFile() throws IOException {
+        final byte[] data = new byte[(int)mOutputFile.length()];
+        final FileInputStream input = new FileInputStream(mOutputFile);
+        try {
+            int offset = 0;
+            while (offset < data.length) {
+                final int read = input.read(data, offset, data.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+        } finally {
+            input.close();
+        }
+        return data;
+    }
+
+    private void assertPatchIsRefused(final byte[] patch) {
+        try {
+            writeWordList(patch);
+            fail("The patch was applied");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testCopiesWordList() throws Exception {
+        writeWordList(NEW_WORD_LIST);
+        assertTrue(Arrays.equals(NEW_WORD_LIST, readOutputFile()));
+    }
+
+    public void testAppliesPatch() throws Exception {
+        final ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        final DataOutputStream out = writePatchHeader(patch);
+        writeCopy(out, 0, 4);
+        writeInsert(out, "new");
+        writeCopy(out, 7, CURRENT_WORD_LIST.length - 7);
+        out.writeByte(BinaryDictionaryPatch.OPCODE_END);
+        writeWordList(patch.toByteArray());
+        assertTrue(Arrays.equals(NEW_WORD_LIST, readOutputFile()));
+    }
+
+    public void testRefusesPatchForAnotherWordList() throws Exception {
+        final FileOutputStream current = new FileOutputStream(mCurrentFile);
+        current.write(NEW_WORD_LIST);
+        current.close();
+        final ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        final DataOutputStream out = writePatchHeader(patch);
+        writeCopy(out, 0, CURRENT_WORD_LIST.length);
+        out.writeByte(BinaryDictionaryPatch.OPCODE_END);
+        assertPatchIsRefused(patch.toByteArray());
+    }
+
+    public void testRefusesCopyOutOfTheCurrentWordList() throws Exception {
+        final int[][] copies = { { -1, 4 }, { 0, -1 }, { 4, CURRENT_WORD_LIST.length },
+                { Integer.MAX_VALUE, Integer.MAX_VALUE } };
+        for (final int[] copy : copies) {
+            final ByteArrayOutputStream patch = new ByteArrayOutputStream();
+            final DataOutputStream out = writePatchHeader(patch);
+            writeCopy(out, copy[0], copy[1]);
+            out.writeByte(BinaryDictionaryPatch.OPCODE_END);
+            assertPatchIsRefused(patch.toByteArray());
+        }
+    }
+
+    public void testRefusesPatchLongerThanTheNewWordList() throws Exception {
+        final ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        final DataOutputStream out = writePatchHeader(patch);
+        writeCopy(out, 0, CURRENT_WORD_LIST.length);
+        writeInsert(out, "more");
+        out.writeByte(BinaryDictionaryPatch.OPCODE_END);
+        assertPatchIsRefused(patch.toByteArray());
+
+        final ByteArrayOutputStream negativePatch = new ByteArrayOutputStream();
+        final DataOutputStream negativeOut = writePatchHeader(negativePatch);
+        negativeOut.writeByte(BinaryDictionaryPatch.OPCODE_INSERT);
+        negativeOut.writeInt(-1);
+        negativeOut.writeByte(BinaryDictionaryPatch.OPCODE_END);
+        assertPatchIsRefused(negativePatch.toByteArray());
+    }
+
+    public void testRefusesWrongResult() throws Exception {
+        final ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        final DataOutputStream out = writePatchHeader(patch);
+        // Same size as the new word list, but not the same contents.
+        writeCopy(out, 0, CURRENT_WORD_LIST.length);
+        out.writeByte(BinaryDictionaryPatch.OPCODE_END);
+        assertPatchIsRefused(patch.toByteArray());
+    }
+}
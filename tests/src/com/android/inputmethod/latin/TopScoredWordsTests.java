@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import android.test.AndroidTestCase;
+
+public class TopScoredWordsTests extends AndroidTestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private static int add(final TopScoredWords words, final String word, final int score) {
+        return words.add(word.toCharArray(), 0, word.length(), score);
+    }
+
+    private static void assertWords(final TopScoredWords words, final String... expected) {
+        assertEquals(expected.length, words.size());
+        for (int i = 0; i < expected.length; ++i) {
+            assertEquals(expected[i], words.getWord(i));
+        }
+    }
+
+    public void testKeepsBestScores() {
+        final TopScoredWords words = new TopScoredWords(3, 8);
+        assertEquals(0, add(words, "one", 10));
+        assertEquals(0, add(words, "two", 30));
+        assertEquals(1, add(words, "three", 20));
+        assertEquals(-1, add(words, "four", 5));
+        assertEquals(1, add(words, "five", 25));
+        assertWords(words, "two", "five", "three");
+        assertEquals(30, words.getScore(0));
+        assertEquals(20, words.getScore(2));
+    }
+
+    public void testTiesPreferShorterThenEarlierWords() {
+        final TopScoredWords words = new TopScoredWords(4, 8);
+        add(words, "abc", 10);
+        add(words, "abcd", 10);
+        add(words, "ab", 10);
+        add(words, "xyz", 10);
+        assertWords(words, "ab", "abc", "xyz", "abcd");
+        // A word that only ties with the last word is not kept.
+        assertEquals(-1, add(words, "a", 10));
+    }
+
+    public void testLongWordsAndOffsets() {
+        final TopScoredWords words = new TopScoredWords(2, 2);
+        final char[] buffer = "xxlongerwordxx".toCharArray();
+        assertEquals(0, words.add(buffer, 2, 10, 1));
+        assertWords(words, "longerword");
+        assertEquals(0, words.indexOf(buffer, 2, 10));
+        assertEquals(-1, words.indexOf(buffer, 2, 9));
+        words.clear();
+        assertEquals(0, words.size());
+    }
+
+    public void testZeroCapacity() {
+        final TopScoredWords words = new TopScoredWords(0, 8);
+        assertEquals(-1, add(words, "word", Integer.MAX_VALUE));
+        assertEquals(0, words.size());
+    }
+
+    public void testAddAll() {
+        final TopScoredWords first = new TopScoredWords(3, 8);
+        final TopScoredWords second = new TopScoredWords(3, 8);
+        add(first, "a", 40);
+        add(first, "b", 20);
+        add(first, "c", 10);
+        add(second, "d", 30);
+        add(second, "e", 25);
+        add(second, "f", 5);
+        first.addAll(second);
+        assertWords(first, "a", "d", "e");
+    }
+}
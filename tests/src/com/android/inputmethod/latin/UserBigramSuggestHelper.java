@@ -65,8 +65,8 @@ public class UserBigramSuggestHelper extends SuggestHelper {
             mUserBigram.getBigrams(firstChar, previous, mSuggest);
         }
 
-        for (int i = 0; i < mSuggest.mBigramSuggestions.size(); i++) {
-            final CharSequence word = mSuggest.mBigramSuggestions.get(i);
+        for (int i = 0; i < mSuggest.mBigramWords.size(); i++) {
+            final CharSequence word = mSuggest.mBigramWords.getWord(i);
             if (TextUtils.equals(word, expected))
                 return i;
         }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin.spellcheck;
+
+import android.test.AndroidTestCase;
+
+public class ResultCacheTests extends AndroidTestCase {
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        final ResultCache<String> cache = new ResultCache<String>(8);
+        cache.put("kept", "result", 0);
+        for (int i = 0; i < 100; ++i) {
+            cache.put("word" + i, "result" + i, 0);
+            // Using the entry makes it the most recently used of its segment.
+            assertEquals("result", cache.get("kept", 0));
+        }
+        assertEquals("result99", cache.get("word99", 0));
+        int keptCount = 0;
+        for (int i = 0; i < 100; ++i) {
+            if (null != cache.get("word" + i, 0)) ++keptCount;
+        }
+        // The most recent word and "kept" may be all there is in their segment.
+        assertTrue("Kept " + keptCount + " words", keptCount >= 1 && keptCount <= 7);
+    }
+
+    public void testNewGenerationDropsResults() {
+        final ResultCache<String> cache = new ResultCache<String>(8);
+        cache.put("word", "old", 1);
+        assertEquals("old", cache.get("word", 1));
+        assertNull(cache.get("word", 2));
+        // Once a newer generation is seen, older ones are neither found nor stored.
+        assertNull(cache.get("word", 1));
+        cache.put("word", "old", 1);
+        assertNull(cache.get("word", 2));
+        cache.put("word", "new", 2);
+        assertEquals("new", cache.get("word", 2));
+    }
+
+    public void testHitRatio() {
+        final ResultCache<String> cache = new ResultCache<String>(8);
+        assertEquals(0.0, cache.getHitRatio(), 1e-9);
+        cache.put("word", "result", 0);
+        assertEquals("result", cache.get("word", 0));
+        assertNull(cache.get("other", 0));
+        assertNull(cache.get("another", 0));
+        assertNull(cache.get("word", 1));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(0.25, cache.getHitRatio(), 1e-9);
+    }
+}
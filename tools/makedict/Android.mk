@@ -18,6 +18,8 @@ include $(CLEAR_VARS)
 
 LOCAL_SRC_FILES := $(call all-java-files-under,src)
 LOCAL_SRC_FILES += $(call all-java-files-under,tests)
+# The patch format is shared with the IME, which applies the patches that makedict makes.
+LOCAL_SRC_FILES += ../../java/src/com/android/inputmethod/latin/BinaryDictionaryPatch.java
 LOCAL_JAR_MANIFEST := etc/manifest.txt
 LOCAL_MODULE_TAGS := eng
 LOCAL_MODULE := makedict
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Makes and applies patches between two binary dictionaries.
+ *
+ * The format of patches is described in BinaryDictionaryPatch, which the IME shares to apply
+ * them to the word lists it downloads.
+ *
+ * All functions in this class are static.
+ */
+public class BinaryDictDiff {
+
+    // Ranges of the new file are looked up in the old file by blocks of this size. Matches
+    // shorter than this are not found, and are sent as inserted bytes instead.
+    private static final int BLOCK_SIZE = 16;
+    private static final int HASH_MULTIPLIER = 31;
+
+    // Prevents this class to be accidentally instantiated.
+    private BinaryDictDiff() {
+    }
+
+    private static int computeCrc(final byte[] data) {
+        return BinaryDictionaryPatch.computeCrc(ByteBuffer.wrap(data));
+    }
+
+    private static int computeBlockHash(final byte[] data, final int start) {
+        int hash = 0;
+        for (int i = start; i < start + BLOCK_SIZE; ++i) {
+            hash = hash * HASH_MULTIPLIER + data[i];
+        }
+        return hash;
+    }
+
+    private static boolean isSameBlock(final byte[] a, final int aStart, final byte[] b,
+            final int bStart) {
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            if (a[aStart + i] != b[bStart + i]) return false;
+        }
+        return true;
+    }
+
+    private static void writeInsert(final DataOutputStream destination, final byte[] data,
+            final int start, final int end) throws IOException {
+        if (end <= start) return;
+        destination.writeByte(BinaryDictionaryPatch.OPCODE_INSERT);
+        destination.writeInt(end - start);
+        destination.write(data, start, end - start);
+    }
+
+    /**
+     * Writes a patch that turns a binary dictionary into another one.
+     *
+     * The blocks of the old file are indexed by their hash, and a hash rolled over the new
+     * file finds the places where they occur. Each match is then extended both ways as far
+     * as the files agree, and becomes a copy operation.
+     *
+     * @param destination the stream to write the patch to. It is closed by this method.
+     * @param oldDict the contents of the old binary dictionary file.
+     * @param newDict the contents of the new binary dictionary file.
+     */
+    public static void writePatch(final OutputStream destination, final byte[] oldDict,
+            final byte[] newDict) throws IOException {
+        final DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(destination));
+        try {
+            out.writeShort(BinaryDictionaryPatch.MAGIC_NUMBER);
+            out.writeByte(BinaryDictionaryPatch.VERSION);
+            out.writeInt(oldDict.length);
+            out.writeInt(computeCrc(oldDict));
+            out.writeInt(newDict.length);
+            out.writeInt(computeCrc(newDict));
+
+            final HashMap<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+            for (int start = 0; start + BLOCK_SIZE <= oldDict.length; start += BLOCK_SIZE) {
+                final int hash = computeBlockHash(oldDict, start);
+                if (!blocks.containsKey(hash)) blocks.put(hash, start);
+            }
+
+            // The multiplier of the byte leaving the window as the hash rolls.
+            int leavingMultiplier = 1;
+            for (int i = 1; i < BLOCK_SIZE; ++i) leavingMultiplier *= HASH_MULTIPLIER;
+
+            int insertStart = 0;
+            int position = 0;
+            int hash = position + BLOCK_SIZE <= newDict.length ? computeBlockHash(newDict, 0) : 0;
+            while (position + BLOCK_SIZE <= newDict.length) {
+                final Integer match = blocks.get(hash);
+                if (null != match && isSameBlock(oldDict, match, newDict, position)) {
+                    int oldStart = match;
+                    int newStart = position;
+                    while (newStart > insertStart && oldStart > 0
+                            && oldDict[oldStart - 1] == newDict[newStart - 1]) {
+                        --oldStart;
+                        --newStart;
+                    }
+                    int length = position + BLOCK_SIZE - newStart;
+                    while (newStart + length < newDict.length && oldStart + length < oldDict.length
+                            && oldDict[oldStart + length] == newDict[newStart + length]) {
+                        ++length;
+                    }
+                    writeInsert(out, newDict, insertStart, newStart);
+                    out.writeByte(BinaryDictionaryPatch.OPCODE_COPY);
+                    out.writeInt(oldStart);
+                    out.writeInt(length);
+                    position = newStart + length;
+                    insertStart = position;
+                    if (position + BLOCK_SIZE <= newDict.length) {
+                        hash = computeBlockHash(newDict, position);
+                    }
+                } else {
+                    if (position + BLOCK_SIZE < newDict.length) {
+                        hash = (hash - newDict[position] * leavingMultiplier) * HASH_MULTIPLIER
+                                + newDict[position + BLOCK_SIZE];
+                    }
+                    ++position;
+                }
+            }
+            writeInsert(out, newDict, insertStart, newDict.length);
+            out.writeByte(BinaryDictionaryPatch.OPCODE_END);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Applies a patch to a binary dictionary.
+     *
+     * @param patch the stream to read the patch from.
+     * @param oldDict the contents of the binary dictionary to patch.
+     * @return the contents of the patched binary dictionary.
+     * @throws UnsupportedFormatException if the patch is not in the expected format, or does
+     *   not apply to this dictionary.
+     */
+    public static byte[] applyPatch(final InputStream patch, final byte[] oldDict)
+            throws IOException, UnsupportedFormatException {
+        final DataInputStream in = new DataInputStream(patch);
+        if (BinaryDictionaryPatch.MAGIC_NUMBER != in.readUnsignedShort()) {
+            throw new UnsupportedFormatException("This is not a dictionary patch");
+        }
+        final ByteArrayOutputStream result = new ByteArrayOutputStream(oldDict.length);
+        try {
+            BinaryDictionaryPatch.applyPatch(in, ByteBuffer.wrap(oldDict), result);
+        } catch (BinaryDictionaryPatch.InvalidPatchException e) {
+            throw new UnsupportedFormatException(e.getMessage());
+        }
+        return result.toByteArray();
+    }
+}
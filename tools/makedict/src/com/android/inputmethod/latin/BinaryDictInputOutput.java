@@ -20,14 +20,18 @@ import com.android.inputmethod.latin.FusionDictionary.CharGroup;
 import com.android.inputmethod.latin.FusionDictionary.Node;
 import com.android.inputmethod.latin.FusionDictionary.WeightedString;
 
+import java.io.BufferedOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Reads and writes XML files for a FusionDictionary.
@@ -44,8 +48,9 @@ public class BinaryDictInputOutput {
      * a |                                     11 = 3 bytes     : FLAG_GROUP_ADDRESS_TYPE_THREEBYTES
      * g | has several chars ?         1 bit, 1 = yes, 0 = no   : FLAG_HAS_MULTIPLE_CHARS
      * s | has a terminal ?            1 bit, 1 = yes, 0 = no   : FLAG_IS_TERMINAL
-     *   | reserved                    1 bit, 1 = yes, 0 = no
+     *   | has subtree max frequency ? 1 bit, 1 = yes, 0 = no   : FLAG_HAS_SUBTREE_MAX_FREQUENCY
      *   | has bigrams ?               1 bit, 1 = yes, 0 = no   : FLAG_HAS_BIGRAMS
+     *   | has shared children ?       1 bit, 1 = yes, 0 = no   : FLAG_HAS_SHARED_CHILDREN
      *
      * c | IF FLAG_HAS_MULTIPLE_CHARS
      * h |   char, char, char, char    n * (1 or 3 bytes) : use CharGroupInfo for i/o helpers
@@ -59,6 +64,9 @@ public class BinaryDictInputOutput {
      * e |   frequency                 1 byte
      * q |
      *
+     *   | IF FLAG_HAS_SUBTREE_MAX_FREQUENCY
+     *   |   max frequency of the group and all its descendants, 1 byte
+     *
      * c | IF 00 = FLAG_GROUP_ADDRESS_TYPE_NOADDRESS = addressType
      * h |   // nothing
      * i | ELSIF 01 = FLAG_GROUP_ADDRESS_TYPE_ONEBYTE == addressType
@@ -105,49 +113,67 @@ public class BinaryDictInputOutput {
      *           | if (FLAG_ATTRIBUTE_OFFSET_NEGATIVE) then address = -address
      * if (FLAG_ATTRIBUTE_HAS_NET) goto bigram_and_shortcut_address_list_is
      *
+     * If OPTION_GROUPED_BIGRAMS is set in the header, the bigrams of each group are sorted by
+     * the first character of their target word, so that a reader looking for a given first
+     * character can stop reading the list as soon as it reads a greater one.
+     *
+     * Files of version VERSION_WITH_MERGED_TAILS may have nodes that are the children of several
+     * groups, which are then flagged with FLAG_HAS_SHARED_CHILDREN. Shared nodes never contain a
+     * bigram target, so a reader searching for the word at a bigram address should not descend
+     * them: the rest of the nodes are laid out depth first, in the order of their parents.
      */
 
     private static final int MAGIC_NUMBER = 0x78B1;
     private static final int VERSION = 1;
-    private static final int MAXIMUM_SUPPORTED_VERSION = VERSION;
-    // No options yet, reserved for future use.
-    private static final int OPTIONS = 0;
+    private static final int VERSION_WITH_MERGED_TAILS = 2;
+    private static final int MAXIMUM_SUPPORTED_VERSION = VERSION_WITH_MERGED_TAILS;
+    // Options, on two bytes.
+    private static final int NO_OPTIONS = 0;
+    // Set when the groups that have children may store their subtree max frequency. A reader
+    // should not assume any group does: it has to look at FLAG_HAS_SUBTREE_MAX_FREQUENCY.
+    static final int OPTION_HAS_SUBTREE_MAX_FREQUENCIES = 0x1;
+    private static final int OPTION_GROUPED_BIGRAMS = 0x2;
 
     // TODO: Make this value adaptative to content data, store it in the header, and
     // use it in the reading code.
-    private static final int MAX_WORD_LENGTH = 48;
+    static final int MAX_WORD_LENGTH = 48;
 
-    private static final int MASK_GROUP_ADDRESS_TYPE = 0xC0;
-    private static final int FLAG_GROUP_ADDRESS_TYPE_NOADDRESS = 0x00;
-    private static final int FLAG_GROUP_ADDRESS_TYPE_ONEBYTE = 0x40;
-    private static final int FLAG_GROUP_ADDRESS_TYPE_TWOBYTES = 0x80;
-    private static final int FLAG_GROUP_ADDRESS_TYPE_THREEBYTES = 0xC0;
+    static final int MASK_GROUP_ADDRESS_TYPE = 0xC0;
+    static final int FLAG_GROUP_ADDRESS_TYPE_NOADDRESS = 0x00;
+    static final int FLAG_GROUP_ADDRESS_TYPE_ONEBYTE = 0x40;
+    static final int FLAG_GROUP_ADDRESS_TYPE_TWOBYTES = 0x80;
+    static final int FLAG_GROUP_ADDRESS_TYPE_THREEBYTES = 0xC0;
 
-    private static final int FLAG_HAS_MULTIPLE_CHARS = 0x20;
+    static final int FLAG_HAS_MULTIPLE_CHARS = 0x20;
 
-    private static final int FLAG_IS_TERMINAL = 0x10;
-    private static final int FLAG_HAS_BIGRAMS = 0x04;
+    static final int FLAG_IS_TERMINAL = 0x10;
+    static final int FLAG_HAS_SUBTREE_MAX_FREQUENCY = 0x08;
+    static final int FLAG_HAS_BIGRAMS = 0x04;
+    static final int FLAG_HAS_SHARED_CHILDREN = 0x02;
 
-    private static final int FLAG_ATTRIBUTE_HAS_NEXT = 0x80;
-    private static final int FLAG_ATTRIBUTE_OFFSET_NEGATIVE = 0x40;
-    private static final int MASK_ATTRIBUTE_ADDRESS_TYPE = 0x30;
-    private static final int FLAG_ATTRIBUTE_ADDRESS_TYPE_ONEBYTE = 0x10;
-    private static final int FLAG_ATTRIBUTE_ADDRESS_TYPE_TWOBYTES = 0x20;
-    private static final int FLAG_ATTRIBUTE_ADDRESS_TYPE_THREEBYTES = 0x30;
-    private static final int FLAG_ATTRIBUTE_FREQUENCY = 0x0F;
+    static final int FLAG_ATTRIBUTE_HAS_NEXT = 0x80;
+    static final int FLAG_ATTRIBUTE_OFFSET_NEGATIVE = 0x40;
+    static final int MASK_ATTRIBUTE_ADDRESS_TYPE = 0x30;
+    static final int FLAG_ATTRIBUTE_ADDRESS_TYPE_ONEBYTE = 0x10;
+    static final int FLAG_ATTRIBUTE_ADDRESS_TYPE_TWOBYTES = 0x20;
+    static final int FLAG_ATTRIBUTE_ADDRESS_TYPE_THREEBYTES = 0x30;
+    static final int FLAG_ATTRIBUTE_FREQUENCY = 0x0F;
 
-    private static final int GROUP_CHARACTERS_TERMINATOR = 0x1F;
+    static final int GROUP_CHARACTERS_TERMINATOR = 0x1F;
 
     private static final int GROUP_COUNT_SIZE = 1;
     private static final int GROUP_TERMINATOR_SIZE = 1;
     private static final int GROUP_FLAGS_SIZE = 1;
     private static final int GROUP_FREQUENCY_SIZE = 1;
+    private static final int GROUP_SUBTREE_MAX_FREQUENCY_SIZE = 1;
     private static final int GROUP_MAX_ADDRESS_SIZE = 3;
     private static final int GROUP_ATTRIBUTE_FLAGS_SIZE = 1;
     private static final int GROUP_ATTRIBUTE_MAX_ADDRESS_SIZE = 3;
 
     private static final int NO_CHILDREN_ADDRESS = Integer.MIN_VALUE;
-    private static final int INVALID_CHARACTER = -1;
+    private static final int NO_NODE = FusionDictionary.NO_NODE;
+    private static final int NO_GROUP = FusionDictionary.NO_GROUP;
+    static final int INVALID_CHARACTER = -1;
 
     // Limiting to 127 for upward compatibility
     // TODO: implement a scheme to be able to shoot 256 chargroups in a node
@@ -155,6 +181,13 @@ public class BinaryDictInputOutput {
 
     private static final int MAX_TERMINAL_FREQUENCY = 255;
 
+    // A stable layout leaves this many free bytes after each run of nodes of at least the
+    // interval size, so that a node growing in a later version of the dictionary only moves
+    // the nodes up to the next gap.
+    private static final int STABLE_LAYOUT_GAP_INTERVAL = 128;
+    private static final int STABLE_LAYOUT_GAP_SIZE = 4;
+    private static final int NO_ANCHOR = -1;
+
     /**
      * A class grouping utility function for our specific character encoding.
      */
@@ -230,69 +263,218 @@ public class BinaryDictInputOutput {
          *
          * This follows the character format documented earlier in this source file.
          *
-         * @param source the file, positioned over an encoded character.
+         * @param source the buffer, positioned over an encoded character.
          * @return the character code.
          */
-        private static int readChar(RandomAccessFile source) throws IOException {
-            int character = source.readUnsignedByte();
+        private static int readChar(ByteBuffer source) {
+            int character = readUnsignedByte(source);
             if (!fitsOnOneByte(character)) {
                 if (GROUP_CHARACTERS_TERMINATOR == character)
                     return INVALID_CHARACTER;
                 character <<= 16;
-                character += source.readUnsignedShort();
+                character += readUnsignedShort(source);
             }
             return character;
         }
     }
 
+    /**
+     * The values computed to write a dictionary, indexed by node and group.
+     *
+     * The dictionary itself only stores the words, so the sizes and addresses the writer
+     * works out are kept here for the duration of the write.
+     */
+    private static class DictionaryLayout {
+        final FusionDictionary mDict;
+        final int[] mNodeSizes;
+        final int[] mNodeAddresses;
+        // The number of groups each node is the children of. More than 1 if tails are merged.
+        final int[] mNodeParentCounts;
+        final int[] mGroupSizes;
+        final int[] mGroupAddresses;
+        // The byte size of the characters of each group, including the terminator if any.
+        final int[] mGroupCharactersSizes;
+        // NOT_A_TERMINAL if the subtree max frequency is not to be written for the group.
+        final int[] mGroupSubtreeMaxFrequencies;
+        // The targets and frequencies of the bigrams of each group in the order they are
+        // written, which may differ from that of the dictionary. null for groups without
+        // bigrams.
+        final int[][] mBigramTargets;
+        final int[][] mBigramFrequencies;
+        // With a stable layout, the byte size each children address and each bigram address is
+        // written on, which may be more than the address needs. null with a compact layout,
+        // where each address takes the least bytes it can.
+        byte[] mChildrenAddressSizes;
+        byte[][] mBigramAddressSizes;
+
+        DictionaryLayout(final FusionDictionary dict) {
+            mDict = dict;
+            final int nodeCount = dict.getNodeCount();
+            final int groupCount = dict.getGroupCount();
+            mNodeSizes = new int[nodeCount];
+            mNodeAddresses = new int[nodeCount];
+            mNodeParentCounts = new int[nodeCount];
+            mGroupSizes = new int[groupCount];
+            mGroupAddresses = new int[groupCount];
+            mGroupCharactersSizes = new int[groupCount];
+            mGroupSubtreeMaxFrequencies = new int[groupCount];
+            mBigramTargets = new int[groupCount][];
+            mBigramFrequencies = new int[groupCount][];
+        }
+    }
+
     /**
      * Compute the binary size of the character array in a group
      *
      * If only one character, this is the size of this character. If many, it's the sum of their
      * sizes + 1 byte for the terminator.
      *
-     * @param group the group
+     * @param chars the characters of the group
      * @return the size of the char array, including the terminator if any
      */
-    private static int getGroupCharactersSize(CharGroup group) {
-        int size = CharEncoding.getCharArraySize(group.mChars);
-        if (group.hasSeveralChars()) size += GROUP_TERMINATOR_SIZE;
+    private static int getGroupCharactersSize(final int[] chars) {
+        int size = CharEncoding.getCharArraySize(chars);
+        if (chars.length > 1) size += GROUP_TERMINATOR_SIZE;
         return size;
     }
 
     /**
      * Compute the maximum size of a CharGroup, assuming 3-byte addresses for everything.
      *
+     * @param layout the layout of the dictionary.
      * @param group the CharGroup to compute the size of.
      * @return the maximum size of the group.
      */
-    private static int getCharGroupMaximumSize(CharGroup group) {
-        int size = getGroupCharactersSize(group) + GROUP_FLAGS_SIZE;
+    private static int getCharGroupMaximumSize(final DictionaryLayout layout, final int group) {
+        int size = layout.mGroupCharactersSizes[group] + GROUP_FLAGS_SIZE;
         // If terminal, one byte for the frequency
-        if (group.isTerminal()) size += GROUP_FREQUENCY_SIZE;
+        if (layout.mDict.getFrequency(group) >= 0) size += GROUP_FREQUENCY_SIZE;
+        if (hasSubtreeMaxFrequency(layout, group)) size += GROUP_SUBTREE_MAX_FREQUENCY_SIZE;
         size += GROUP_MAX_ADDRESS_SIZE; // For children address
-        if (null != group.mBigrams) {
-            for (WeightedString bigram : group.mBigrams) {
-                size += GROUP_ATTRIBUTE_FLAGS_SIZE + GROUP_ATTRIBUTE_MAX_ADDRESS_SIZE;
-            }
-        }
+        size += layout.mDict.getBigramCount(group)
+                * (GROUP_ATTRIBUTE_FLAGS_SIZE + GROUP_ATTRIBUTE_MAX_ADDRESS_SIZE);
         return size;
     }
 
     /**
      * Compute the maximum size of a node, assuming 3-byte addresses for everything, and caches
-     * it in the 'actualSize' member of the node.
+     * it in the layout.
      *
+     * @param layout the layout of the dictionary.
      * @param node the node to compute the maximum size of.
      */
-    private static void setNodeMaximumSize(Node node) {
+    private static void setNodeMaximumSize(final DictionaryLayout layout, final int node) {
+        final FusionDictionary dict = layout.mDict;
         int size = GROUP_COUNT_SIZE;
-        for (CharGroup g : node.mData) {
-            final int groupSize = getCharGroupMaximumSize(g);
-            g.mCachedSize = groupSize;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            layout.mGroupCharactersSizes[g] = getGroupCharactersSize(dict.getChars(g));
+            final int groupSize = getCharGroupMaximumSize(layout, g);
+            layout.mGroupSizes[g] = groupSize;
             size += groupSize;
         }
-        node.mCachedSize = size;
+        layout.mNodeSizes[node] = size;
+    }
+
+    /**
+     * Computes and caches the max frequency of the subtree of each group of a node.
+     *
+     * The max frequency of a group covers the group itself and all its descendants. It is
+     * only cached for the groups that have children and only if it should be written: leaves
+     * have no use for it, as it is their own frequency.
+     *
+     * @param layout the layout of the dictionary.
+     * @param node the node to compute the subtree max frequencies of.
+     * @param hasSubtreeMaxFrequencies whether the subtree max frequencies should be written.
+     * @return the max frequency of the node, or NOT_A_TERMINAL if it has no terminal.
+     */
+    private static int computeSubtreeMaxFrequencies(final DictionaryLayout layout,
+            final int node, final boolean hasSubtreeMaxFrequencies) {
+        final FusionDictionary dict = layout.mDict;
+        int maxFrequency = CharGroup.NOT_A_TERMINAL;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            int groupMaxFrequency = dict.getFrequency(g);
+            final int children = dict.getChildren(g);
+            if (NO_NODE != children) {
+                groupMaxFrequency = Math.max(groupMaxFrequency, computeSubtreeMaxFrequencies(
+                        layout, children, hasSubtreeMaxFrequencies));
+            }
+            layout.mGroupSubtreeMaxFrequencies[g] = hasSubtreeMaxFrequencies && NO_NODE != children
+                    ? groupMaxFrequency : CharGroup.NOT_A_TERMINAL;
+            maxFrequency = Math.max(maxFrequency, groupMaxFrequency);
+        }
+        return maxFrequency;
+    }
+
+    /**
+     * Records the first character of the words of the groups under a node.
+     *
+     * @param dict the dictionary.
+     * @param node the node to start from.
+     * @param firstChar the first character of the words under the node, or INVALID_CHARACTER
+     *   for the root.
+     * @param firstChars the array to record the first characters in, indexed by group.
+     * @param visitedNodes the nodes already seen, which shared nodes are after the first time.
+     */
+    private static void findFirstChars(final FusionDictionary dict, final int node,
+            final int firstChar, final int[] firstChars, final boolean[] visitedNodes) {
+        if (visitedNodes[node]) return;
+        visitedNodes[node] = true;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            firstChars[g] = INVALID_CHARACTER == firstChar ? dict.getChars(g)[0] : firstChar;
+            final int children = dict.getChildren(g);
+            if (NO_NODE != children) {
+                findFirstChars(dict, children, firstChars[g], firstChars, visitedNodes);
+            }
+        }
+    }
+
+    /**
+     * Computes the bigram lists of the groups of a list of nodes sorted by the first character
+     * of their targets, and stores them as the bigrams to write.
+     *
+     * The lists of the dictionary are left untouched, so that the dictionary can still be
+     * written in another format afterwards. The sort is stable, so bigrams starting with the
+     * same character keep their order.
+     *
+     * @param layout the layout of the dictionary.
+     * @param flatNodes the nodes to sort the bigrams of.
+     */
+    private static void groupBigramsByFirstChar(final DictionaryLayout layout,
+            final int[] flatNodes) {
+        final FusionDictionary dict = layout.mDict;
+        final int[] firstChars = new int[dict.getGroupCount()];
+        findFirstChars(dict, flatNodes[0], INVALID_CHARACTER, firstChars,
+                new boolean[dict.getNodeCount()]);
+        for (int node : flatNodes) {
+            for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+                final int bigramCount = dict.getBigramCount(g);
+                if (0 == bigramCount) continue;
+                final int[] targets = new int[bigramCount];
+                final int[] frequencies = new int[bigramCount];
+                for (int i = 0; i < bigramCount; ++i) {
+                    final int target = dict.getBigramTarget(g, i);
+                    final int frequency = dict.getBigramFrequency(g, i);
+                    // Insertion sort: the lists are short.
+                    int j = i;
+                    for (; j > 0 && firstChars[targets[j - 1]] > firstChars[target]; --j) {
+                        targets[j] = targets[j - 1];
+                        frequencies[j] = frequencies[j - 1];
+                    }
+                    targets[j] = target;
+                    frequencies[j] = frequency;
+                }
+                layout.mBigramTargets[g] = targets;
+                layout.mBigramFrequencies[g] = frequencies;
+            }
+        }
+    }
+
+    /**
+     * Helper method to find out whether the subtree max frequency is written for a group.
+     */
+    private static boolean hasSubtreeMaxFrequency(final DictionaryLayout layout,
+            final int group) {
+        return CharGroup.NOT_A_TERMINAL != layout.mGroupSubtreeMaxFrequencies[group];
     }
 
     /**
@@ -328,42 +510,74 @@ public class BinaryDictInputOutput {
 
     // This method is responsible for finding a nice ordering of the nodes that favors run-time
     // cache performance and dictionary size.
-    /* package for tests */ static ArrayList<Node> flattenTree(Node root) {
-        final int treeSize = FusionDictionary.countCharGroups(root);
-        MakedictLog.i("Counted nodes : " + treeSize);
-        final ArrayList<Node> flatTree = new ArrayList<Node>(treeSize);
-        return flattenTreeInner(flatTree, root);
+    // Nodes are listed depth first. If tails are merged, a node may have several parents: it is
+    // then listed after the last of them, because children addresses can't be negative. It
+    // also caches in the layout the number of parents of each node.
+    private static int[] flattenTree(final DictionaryLayout layout, final int root) {
+        final FusionDictionary dict = layout.mDict;
+        final int[] parentCounts = layout.mNodeParentCounts;
+        final int nodeCount = countParents(dict, root, parentCounts) + 1;
+        MakedictLog.i("Counted nodes : " + nodeCount);
+        parentCounts[root] = 0;
+        final int[] remainingParents = parentCounts.clone();
+
+        final int[] flatTree = new int[nodeCount];
+        int flatTreeSize = 0;
+        final int[] stack = new int[nodeCount];
+        int stackSize = 0;
+        final int[] groups = new int[dict.getGroupCount()];
+        stack[stackSize++] = root;
+        while (0 != stackSize) {
+            final int node = stack[--stackSize];
+            flatTree[flatTreeSize++] = node;
+            // Push the children in reverse order so that the first ones are listed first.
+            int groupCount = 0;
+            for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+                groups[groupCount++] = g;
+            }
+            for (int i = groupCount - 1; i >= 0; --i) {
+                final int children = dict.getChildren(groups[i]);
+                if (NO_NODE == children) continue;
+                if (0 == --remainingParents[children]) stack[stackSize++] = children;
+            }
+        }
+        return flatTree;
     }
 
-    private static ArrayList<Node> flattenTreeInner(ArrayList<Node> list, Node node) {
-        // Removing the node is necessary if the tails are merged, because we would then
-        // add the same node several times when we only want it once. A number of places in
-        // the code also depends on any node being only once in the list.
-        // Merging tails can only be done if there are no attributes. Searching for attributes
-        // in LatinIME code depends on a total breadth-first ordering, which merging tails
-        // breaks. If there are no attributes, it should be fine (and reduce the file size)
-        // to merge tails, and the following step would be necessary.
-        // If eventually the code runs on Android, searching through the whole array each time
-        // may be a performance concern.
-        list.remove(node);
-        list.add(node);
-        final ArrayList<CharGroup> branches = node.mData;
-        final int nodeSize = branches.size();
-        for (CharGroup group : branches) {
-            if (null != group.mChildren) flattenTreeInner(list, group.mChildren);
+    /**
+     * Flattens the tree under a node, in the order it is written.
+     *
+     * @param root the node to flatten the tree of.
+     * @return the nodes of the tree.
+     */
+    /* package for tests */ static ArrayList<Node> flattenTree(final Node root) {
+        final int[] flatTree = flattenTree(new DictionaryLayout(root.mDictionary), root.mId);
+        final ArrayList<Node> result = new ArrayList<Node>(flatTree.length);
+        for (int node : flatTree) {
+            result.add(new Node(root.mDictionary, node));
         }
-        return list;
+        return result;
     }
 
     /**
-     * Finds the absolute address of a word in the dictionary.
+     * Counts the number of groups each node under a node is the children of.
      *
-     * @param dict the dictionary in which to search.
-     * @param word the word we are searching for.
-     * @return the word address. If it is not found, an exception is thrown.
+     * @param dict the dictionary.
+     * @param node the node to start counting from.
+     * @param parentCounts the array to add the counts to, indexed by node.
+     * @return the number of distinct nodes under the node.
      */
-    private static int findAddressOfWord(final FusionDictionary dict, final String word) {
-        return FusionDictionary.findWordInTree(dict.mRoot, word).mCachedAddress;
+    private static int countParents(final FusionDictionary dict, final int node,
+            final int[] parentCounts) {
+        int nodeCount = 0;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            final int children = dict.getChildren(g);
+            if (NO_NODE == children) continue;
+            if (0 == parentCounts[children]++) {
+                nodeCount += 1 + countParents(dict, children, parentCounts);
+            }
+        }
+        return nodeCount;
     }
 
     /**
@@ -374,55 +588,125 @@ public class BinaryDictInputOutput {
      * on the address of the children because the number of bytes necessary to store an
      * address depends on its numeric value.
      *
+     * @param layout the layout of the dictionary.
      * @param node the node to compute the size of.
-     * @param dict the dictionary in which the word/attributes are to be found.
      */
-    private static void computeActualNodeSize(Node node, FusionDictionary dict) {
+    private static void computeActualNodeSize(final DictionaryLayout layout, final int node) {
+        final FusionDictionary dict = layout.mDict;
+        final int nodeAddress = layout.mNodeAddresses[node];
         int size = GROUP_COUNT_SIZE;
-        for (CharGroup group : node.mData) {
-            int groupSize = GROUP_FLAGS_SIZE + getGroupCharactersSize(group);
-            if (group.isTerminal()) groupSize += GROUP_FREQUENCY_SIZE;
-            if (null != group.mChildren) {
-                final int offsetBasePoint= groupSize + node.mCachedAddress + size;
-                final int offset = group.mChildren.mCachedAddress - offsetBasePoint;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            int groupSize = GROUP_FLAGS_SIZE + layout.mGroupCharactersSizes[g];
+            if (dict.getFrequency(g) >= 0) groupSize += GROUP_FREQUENCY_SIZE;
+            if (hasSubtreeMaxFrequency(layout, g)) groupSize += GROUP_SUBTREE_MAX_FREQUENCY_SIZE;
+            final int children = dict.getChildren(g);
+            if (NO_NODE != children) {
+                final int offsetBasePoint = groupSize + nodeAddress + size;
+                final int offset = layout.mNodeAddresses[children] - offsetBasePoint;
                 groupSize += getByteSize(offset);
             }
-            if (null != group.mBigrams) {
-                for (WeightedString bigram : group.mBigrams) {
-                    final int offsetBasePoint = groupSize + node.mCachedAddress + size
+            final int[] bigramTargets = layout.mBigramTargets[g];
+            if (null != bigramTargets) {
+                for (int target : bigramTargets) {
+                    final int offsetBasePoint = groupSize + nodeAddress + size
                             + GROUP_FLAGS_SIZE;
-                    final int addressOfBigram = findAddressOfWord(dict, bigram.mWord);
-                    final int offset = addressOfBigram - offsetBasePoint;
+                    final int offset = layout.mGroupAddresses[target] - offsetBasePoint;
                     groupSize += getByteSize(offset) + GROUP_FLAGS_SIZE;
                 }
             }
-            group.mCachedSize = groupSize;
+            layout.mGroupSizes[g] = groupSize;
             size += groupSize;
         }
-        node.mCachedSize = size;
+        layout.mNodeSizes[node] = size;
     }
 
     /**
      * Computes the byte size of a list of nodes and updates each node cached position.
      *
+     * @param layout the layout of the dictionary.
      * @param flatNodes the array of nodes.
      * @return the byte size of the entire stack.
      */
-    private static int stackNodes(ArrayList<Node> flatNodes) {
+    private static int stackNodes(final DictionaryLayout layout, final int[] flatNodes) {
         int nodeOffset = 0;
-        for (Node n : flatNodes) {
-            n.mCachedAddress = nodeOffset;
-            int groupOffset = 0;
-            for (CharGroup g : n.mData) {
-                g.mCachedAddress = GROUP_COUNT_SIZE + nodeOffset + groupOffset;
-                groupOffset += g.mCachedSize;
+        for (int n : flatNodes) {
+            placeNode(layout, n, nodeOffset);
+            nodeOffset += layout.mNodeSizes[n];
+        }
+        return nodeOffset;
+    }
+
+    /**
+     * Updates the cached position of a node and of its groups.
+     *
+     * @param layout the layout of the dictionary.
+     * @param node the node to place.
+     * @param nodeAddress the address of the node.
+     */
+    private static void placeNode(final DictionaryLayout layout, final int node,
+            final int nodeAddress) {
+        final FusionDictionary dict = layout.mDict;
+        layout.mNodeAddresses[node] = nodeAddress;
+        int groupOffset = 0;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            layout.mGroupAddresses[g] = GROUP_COUNT_SIZE + nodeAddress + groupOffset;
+            groupOffset += layout.mGroupSizes[g];
+        }
+        if (groupOffset + GROUP_COUNT_SIZE != layout.mNodeSizes[node]) {
+            throw new RuntimeException("Bug : Stored and computed node size differ");
+        }
+    }
+
+    /**
+     * Finds the index of the node containing an address.
+     *
+     * @param nodeAddresses the addresses of the stacked nodes, in increasing order.
+     * @param address the address to search for.
+     * @return the index of the node the address falls in.
+     */
+    private static int findIndexOfNodeAt(final int[] nodeAddresses, final int address) {
+        final int index = Arrays.binarySearch(nodeAddresses, address);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Tells whether the size of a node may change with the current node addresses.
+     *
+     * The size of a node only depends on the byte sizes of its offsets. An offset only changes
+     * if a node between its base and its target, both included, changed size since the last
+     * time the node size was computed. As sizes only ever decrease, the sizes that changed
+     * during the last pass are all that needs to be checked.
+     *
+     * @param layout the layout of the dictionary.
+     * @param node the node to check.
+     * @param nodeIndex the index of the node in the flat node array.
+     * @param nodeAddresses the addresses of the stacked nodes, in increasing order.
+     * @param shrinkCounts the count of nodes that shrunk in the last pass, before each index.
+     * @return whether the size of the node has to be computed again.
+     */
+    private static boolean mayChangeSize(final DictionaryLayout layout, final int node,
+            final int nodeIndex, final int[] nodeAddresses, final int[] shrinkCounts) {
+        if (shrinkCounts[nodeIndex + 1] != shrinkCounts[nodeIndex]) return true;
+        final FusionDictionary dict = layout.mDict;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            final int children = dict.getChildren(g);
+            if (NO_NODE != children) {
+                final int targetIndex =
+                        findIndexOfNodeAt(nodeAddresses, layout.mNodeAddresses[children]);
+                if (shrinkCounts[Math.max(nodeIndex, targetIndex) + 1]
+                        != shrinkCounts[Math.min(nodeIndex, targetIndex)]) return true;
             }
-            if (groupOffset + GROUP_COUNT_SIZE != n.mCachedSize) {
-                throw new RuntimeException("Bug : Stored and computed node size differ");
+            final int[] bigramTargets = layout.mBigramTargets[g];
+            if (null != bigramTargets) {
+                for (int target : bigramTargets) {
+                    final int targetIndex =
+                            findIndexOfNodeAt(nodeAddresses, layout.mGroupAddresses[target]);
+                    if (shrinkCounts[Math.max(nodeIndex, targetIndex) + 1]
+                            != shrinkCounts[Math.min(nodeIndex, targetIndex)]) return true;
+                }
             }
-            nodeOffset += n.mCachedSize;
         }
-        return nodeOffset;
+        return false;
     }
 
     /**
@@ -431,44 +715,270 @@ public class BinaryDictInputOutput {
      * This method takes a node array and will update its cached address and size values
      * so that they can be written into a file. It determines the smallest size each of the
      * nodes can be given the addresses of its children and attributes, and store that into
-     * each node.
+     * the layout.
      * The order of the node is given by the order of the array. This method makes no effort
      * to find a good order; it only mechanically computes the size this order results in.
+     * After the first pass, only the nodes with an offset spanning a node that shrunk in the
+     * previous pass are computed again.
      *
-     * @param dict the dictionary
+     * @param layout the layout of the dictionary, updated for address and size.
      * @param flatNodes the ordered array of nodes
-     * @return the same array it was passed. The nodes have been updated for address and size.
      */
-    private static ArrayList<Node> computeAddresses(FusionDictionary dict,
-            ArrayList<Node> flatNodes) {
+    private static void computeAddresses(final DictionaryLayout layout, final int[] flatNodes) {
         // First get the worst sizes and offsets
-        for (Node n : flatNodes) setNodeMaximumSize(n);
-        final int offset = stackNodes(flatNodes);
+        for (int n : flatNodes) setNodeMaximumSize(layout, n);
+        final int offset = stackNodes(layout, flatNodes);
 
         MakedictLog.i("Compressing the array addresses. Original size : " + offset);
         MakedictLog.i("(Recursively seen size : " + offset + ")");
 
+        final int nodeCount = flatNodes.length;
+        final int[] nodeAddresses = new int[nodeCount];
+        int[] shrinkCounts = null;
+        int[] nextShrinkCounts = new int[nodeCount + 1];
         int passes = 0;
         boolean changesDone = false;
         do {
             changesDone = false;
-            for (Node n : flatNodes) {
-                final int oldNodeSize = n.mCachedSize;
-                computeActualNodeSize(n, dict);
-                final int newNodeSize = n.mCachedSize;
+            for (int i = 0; i < nodeCount; ++i) {
+                nodeAddresses[i] = layout.mNodeAddresses[flatNodes[i]];
+            }
+            for (int i = 0; i < nodeCount; ++i) {
+                final int n = flatNodes[i];
+                nextShrinkCounts[i + 1] = nextShrinkCounts[i];
+                // On the first pass, all nodes still have their maximum size.
+                if (null != shrinkCounts
+                        && !mayChangeSize(layout, n, i, nodeAddresses, shrinkCounts)) {
+                    continue;
+                }
+                final int oldNodeSize = layout.mNodeSizes[n];
+                computeActualNodeSize(layout, n);
+                final int newNodeSize = layout.mNodeSizes[n];
                 if (oldNodeSize < newNodeSize) throw new RuntimeException("Increased size ?!");
-                if (oldNodeSize != newNodeSize) changesDone = true;
+                if (oldNodeSize != newNodeSize) {
+                    changesDone = true;
+                    ++nextShrinkCounts[i + 1];
+                }
             }
-            stackNodes(flatNodes);
+            final int[] lastShrinkCounts = shrinkCounts;
+            shrinkCounts = nextShrinkCounts;
+            nextShrinkCounts = null == lastShrinkCounts ? new int[nodeCount + 1] : lastShrinkCounts;
+            stackNodes(layout, flatNodes);
             ++passes;
         } while (changesDone);
 
-        final Node lastNode = flatNodes.get(flatNodes.size() - 1);
+        final int lastNode = flatNodes[flatNodes.length - 1];
         MakedictLog.i("Compression complete in " + passes + " passes.");
         MakedictLog.i("After address compression : "
-                + (lastNode.mCachedAddress + lastNode.mCachedSize));
+                + (layout.mNodeAddresses[lastNode] + layout.mNodeSizes[lastNode]));
+    }
+
+    /**
+     * Compute the addresses and sizes of an ordered node array for a stable layout.
+     *
+     * A stable layout keeps the nodes where the previous version of the dictionary had them,
+     * so that a patch between the two versions only has to carry the nodes that changed. The
+     * nodes are still written in the order of the array, since readers rely on the nodes
+     * under a group being after it and before the nodes under the next group, but each node
+     * goes at its anchor, the address of the node with the same word prefix in the previous
+     * version, if the previous nodes leave room for it. The bytes before it are left free.
+     * Without a previous version, free bytes are left at regular intervals instead, which
+     * later versions can grow nodes into.
+     *
+     * Offsets then don't only ever shrink as the sizes are worked out, so the byte size of
+     * each address starts at 1 and only ever grows: it may end up larger than the address
+     * needs, which the format allows since the flags give it.
+     *
+     * @param layout the layout of the dictionary, updated for address and size.
+     * @param flatNodes the ordered array of nodes
+     * @param anchors the address to keep each node at, indexed by node, or null.
+     */
+    private static void computeStableAddresses(final DictionaryLayout layout,
+            final int[] flatNodes, final int[] anchors) {
+        final FusionDictionary dict = layout.mDict;
+        layout.mChildrenAddressSizes = new byte[dict.getGroupCount()];
+        layout.mBigramAddressSizes = new byte[dict.getGroupCount()][];
+        for (int n : flatNodes) {
+            for (int g = dict.getFirstGroup(n); NO_GROUP != g; g = dict.getNextGroup(g)) {
+                layout.mGroupCharactersSizes[g] = getGroupCharactersSize(dict.getChars(g));
+                if (NO_NODE != dict.getChildren(g)) layout.mChildrenAddressSizes[g] = 1;
+                final int[] bigramTargets = layout.mBigramTargets[g];
+                if (null == bigramTargets) continue;
+                layout.mBigramAddressSizes[g] = new byte[bigramTargets.length];
+                Arrays.fill(layout.mBigramAddressSizes[g], (byte)1);
+            }
+        }
+
+        int passes = 0;
+        boolean changesDone = false;
+        do {
+            for (int n : flatNodes) computeStableNodeSize(layout, n);
+            int nodeOffset = 0;
+            int nextGap = STABLE_LAYOUT_GAP_INTERVAL;
+            for (int n : flatNodes) {
+                if (null != anchors) {
+                    nodeOffset = Math.max(nodeOffset, anchors[n]);
+                } else if (nodeOffset >= nextGap) {
+                    nodeOffset += STABLE_LAYOUT_GAP_SIZE;
+                    nextGap = nodeOffset + STABLE_LAYOUT_GAP_INTERVAL;
+                }
+                placeNode(layout, n, nodeOffset);
+                nodeOffset += layout.mNodeSizes[n];
+            }
+            changesDone = false;
+            for (int n : flatNodes) {
+                if (growAddressSizes(layout, n)) changesDone = true;
+            }
+            ++passes;
+        } while (changesDone);
+
+        final int lastNode = flatNodes[flatNodes.length - 1];
+        MakedictLog.i("Stable layout complete in " + passes + " passes : "
+                + (layout.mNodeAddresses[lastNode] + layout.mNodeSizes[lastNode]));
+    }
+
+    /**
+     * Computes the size of a node from the byte sizes of its addresses in a stable layout.
+     *
+     * @param layout the layout of the dictionary.
+     * @param node the node to compute the size of.
+     */
+    private static void computeStableNodeSize(final DictionaryLayout layout, final int node) {
+        final FusionDictionary dict = layout.mDict;
+        int size = GROUP_COUNT_SIZE;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            int groupSize = GROUP_FLAGS_SIZE + layout.mGroupCharactersSizes[g];
+            if (dict.getFrequency(g) >= 0) groupSize += GROUP_FREQUENCY_SIZE;
+            if (hasSubtreeMaxFrequency(layout, g)) groupSize += GROUP_SUBTREE_MAX_FREQUENCY_SIZE;
+            groupSize += layout.mChildrenAddressSizes[g];
+            final byte[] bigramAddressSizes = layout.mBigramAddressSizes[g];
+            if (null != bigramAddressSizes) {
+                for (byte addressSize : bigramAddressSizes) {
+                    groupSize += GROUP_FLAGS_SIZE + addressSize;
+                }
+            }
+            layout.mGroupSizes[g] = groupSize;
+            size += groupSize;
+        }
+        layout.mNodeSizes[node] = size;
+    }
 
-        return flatNodes;
+    /**
+     * Grows the byte sizes of the addresses of a node in a stable layout to fit their offsets.
+     *
+     * @param layout the layout of the dictionary.
+     * @param node the node to check the addresses of.
+     * @return whether any address size grew.
+     */
+    private static boolean growAddressSizes(final DictionaryLayout layout, final int node) {
+        final FusionDictionary dict = layout.mDict;
+        boolean grown = false;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            int groupAddress = layout.mGroupAddresses[g] + GROUP_FLAGS_SIZE
+                    + layout.mGroupCharactersSizes[g];
+            if (dict.getFrequency(g) >= 0) groupAddress += GROUP_FREQUENCY_SIZE;
+            if (hasSubtreeMaxFrequency(layout, g)) {
+                groupAddress += GROUP_SUBTREE_MAX_FREQUENCY_SIZE;
+            }
+            final int children = dict.getChildren(g);
+            if (NO_NODE != children) {
+                final int size = getByteSize(layout.mNodeAddresses[children] - groupAddress);
+                if (size > layout.mChildrenAddressSizes[g]) {
+                    layout.mChildrenAddressSizes[g] = (byte)size;
+                    grown = true;
+                }
+            }
+            groupAddress += layout.mChildrenAddressSizes[g];
+            final int[] bigramTargets = layout.mBigramTargets[g];
+            if (null == bigramTargets) continue;
+            final byte[] bigramAddressSizes = layout.mBigramAddressSizes[g];
+            for (int i = 0; i < bigramTargets.length; ++i) {
+                groupAddress += GROUP_FLAGS_SIZE;
+                final int size = getByteSize(layout.mGroupAddresses[bigramTargets[i]]
+                        - groupAddress);
+                if (size > bigramAddressSizes[i]) {
+                    bigramAddressSizes[i] = (byte)size;
+                    grown = true;
+                }
+                groupAddress += bigramAddressSizes[i];
+            }
+        }
+        return grown;
+    }
+
+    /**
+     * Finds where the previous version of a dictionary had each node of the new version.
+     *
+     * Nodes are matched by the word prefix leading to them. A node listed after one anchored
+     * further on can't be kept at its address anyway, so it is left without an anchor.
+     *
+     * @param layout the layout of the dictionary.
+     * @param flatNodes the ordered array of nodes.
+     * @param previousAddresses the node addresses of the previous version, by word prefix.
+     * @return the address to keep each node at, indexed by node, or NO_ANCHOR.
+     */
+    private static int[] findAnchors(final DictionaryLayout layout, final int[] flatNodes,
+            final HashMap<String, Integer> previousAddresses) {
+        final int[] anchors = new int[layout.mDict.getNodeCount()];
+        Arrays.fill(anchors, NO_ANCHOR);
+        findAnchors(layout.mDict, layout.mDict.mRoot.mId, new StringBuilder(),
+                previousAddresses, anchors);
+        int nextAnchor = Integer.MAX_VALUE;
+        for (int i = flatNodes.length - 1; i >= 0; --i) {
+            final int n = flatNodes[i];
+            if (NO_ANCHOR == anchors[n]) continue;
+            if (anchors[n] > nextAnchor) {
+                anchors[n] = NO_ANCHOR;
+            } else {
+                nextAnchor = anchors[n];
+            }
+        }
+        return anchors;
+    }
+
+    private static void findAnchors(final FusionDictionary dict, final int node,
+            final StringBuilder prefix, final HashMap<String, Integer> previousAddresses,
+            final int[] anchors) {
+        // A shared node is only looked up by the first prefix it is reached by.
+        if (NO_ANCHOR != anchors[node]) return;
+        final Integer address = previousAddresses.get(prefix.toString());
+        if (null != address) anchors[node] = address;
+        final int prefixLength = prefix.length();
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) {
+            final int children = dict.getChildren(g);
+            if (NO_NODE == children) continue;
+            for (int character : dict.getChars(g)) prefix.appendCodePoint(character);
+            findAnchors(dict, children, prefix, previousAddresses, anchors);
+            prefix.setLength(prefixLength);
+        }
+    }
+
+    /**
+     * Reads the address of each node of a binary dictionary, by the word prefix leading to it.
+     *
+     * @param source the buffer to read.
+     * @param headerSize the size of the header of the dictionary.
+     * @param nodeAddress the address of the node to start reading from.
+     * @param prefix the word prefix leading to the node.
+     * @param addresses the map to add the addresses to.
+     */
+    private static void readNodeAddresses(final ByteBuffer source, final int headerSize,
+            final int nodeAddress, final StringBuilder prefix,
+            final HashMap<String, Integer> addresses) {
+        addresses.put(prefix.toString(), nodeAddress);
+        source.position(nodeAddress + headerSize);
+        final int count = readUnsignedByte(source);
+        int groupOffset = nodeAddress + 1; // 1 byte for the group count
+        final int prefixLength = prefix.length();
+        for (int i = count; i > 0; --i) {
+            source.position(groupOffset + headerSize);
+            final CharGroupInfo info = readCharGroup(source, groupOffset);
+            groupOffset = info.mEndAddress;
+            if (!hasChildrenAddress(info.mChildrenAddress)) continue;
+            for (int character : info.mCharacters) prefix.appendCodePoint(character);
+            readNodeAddresses(source, headerSize, info.mChildrenAddress, prefix, addresses);
+            prefix.setLength(prefixLength);
+        }
     }
 
     /**
@@ -476,21 +986,25 @@ public class BinaryDictInputOutput {
      *
      * This method checks an array of node for juxtaposition, that is, it will do
      * nothing if each node's cached address is actually the previous node's address
-     * plus the previous node's size.
+     * plus the previous node's size, or at least that if free bytes are allowed between nodes.
      * If this is not the case, it will throw an exception.
      *
+     * @param layout the layout of the dictionary.
      * @param array the array node to check
+     * @param hasGaps whether there may be free bytes between nodes.
      */
-    private static void checkFlatNodeArray(ArrayList<Node> array) {
+    private static void checkFlatNodeArray(final DictionaryLayout layout, final int[] array,
+            final boolean hasGaps) {
         int offset = 0;
         int index = 0;
-        for (Node n : array) {
-            if (n.mCachedAddress != offset) {
+        for (int n : array) {
+            if (layout.mNodeAddresses[n] < offset
+                    || (!hasGaps && layout.mNodeAddresses[n] != offset)) {
                 throw new RuntimeException("Wrong address for node " + index
-                        + " : expected " + offset + ", got " + n.mCachedAddress);
+                        + " : expected " + offset + ", got " + layout.mNodeAddresses[n]);
             }
             ++index;
-            offset += n.mCachedSize;
+            offset = layout.mNodeAddresses[n] + layout.mNodeSizes[n];
         }
     }
 
@@ -500,10 +1014,11 @@ public class BinaryDictInputOutput {
      * @param buffer the buffer to write to.
      * @param index the index in the buffer to write the address to.
      * @param address the address to write.
+     * @param size the size in bytes to write the address on, at least getByteSize(address).
      * @return the size in bytes the address actually took.
      */
-    private static int writeVariableAddress(byte[] buffer, int index, int address) {
-        switch (getByteSize(address)) {
+    private static int writeVariableAddress(byte[] buffer, int index, int address, int size) {
+        switch (size) {
         case 1:
             buffer[index++] = (byte)address;
             return 1;
@@ -523,15 +1038,17 @@ public class BinaryDictInputOutput {
         }
     }
 
-    private static byte makeCharGroupFlags(final CharGroup group, final int groupAddress,
-            final int childrenOffset) {
+    private static byte makeCharGroupFlags(final DictionaryLayout layout, final int group,
+            final int[] chars, final int childrenAddressSize) {
+        final FusionDictionary dict = layout.mDict;
         byte flags = 0;
-        if (group.mChars.length > 1) flags |= FLAG_HAS_MULTIPLE_CHARS;
-        if (group.mFrequency >= 0) {
+        if (chars.length > 1) flags |= FLAG_HAS_MULTIPLE_CHARS;
+        if (dict.getFrequency(group) >= 0) {
             flags |= FLAG_IS_TERMINAL;
         }
-        if (null != group.mChildren) {
-            switch (getByteSize(childrenOffset)) {
+        final int children = dict.getChildren(group);
+        if (NO_NODE != children) {
+            switch (childrenAddressSize) {
              case 1:
                  flags |= FLAG_GROUP_ADDRESS_TYPE_ONEBYTE;
                  break;
@@ -545,7 +1062,11 @@ public class BinaryDictInputOutput {
                  throw new RuntimeException("Node with a strange address");
              }
         }
-        if (null != group.mBigrams) flags |= FLAG_HAS_BIGRAMS;
+        if (hasSubtreeMaxFrequency(layout, group)) flags |= FLAG_HAS_SUBTREE_MAX_FREQUENCY;
+        if (null != layout.mBigramTargets[group]) flags |= FLAG_HAS_BIGRAMS;
+        if (NO_NODE != children && layout.mNodeParentCounts[children] > 1) {
+            flags |= FLAG_HAS_SHARED_CHILDREN;
+        }
         return flags;
     }
 
@@ -554,14 +1075,15 @@ public class BinaryDictInputOutput {
      *
      * @param more whether there are more attributes after this one.
      * @param offset the offset of the attribute.
+     * @param addressSize the byte size the offset is written on.
      * @param frequency the frequency of the attribute, 0..15
      * @return the flags
      */
     private static final int makeAttributeFlags(final boolean more, final int offset,
-            final int frequency) {
+            final int addressSize, final int frequency) {
         int bigramFlags = (more ? FLAG_ATTRIBUTE_HAS_NEXT : 0)
                 + (offset < 0 ? FLAG_ATTRIBUTE_OFFSET_NEGATIVE : 0);
-        switch (getByteSize(offset)) {
+        switch (addressSize) {
         case 1:
             bigramFlags |= FLAG_ATTRIBUTE_ADDRESS_TYPE_ONEBYTE;
             break;
@@ -581,71 +1103,93 @@ public class BinaryDictInputOutput {
     /**
      * Write a node to memory. The node is expected to have its final position cached.
      *
-     * This can be an empty map, but the more is inside the faster the lookups will be. It can
-     * be carried on as long as nodes do not move.
+     * The node is written at the start of the buffer, which must be at least as large as the
+     * node. Offsets are still computed from the cached addresses, so the buffer contents can be
+     * written out as is once the previous nodes have been.
      *
-     * @param dict the dictionary the node is a part of (for relative offsets).
+     * @param layout the layout of the dictionary.
      * @param buffer the memory buffer to write to.
      * @param node the node to write.
-     * @return the address of the END of the node.
+     * @return the size of the node, in bytes.
      */
-    private static int writePlacedNode(FusionDictionary dict, byte[] buffer, Node node) {
-        int index = node.mCachedAddress;
+    private static int writePlacedNode(final DictionaryLayout layout, byte[] buffer,
+            final int node) {
+        final FusionDictionary dict = layout.mDict;
+        final int nodeAddress = layout.mNodeAddresses[node];
+        int index = 0;
 
-        final int size = node.mData.size();
+        int size = 0;
+        for (int g = dict.getFirstGroup(node); NO_GROUP != g; g = dict.getNextGroup(g)) ++size;
         if (size > MAX_CHARGROUPS_IN_A_NODE)
             throw new RuntimeException("A node has a group count over 127 (" + size + ").");
 
         buffer[index++] = (byte)size;
-        int groupAddress = index;
-        for (int i = 0; i < size; ++i) {
-            CharGroup group = node.mData.get(i);
-            if (index != group.mCachedAddress) throw new RuntimeException("Bug: write index is not "
-                    + "the same as the cached address of the group");
-            groupAddress += GROUP_FLAGS_SIZE + getGroupCharactersSize(group);
+        int groupAddress = nodeAddress + index;
+        for (int group = dict.getFirstGroup(node); NO_GROUP != group;
+                group = dict.getNextGroup(group)) {
+            if (nodeAddress + index != layout.mGroupAddresses[group]) {
+                throw new RuntimeException("Bug: write index is not "
+                        + "the same as the cached address of the group");
+            }
+            final int[] chars = dict.getChars(group);
+            final int frequency = dict.getFrequency(group);
+            groupAddress += GROUP_FLAGS_SIZE + layout.mGroupCharactersSizes[group];
             // Sanity checks.
-            if (group.mFrequency > MAX_TERMINAL_FREQUENCY) {
+            if (frequency > MAX_TERMINAL_FREQUENCY) {
                 throw new RuntimeException("A node has a frequency > " + MAX_TERMINAL_FREQUENCY
-                        + " : " + group.mFrequency);
+                        + " : " + frequency);
             }
-            if (group.mFrequency >= 0) groupAddress += GROUP_FREQUENCY_SIZE;
-            final int childrenOffset = null == group.mChildren
-                    ? NO_CHILDREN_ADDRESS : group.mChildren.mCachedAddress - groupAddress;
-            byte flags = makeCharGroupFlags(group, groupAddress, childrenOffset);
+            if (frequency >= 0) groupAddress += GROUP_FREQUENCY_SIZE;
+            if (hasSubtreeMaxFrequency(layout, group)) {
+                groupAddress += GROUP_SUBTREE_MAX_FREQUENCY_SIZE;
+            }
+            final int children = dict.getChildren(group);
+            final int childrenOffset = NO_NODE == children
+                    ? NO_CHILDREN_ADDRESS : layout.mNodeAddresses[children] - groupAddress;
+            final int childrenAddressSize = null == layout.mChildrenAddressSizes
+                    ? getByteSize(childrenOffset) : layout.mChildrenAddressSizes[group];
+            byte flags = makeCharGroupFlags(layout, group, chars, childrenAddressSize);
             buffer[index++] = flags;
-            index = CharEncoding.writeCharArray(group.mChars, buffer, index);
-            if (group.hasSeveralChars()) {
+            index = CharEncoding.writeCharArray(chars, buffer, index);
+            if (chars.length > 1) {
                 buffer[index++] = GROUP_CHARACTERS_TERMINATOR;
             }
-            if (group.mFrequency >= 0) {
-                buffer[index++] = (byte) group.mFrequency;
+            if (frequency >= 0) {
+                buffer[index++] = (byte) frequency;
+            }
+            if (hasSubtreeMaxFrequency(layout, group)) {
+                buffer[index++] = (byte) layout.mGroupSubtreeMaxFrequencies[group];
             }
-            final int shift = writeVariableAddress(buffer, index, childrenOffset);
+            final int shift =
+                    writeVariableAddress(buffer, index, childrenOffset, childrenAddressSize);
             index += shift;
             groupAddress += shift;
 
             // Write bigrams
-            if (null != group.mBigrams) {
-                int remainingBigrams = group.mBigrams.size();
-                for (WeightedString bigram : group.mBigrams) {
-                    boolean more = remainingBigrams > 1;
-                    final int addressOfBigram = findAddressOfWord(dict, bigram.mWord);
+            final int[] bigramTargets = layout.mBigramTargets[group];
+            if (null != bigramTargets) {
+                for (int i = 0; i < bigramTargets.length; ++i) {
+                    boolean more = i < bigramTargets.length - 1;
+                    final int addressOfBigram = layout.mGroupAddresses[bigramTargets[i]];
                     ++groupAddress;
                     final int offset = addressOfBigram - groupAddress;
-                    int bigramFlags = makeAttributeFlags(more, offset, bigram.mFrequency);
+                    final int addressSize = null == layout.mBigramAddressSizes
+                            ? getByteSize(offset) : layout.mBigramAddressSizes[group][i];
+                    int bigramFlags = makeAttributeFlags(more, offset, addressSize,
+                            layout.mBigramFrequencies[group][i]);
                     buffer[index++] = (byte)bigramFlags;
-                    final int bigramShift = writeVariableAddress(buffer, index, Math.abs(offset));
+                    final int bigramShift =
+                            writeVariableAddress(buffer, index, Math.abs(offset), addressSize);
                     index += bigramShift;
                     groupAddress += bigramShift;
-                    --remainingBigrams;
                 }
             }
 
         }
-        if (index != node.mCachedAddress + node.mCachedSize) throw new RuntimeException(
+        if (index != layout.mNodeSizes[node]) throw new RuntimeException(
                 "Not the same size : written "
-                + (index - node.mCachedAddress) + " bytes out of a node that should have "
-                + node.mCachedSize + " bytes");
+                + index + " bytes out of a node that should have "
+                + layout.mNodeSizes[node] + " bytes");
         return index;
     }
 
@@ -655,42 +1199,51 @@ public class BinaryDictInputOutput {
      * This prints purely informative stuff, like the total estimated file size, the
      * number of nodes, of character groups, the repartition of each address size, etc
      *
+     * @param layout the layout of the dictionary.
      * @param nodes the node array.
      */
-    private static void showStatistics(ArrayList<Node> nodes) {
+    private static void showStatistics(final DictionaryLayout layout, final int[] nodes) {
+        final FusionDictionary dict = layout.mDict;
         int firstTerminalAddress = Integer.MAX_VALUE;
         int lastTerminalAddress = Integer.MIN_VALUE;
         int size = 0;
         int charGroups = 0;
         int maxGroups = 0;
         int maxRuns = 0;
-        for (Node n : nodes) {
-            if (maxGroups < n.mData.size()) maxGroups = n.mData.size();
-            for (CharGroup cg : n.mData) {
+        for (int n : nodes) {
+            final int nodeAddress = layout.mNodeAddresses[n];
+            int groupCount = 0;
+            for (int g = dict.getFirstGroup(n); NO_GROUP != g; g = dict.getNextGroup(g)) {
+                ++groupCount;
                 ++charGroups;
-                if (cg.mChars.length > maxRuns) maxRuns = cg.mChars.length;
-                if (cg.mFrequency >= 0) {
-                    if (n.mCachedAddress < firstTerminalAddress)
-                        firstTerminalAddress = n.mCachedAddress;
-                    if (n.mCachedAddress > lastTerminalAddress)
-                        lastTerminalAddress = n.mCachedAddress;
+                if (dict.getCharCount(g) > maxRuns) maxRuns = dict.getCharCount(g);
+                if (dict.getFrequency(g) >= 0) {
+                    if (nodeAddress < firstTerminalAddress)
+                        firstTerminalAddress = nodeAddress;
+                    if (nodeAddress > lastTerminalAddress)
+                        lastTerminalAddress = nodeAddress;
                 }
             }
-            if (n.mCachedAddress + n.mCachedSize > size) size = n.mCachedAddress + n.mCachedSize;
+            if (maxGroups < groupCount) maxGroups = groupCount;
+            if (nodeAddress + layout.mNodeSizes[n] > size) {
+                size = nodeAddress + layout.mNodeSizes[n];
+            }
         }
         final int[] groupCounts = new int[maxGroups + 1];
         final int[] runCounts = new int[maxRuns + 1];
-        for (Node n : nodes) {
-            ++groupCounts[n.mData.size()];
-            for (CharGroup cg : n.mData) {
-                ++runCounts[cg.mChars.length];
+        for (int n : nodes) {
+            int groupCount = 0;
+            for (int g = dict.getFirstGroup(n); NO_GROUP != g; g = dict.getNextGroup(g)) {
+                ++groupCount;
+                ++runCounts[dict.getCharCount(g)];
             }
+            ++groupCounts[groupCount];
         }
 
         MakedictLog.i("Statistics:\n"
                 + "  total file size " + size + "\n"
-                + "  " + nodes.size() + " nodes\n"
-                + "  " + charGroups + " groups (" + ((float)charGroups / nodes.size())
+                + "  " + nodes.length + " nodes\n"
+                + "  " + charGroups + " groups (" + ((float)charGroups / nodes.length)
                         + " groups per node)\n"
                 + "  first terminal at " + firstTerminalAddress + "\n"
                 + "  last terminal at " + lastTerminalAddress + "\n"
@@ -714,51 +1267,139 @@ public class BinaryDictInputOutput {
      */
     public static void writeDictionaryBinary(OutputStream destination, FusionDictionary dict)
             throws IOException {
+        writeDictionaryBinary(destination, dict, false);
+    }
 
-        // Addresses are limited to 3 bytes, so we'll just make a 16MB buffer. Since addresses
-        // can be relative to each node, the structure itself is not limited to 16MB at all, but
-        // I doubt this will ever be shot. If it is, deciding the order of the nodes becomes
-        // a quite complicated problem, because though the dictionary itself does not have a
-        // size limit, each node must still be within 16MB of all its children and parents.
-        // As long as this is ensured, the dictionary file may grow to any size.
-        // Anyway, to make a dictionary bigger than 16MB just increase the size of this buffer.
-        final byte[] buffer = new byte[1 << 24];
-        int index = 0;
+    /**
+     * Dumps a FusionDictionary to a file, optionally with the subtree max frequencies.
+     *
+     * The subtree max frequencies let a reader bound the frequency of any word under a group
+     * without visiting it, at the cost of one byte per group with children.
+     *
+     * @param destination the stream to write the binary data to.
+     * @param dict the dictionary to write.
+     * @param hasSubtreeMaxFrequencies whether to write the subtree max frequencies.
+     */
+    public static void writeDictionaryBinary(OutputStream destination, FusionDictionary dict,
+            final boolean hasSubtreeMaxFrequencies) throws IOException {
+        writeDictionaryBinary(destination, dict, hasSubtreeMaxFrequencies, false, null);
+    }
 
-        // Magic number in big-endian order.
-        buffer[index++] = (byte) (0xFF & (MAGIC_NUMBER >> 8));
-        buffer[index++] = (byte) (0xFF & MAGIC_NUMBER);
-        // Dictionary version.
-        buffer[index++] = (byte) (0xFF & VERSION);
-        // Options flags
-        buffer[index++] = (byte) (0xFF & (OPTIONS >> 8));
-        buffer[index++] = (byte) (0xFF & OPTIONS);
+    /**
+     * Dumps a FusionDictionary to a file with a stable layout.
+     *
+     * A stable layout keeps the nodes of the dictionary at the same address from one version
+     * to the next where it can, and leaves free bytes between nodes for later versions to
+     * grow into. This makes the file a little larger, but a patch between two versions with a
+     * stable layout only carries the nodes that changed, instead of every node after the first
+     * change and every bigram pointing over it.
+     *
+     * @param destination the stream to write the binary data to.
+     * @param dict the dictionary to write.
+     * @param hasSubtreeMaxFrequencies whether to write the subtree max frequencies.
+     * @param previous the previous version of the dictionary, positioned at its start, as a
+     *   binary dictionary written with a stable layout, or null if this is the first version.
+     */
+    public static void writeStableDictionaryBinary(OutputStream destination,
+            FusionDictionary dict, final boolean hasSubtreeMaxFrequencies,
+            final ByteBuffer previous) throws IOException, UnsupportedFormatException {
+        HashMap<String, Integer> previousAddresses = null;
+        if (null != previous) {
+            final ByteBuffer source = previous.duplicate();
+            final int headerSize = readHeader(source);
+            previousAddresses = new HashMap<String, Integer>();
+            readNodeAddresses(source, headerSize, 0, new StringBuilder(), previousAddresses);
+        }
+        writeDictionaryBinary(destination, dict, hasSubtreeMaxFrequencies, true,
+                previousAddresses);
+    }
 
-        // Should we include the locale and title of the dictionary ?
+    /**
+     * Dumps a FusionDictionary to a file with a compact or a stable layout.
+     *
+     * @param destination the stream to write the binary data to.
+     * @param dict the dictionary to write.
+     * @param hasSubtreeMaxFrequencies whether to write the subtree max frequencies.
+     * @param isStable whether to write the dictionary with a stable layout.
+     * @param previousAddresses with a stable layout, the node addresses of the previous
+     *   version of the dictionary by word prefix, or null.
+     */
+    private static void writeDictionaryBinary(OutputStream destination, FusionDictionary dict,
+            final boolean hasSubtreeMaxFrequencies, final boolean isStable,
+            final HashMap<String, Integer> previousAddresses) throws IOException {
 
-        destination.write(buffer, 0, index);
-        index = 0;
+        dict.resolveBigramTargets();
+        final DictionaryLayout layout = new DictionaryLayout(dict);
 
         // Leave the choice of the optimal node order to the flattenTree function.
         MakedictLog.i("Flattening the tree...");
-        ArrayList<Node> flatNodes = flattenTree(dict.mRoot);
+        final int[] flatNodes = flattenTree(layout, dict.mRoot.mId);
+
+        computeSubtreeMaxFrequencies(layout, dict.mRoot.mId, hasSubtreeMaxFrequencies);
+        // The bigram lists have to be in their final order before the addresses are computed.
+        groupBigramsByFirstChar(layout, flatNodes);
 
         MakedictLog.i("Computing addresses...");
-        computeAddresses(dict, flatNodes);
+        if (isStable) {
+            computeStableAddresses(layout, flatNodes, null == previousAddresses
+                    ? null : findAnchors(layout, flatNodes, previousAddresses));
+        } else {
+            computeAddresses(layout, flatNodes);
+        }
         MakedictLog.i("Checking array...");
-        checkFlatNodeArray(flatNodes);
+        checkFlatNodeArray(layout, flatNodes, isStable);
 
-        MakedictLog.i("Writing file...");
-        int dataEndOffset = 0;
-        for (Node n : flatNodes) {
-            dataEndOffset = writePlacedNode(dict, buffer, n);
+        final OutputStream output = new BufferedOutputStream(destination);
+        final byte[] header = new byte[5];
+        int index = 0;
+
+        // Magic number in big-endian order.
+        header[index++] = (byte) (0xFF & (MAGIC_NUMBER >> 8));
+        header[index++] = (byte) (0xFF & MAGIC_NUMBER);
+        // Dictionary version. Files with shared nodes can only be read by readers that know
+        // not to descend them when searching for a bigram target.
+        boolean hasSharedNodes = false;
+        for (int n : flatNodes) {
+            if (layout.mNodeParentCounts[n] > 1) hasSharedNodes = true;
         }
+        final int version = hasSharedNodes ? VERSION_WITH_MERGED_TAILS : VERSION;
+        header[index++] = (byte) (0xFF & version);
+        // Options flags
+        final int options = OPTION_GROUPED_BIGRAMS
+                | (hasSubtreeMaxFrequencies ? OPTION_HAS_SUBTREE_MAX_FREQUENCIES : NO_OPTIONS);
+        header[index++] = (byte) (0xFF & (options >> 8));
+        header[index++] = (byte) (0xFF & options);
+
+        // Should we include the locale and title of the dictionary ?
 
-        showStatistics(flatNodes);
+        output.write(header, 0, index);
 
-        destination.write(buffer, 0, dataEndOffset);
+        MakedictLog.i("Writing file...");
+        // Nodes are stacked in address order, so they can be streamed one at a time through a
+        // buffer the size of the largest node. Since all addresses are relative, the file
+        // itself has no size limit as long as each node is within 16MB of its children and
+        // of its bigram targets.
+        int maxNodeSize = 0;
+        for (int n : flatNodes) {
+            maxNodeSize = Math.max(maxNodeSize, layout.mNodeSizes[n]);
+        }
+        final byte[] buffer = new byte[Math.max(maxNodeSize, STABLE_LAYOUT_GAP_SIZE)];
+        int nodeOffset = 0;
+        for (int n : flatNodes) {
+            // Free bytes before the node, with a stable layout, are zeroes.
+            if (nodeOffset < layout.mNodeAddresses[n]) Arrays.fill(buffer, (byte)0);
+            for (; nodeOffset < layout.mNodeAddresses[n]; nodeOffset += buffer.length) {
+                output.write(buffer, 0,
+                        Math.min(buffer.length, layout.mNodeAddresses[n] - nodeOffset));
+            }
+            final int nodeSize = writePlacedNode(layout, buffer, n);
+            output.write(buffer, 0, nodeSize);
+            nodeOffset = layout.mNodeAddresses[n] + nodeSize;
+        }
 
-        destination.close();
+        showStatistics(layout, flatNodes);
+
+        output.close();
         MakedictLog.i("Done");
     }
 
@@ -766,11 +1407,19 @@ public class BinaryDictInputOutput {
     // Input methods: Read a binary dictionary to memory.
     // readDictionaryBinary is the public entry point for them.
 
+    private static int readUnsignedByte(ByteBuffer source) {
+        return source.get() & 0xFF;
+    }
+
+    private static int readUnsignedShort(ByteBuffer source) {
+        return source.getShort() & 0xFFFF;
+    }
+
     static final int[] characterBuffer = new int[MAX_WORD_LENGTH];
-    private static CharGroupInfo readCharGroup(RandomAccessFile source,
-            final int originalGroupAddress) throws IOException {
+    /* package for tests */ static CharGroupInfo readCharGroup(ByteBuffer source,
+            final int originalGroupAddress) {
         int addressPointer = originalGroupAddress;
-        final int flags = source.readUnsignedByte();
+        final int flags = readUnsignedByte(source);
         ++addressPointer;
         final int characters[];
         if (0 != (flags & FLAG_HAS_MULTIPLE_CHARS)) {
@@ -791,22 +1440,29 @@ public class BinaryDictInputOutput {
         final int frequency;
         if (0 != (FLAG_IS_TERMINAL & flags)) {
             ++addressPointer;
-            frequency = source.readUnsignedByte();
+            frequency = readUnsignedByte(source);
         } else {
             frequency = CharGroup.NOT_A_TERMINAL;
         }
+        final int subtreeMaxFrequency;
+        if (0 != (FLAG_HAS_SUBTREE_MAX_FREQUENCY & flags)) {
+            ++addressPointer;
+            subtreeMaxFrequency = readUnsignedByte(source);
+        } else {
+            subtreeMaxFrequency = CharGroup.NOT_A_TERMINAL;
+        }
         int childrenAddress = addressPointer;
         switch (flags & MASK_GROUP_ADDRESS_TYPE) {
         case FLAG_GROUP_ADDRESS_TYPE_ONEBYTE:
-            childrenAddress += source.readUnsignedByte();
+            childrenAddress += readUnsignedByte(source);
             addressPointer += 1;
             break;
         case FLAG_GROUP_ADDRESS_TYPE_TWOBYTES:
-            childrenAddress += source.readUnsignedShort();
+            childrenAddress += readUnsignedShort(source);
             addressPointer += 2;
             break;
         case FLAG_GROUP_ADDRESS_TYPE_THREEBYTES:
-            childrenAddress += (source.readUnsignedByte() << 16) + source.readUnsignedShort();
+            childrenAddress += (readUnsignedByte(source) << 16) + readUnsignedShort(source);
             addressPointer += 3;
             break;
         case FLAG_GROUP_ADDRESS_TYPE_NOADDRESS:
@@ -819,23 +1475,23 @@ public class BinaryDictInputOutput {
             bigrams = new ArrayList<PendingAttribute>();
             boolean more = true;
             while (more) {
-                int bigramFlags = source.readUnsignedByte();
+                int bigramFlags = readUnsignedByte(source);
                 ++addressPointer;
                 more = (0 != (bigramFlags & FLAG_ATTRIBUTE_HAS_NEXT));
                 final int sign = 0 == (bigramFlags & FLAG_ATTRIBUTE_OFFSET_NEGATIVE) ? 1 : -1;
                 int bigramAddress = addressPointer;
                 switch (bigramFlags & MASK_ATTRIBUTE_ADDRESS_TYPE) {
                 case FLAG_ATTRIBUTE_ADDRESS_TYPE_ONEBYTE:
-                    bigramAddress += sign * source.readUnsignedByte();
+                    bigramAddress += sign * readUnsignedByte(source);
                     addressPointer += 1;
                     break;
                 case FLAG_ATTRIBUTE_ADDRESS_TYPE_TWOBYTES:
-                    bigramAddress += sign * source.readUnsignedShort();
+                    bigramAddress += sign * readUnsignedShort(source);
                     addressPointer += 2;
                     break;
                 case FLAG_ATTRIBUTE_ADDRESS_TYPE_THREEBYTES:
-                    final int offset = ((source.readUnsignedByte() << 16)
-                            + source.readUnsignedShort());
+                    final int offset = ((readUnsignedByte(source) << 16)
+                            + readUnsignedShort(source));
                     bigramAddress += sign * offset;
                     addressPointer += 3;
                     break;
@@ -847,23 +1503,21 @@ public class BinaryDictInputOutput {
             }
         }
         return new CharGroupInfo(originalGroupAddress, addressPointer, flags, characters, frequency,
-                childrenAddress, bigrams);
+                subtreeMaxFrequency, childrenAddress, bigrams);
     }
 
     /**
      * Finds, as a string, the word at the address passed as an argument.
      *
-     * @param source the file to read from.
+     * @param source the buffer to read from.
      * @param headerSize the size of the header.
      * @param address the address to seek.
      * @return the word, as a string.
-     * @throws IOException if the file can't be read.
      */
-    private static String getWordAtAddress(RandomAccessFile source, long headerSize,
-            int address) throws IOException {
-        final long originalPointer = source.getFilePointer();
-        source.seek(headerSize);
-        final int count = source.readUnsignedByte();
+    private static String getWordAtAddress(ByteBuffer source, int headerSize, int address) {
+        final int originalPosition = source.position();
+        source.position(headerSize);
+        final int count = readUnsignedByte(source);
         int groupOffset = 1; // 1 for the group count
         final StringBuilder builder = new StringBuilder();
         String result = null;
@@ -877,51 +1531,51 @@ public class BinaryDictInputOutput {
                 result = builder.toString();
                 break; // and return
             }
-            if (hasChildrenAddress(info.mChildrenAddress)) {
+            // Shared children never hold bigram targets and are not laid out in order.
+            if (hasChildrenAddress(info.mChildrenAddress)
+                    && 0 == (info.mFlags & FLAG_HAS_SHARED_CHILDREN)) {
                 if (info.mChildrenAddress > address) {
                     if (null == last) continue;
                     builder.append(new String(last.mCharacters, 0, last.mCharacters.length));
-                    source.seek(last.mChildrenAddress + headerSize);
+                    source.position(last.mChildrenAddress + headerSize);
                     groupOffset = last.mChildrenAddress + 1;
-                    i = source.readUnsignedByte();
+                    i = readUnsignedByte(source);
                     last = null;
                     continue;
                 }
                 last = info;
             }
-            if (0 == i && hasChildrenAddress(last.mChildrenAddress)) {
+            if (0 == i && null != last && hasChildrenAddress(last.mChildrenAddress)) {
                 builder.append(new String(last.mCharacters, 0, last.mCharacters.length));
-                source.seek(last.mChildrenAddress + headerSize);
+                source.position(last.mChildrenAddress + headerSize);
                 groupOffset = last.mChildrenAddress + 1;
-                i = source.readUnsignedByte();
+                i = readUnsignedByte(source);
                 last = null;
                 continue;
             }
         }
-        source.seek(originalPointer);
+        source.position(originalPosition);
         return result;
     }
 
     /**
-     * Reads a single node from a binary file.
+     * Reads a single node from a binary buffer.
      *
-     * This methods reads the file at the current position of its file pointer. A node is
-     * fully expected to start at the current position.
-     * This will recursively read other nodes into the structure, populating the reverse
-     * maps on the fly and using them to keep track of already read nodes.
+     * This methods reads the buffer at its current position. A node is fully expected to start
+     * at the current position.
+     * This will recursively read other nodes into the structure. Nodes shared by several
+     * groups in files with merged tails are read once for each of them, so that the result
+     * is a tree words can be added to.
      *
-     * @param source the data file, correctly positioned at the start of a node.
+     * @param source the data buffer, correctly positioned at the start of a node.
      * @param headerSize the size, in bytes, of the file header.
-     * @param reverseNodeMap a mapping from addresses to already read nodes.
-     * @param reverseGroupMap a mapping from addresses to already read character groups.
-     * @return the read node with all his children already read.
+     * @param dict the dictionary to read the node into.
+     * @param node the node of the dictionary to add the groups read to.
      */
-    private static Node readNode(RandomAccessFile source, long headerSize,
-            Map<Integer, Node> reverseNodeMap, Map<Integer, CharGroup> reverseGroupMap)
-            throws IOException {
-        final int nodeOrigin = (int)(source.getFilePointer() - headerSize);
-        final int count = source.readUnsignedByte();
-        final ArrayList<CharGroup> nodeContents = new ArrayList<CharGroup>();
+    private static void readNode(ByteBuffer source, int headerSize, FusionDictionary dict,
+            int node) {
+        final int nodeOrigin = source.position() - headerSize;
+        final int count = readUnsignedByte(source);
         int groupOffset = nodeOrigin + 1; // 1 byte for the group count
         for (int i = count; i > 0; --i) {
             CharGroupInfo info = readCharGroup(source, groupOffset);
@@ -933,51 +1587,51 @@ public class BinaryDictInputOutput {
                     bigrams.add(new WeightedString(word, bigram.mFrequency));
                 }
             }
+            int children = NO_NODE;
             if (hasChildrenAddress(info.mChildrenAddress)) {
-                Node children = reverseNodeMap.get(info.mChildrenAddress);
-                if (null == children) {
-                    final long currentPosition = source.getFilePointer();
-                    source.seek(info.mChildrenAddress + headerSize);
-                    children = readNode(source, headerSize, reverseNodeMap, reverseGroupMap);
-                    source.seek(currentPosition);
-                }
-                nodeContents.add(
-                        new CharGroup(info.mCharacters, bigrams, info.mFrequency,
-                        children));
-            } else {
-                nodeContents.add(
-                        new CharGroup(info.mCharacters, bigrams, info.mFrequency));
+                final int currentPosition = source.position();
+                source.position(info.mChildrenAddress + headerSize);
+                children = dict.newNode();
+                readNode(source, headerSize, dict, children);
+                source.position(currentPosition);
             }
+            dict.appendGroup(node, info.mCharacters, info.mFrequency, bigrams, children);
             groupOffset = info.mEndAddress;
         }
-        final Node node = new Node(nodeContents);
-        node.mCachedAddress = nodeOrigin;
-        reverseNodeMap.put(node.mCachedAddress, node);
-        return node;
     }
 
     /**
-     * Reads a random access file and returns the memory representation of the dictionary.
+     * Maps a random access file into memory.
      *
-     * This high-level method takes a binary file and reads its contents, populating a
-     * FusionDictionary structure. The optional dict argument is an existing dictionary to
-     * which words from the file should be added. If it is null, a new dictionary is created.
+     * The returned buffer is read-only and positioned at the start of the file. It stays valid
+     * after the file is closed.
      *
-     * @param source the file to read.
-     * @param dict an optional dictionary to add words to, or null.
-     * @return the created (or merged) dictionary.
+     * @param source the file to map.
+     * @return a buffer over the whole contents of the file.
+     * @throws IOException if the file can't be mapped.
      */
-    public static FusionDictionary readDictionaryBinary(RandomAccessFile source,
-            FusionDictionary dict) throws IOException, UnsupportedFormatException {
+    public static ByteBuffer mapDictionaryBinary(RandomAccessFile source) throws IOException {
+        final FileChannel channel = source.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    /**
+     * Checks the header of a binary dictionary and skips over it.
+     *
+     * @param source the buffer, positioned at the start of the dictionary.
+     * @return the size of the header, in bytes.
+     * @throws UnsupportedFormatException if the header is not a supported one.
+     */
+    static int readHeader(ByteBuffer source) throws UnsupportedFormatException {
         // Check magic number
-        final int magic = source.readUnsignedShort();
+        final int magic = readUnsignedShort(source);
         if (MAGIC_NUMBER != magic) {
             throw new UnsupportedFormatException("The magic number in this file does not match "
                     + "the expected value");
         }
 
         // Check file version
-        final int version = source.readUnsignedByte();
+        final int version = readUnsignedByte(source);
         if (version > MAXIMUM_SUPPORTED_VERSION) {
             throw new UnsupportedFormatException("This file has version " + version
                     + ", but this implementation does not support versions above "
@@ -985,15 +1639,45 @@ public class BinaryDictInputOutput {
         }
 
         // Read options
-        source.readUnsignedShort();
+        readUnsignedShort(source);
 
-        long headerSize = source.getFilePointer();
-        Map<Integer, Node> reverseNodeMapping = new TreeMap<Integer, Node>();
-        Map<Integer, CharGroup> reverseGroupMapping = new TreeMap<Integer, CharGroup>();
-        final Node root = readNode(source, headerSize, reverseNodeMapping, reverseGroupMapping);
+        return source.position();
+    }
 
-        FusionDictionary newDict = new FusionDictionary(root,
-                new FusionDictionary.DictionaryOptions());
+    /**
+     * Reads a random access file and returns the memory representation of the dictionary.
+     *
+     * This high-level method takes a binary file and reads its contents, populating a
+     * FusionDictionary structure. The optional dict argument is an existing dictionary to
+     * which words from the file should be added. If it is null, a new dictionary is created.
+     *
+     * @param source the file to read.
+     * @param dict an optional dictionary to add words to, or null.
+     * @return the created (or merged) dictionary.
+     */
+    public static FusionDictionary readDictionaryBinary(RandomAccessFile source,
+            FusionDictionary dict) throws IOException, UnsupportedFormatException {
+        return readDictionaryBinary(mapDictionaryBinary(source), dict);
+    }
+
+    /**
+     * Reads a buffer holding a binary dictionary and returns its memory representation.
+     *
+     * This builds the whole dictionary in memory, which is what editing it takes. To only look
+     * at the words, readWordsBinary or findWordFrequency read the buffer on demand.
+     *
+     * @param source the buffer to read, positioned at the start of the dictionary.
+     * @param dict an optional dictionary to add words to, or null.
+     * @return the created (or merged) dictionary.
+     */
+    public static FusionDictionary readDictionaryBinary(ByteBuffer source,
+            FusionDictionary dict) throws UnsupportedFormatException {
+        final int headerSize = readHeader(source);
+        final FusionDictionary newDict = new FusionDictionary();
+        readNode(source, headerSize, newDict, newDict.mRoot.mId);
+        // The groups of the bigram targets may only be known once all of them are read.
+        newDict.resolveBigramTargets();
+        newDict.trimToSize();
         if (null != dict) {
             for (Word w : dict) {
                 newDict.add(w.mWord, w.mFrequency, w.mBigrams);
@@ -1003,6 +1687,136 @@ public class BinaryDictInputOutput {
         return newDict;
     }
 
+    /**
+     * Iterates over the words of a binary dictionary buffer without reading it to memory.
+     *
+     * Char groups are decoded as the iteration reaches them, and only the path to the current
+     * word is kept, so the whole trie is never built.
+     */
+    private static class BinaryWordIterator implements Iterator<Word> {
+        private final ByteBuffer mSource;
+        private final int mHeaderSize;
+        private final StringBuilder mCurrentString;
+        // For each node on the path to the current word: the address of its next group, the
+        // number of groups left to read, and the length of the word before the node.
+        private final int[] mGroupAddresses;
+        private final int[] mGroupsLeft;
+        private final int[] mPrefixLengths;
+        private int mDepth;
+        private Word mNextWord;
+
+        public BinaryWordIterator(final ByteBuffer source, final int headerSize) {
+            mSource = source;
+            mHeaderSize = headerSize;
+            mCurrentString = new StringBuilder();
+            mGroupAddresses = new int[MAX_WORD_LENGTH + 1];
+            mGroupsLeft = new int[MAX_WORD_LENGTH + 1];
+            mPrefixLengths = new int[MAX_WORD_LENGTH + 1];
+            mDepth = -1;
+            pushNode(0);
+            mNextWord = readNextWord();
+        }
+
+        private void pushNode(final int nodeAddress) {
+            ++mDepth;
+            mSource.position(nodeAddress + mHeaderSize);
+            mGroupsLeft[mDepth] = readUnsignedByte(mSource);
+            mGroupAddresses[mDepth] = nodeAddress + 1; // 1 byte for the group count
+            mPrefixLengths[mDepth] = mCurrentString.length();
+        }
+
+        private Word readNextWord() {
+            while (mDepth >= 0) {
+                if (0 == mGroupsLeft[mDepth]) {
+                    --mDepth;
+                    continue;
+                }
+                mSource.position(mGroupAddresses[mDepth] + mHeaderSize);
+                final CharGroupInfo info = readCharGroup(mSource, mGroupAddresses[mDepth]);
+                mGroupAddresses[mDepth] = info.mEndAddress;
+                --mGroupsLeft[mDepth];
+                mCurrentString.setLength(mPrefixLengths[mDepth]);
+                for (final int character : info.mCharacters) {
+                    mCurrentString.appendCodePoint(character);
+                }
+                if (hasChildrenAddress(info.mChildrenAddress)) pushNode(info.mChildrenAddress);
+                if (CharGroup.NOT_A_TERMINAL != info.mFrequency) {
+                    ArrayList<WeightedString> bigrams = null;
+                    if (null != info.mBigrams) {
+                        bigrams = new ArrayList<WeightedString>(info.mBigrams.size());
+                        for (PendingAttribute bigram : info.mBigrams) {
+                            final String word =
+                                    getWordAtAddress(mSource, mHeaderSize, bigram.mAddress);
+                            bigrams.add(new WeightedString(word, bigram.mFrequency));
+                        }
+                    }
+                    return new Word(mCurrentString.toString(), info.mFrequency, bigrams);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return null != mNextWord;
+        }
+
+        @Override
+        public Word next() {
+            if (null == mNextWord) throw new NoSuchElementException();
+            final Word word = mNextWord;
+            mNextWord = readNextWord();
+            return word;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("A binary dictionary is read-only");
+        }
+    }
+
+    /**
+     * Returns a view of the words of a binary dictionary buffer.
+     *
+     * Unlike readDictionaryBinary, this does not build a FusionDictionary: each iteration
+     * decodes the buffer as it goes, which keeps dumping or scanning a large dictionary cheap.
+     * The words come in the order of the file, with their bigrams.
+     *
+     * @param source the buffer to read, positioned at the start of the dictionary. It is not
+     *   modified: each iteration reads its own view of it.
+     * @return the words of the dictionary.
+     * @throws UnsupportedFormatException if the header is not a supported one.
+     */
+    public static Iterable<Word> readWordsBinary(final ByteBuffer source)
+            throws UnsupportedFormatException {
+        final ByteBuffer buffer = source.duplicate();
+        final int headerSize = readHeader(buffer);
+        return new Iterable<Word>() {
+            @Override
+            public Iterator<Word> iterator() {
+                return new BinaryWordIterator(buffer.duplicate(), headerSize);
+            }
+        };
+    }
+
+    /**
+     * Finds the frequency of a word directly in a binary dictionary buffer.
+     *
+     * Only the groups on the path to the word are decoded, so this is suited to inspecting
+     * a few words of a large dictionary without reading it all to memory. This is a shortcut
+     * for MappedDictionary#getFrequency, which should be used for more than a few lookups.
+     *
+     * @param source the buffer to read, positioned at the start of the dictionary. Its position
+     *   is not modified.
+     * @param word the word to look up.
+     * @return the frequency of the word, or CharGroup.NOT_A_TERMINAL if it is not in the buffer.
+     * @throws UnsupportedFormatException if the header is not a supported one.
+     */
+    public static int findWordFrequency(ByteBuffer source, String word)
+            throws UnsupportedFormatException {
+        return new MappedDictionary(source).getFrequency(word);
+    }
+
     /**
      * Basic test to find out whether the file is a binary dictionary or not.
      *
@@ -28,17 +28,19 @@ public class CharGroupInfo {
     public final int mFlags;
     public final int[] mCharacters;
     public final int mFrequency;
+    public final int mSubtreeMaxFrequency;
     public final int mChildrenAddress;
     public final ArrayList<PendingAttribute> mBigrams;
 
     public CharGroupInfo(final int originalAddress, final int endAddress, final int flags,
-            final int[] characters, final int frequency, final int childrenAddress,
-            final ArrayList<PendingAttribute> bigrams) {
+            final int[] characters, final int frequency, final int subtreeMaxFrequency,
+            final int childrenAddress, final ArrayList<PendingAttribute> bigrams) {
         mOriginalAddress = originalAddress;
         mEndAddress = endAddress;
         mFlags = flags;
         mCharacters = characters;
         mFrequency = frequency;
+        mSubtreeMaxFrequency = subtreeMaxFrequency;
         mChildrenAddress = childrenAddress;
         mBigrams = bigrams;
     }
@@ -16,13 +16,16 @@
 
 package com.android.inputmethod.latin;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.LinkedList;
 
@@ -41,16 +44,27 @@ public class DictionaryMaker {
         private final static String OPTION_INPUT_BIGRAM_XML = "-b";
         private final static String OPTION_OUTPUT_BINARY = "-d";
         private final static String OPTION_OUTPUT_XML = "-x";
+        private final static String OPTION_SUBTREE_MAX_FREQUENCIES = "-m";
+        private final static String OPTION_MERGE_TAILS = "-t";
+        private final static String OPTION_OLD_BINARY = "-o";
+        private final static String OPTION_OUTPUT_PATCH = "-p";
+        private final static String OPTION_STABLE_LAYOUT = "-l";
         private final static String OPTION_HELP = "-h";
         public final String mInputBinary;
         public final String mInputUnigramXml;
         public final String mInputBigramXml;
         public final String mOutputBinary;
         public final String mOutputXml;
+        public final String mOldBinary;
+        public final String mOutputPatch;
+        public final boolean mHasSubtreeMaxFrequencies;
+        public final boolean mMergeTails;
+        public final boolean mHasStableLayout;
 
         private void checkIntegrity() {
             checkHasExactlyOneInput();
             checkHasAtLeastOneOutput();
+            checkPatchHasOldBinary();
         }
 
         private void checkHasExactlyOneInput() {
@@ -65,22 +79,43 @@ public class DictionaryMaker {
         }
 
         private void checkHasAtLeastOneOutput() {
-            if (null == mOutputBinary && null == mOutputXml) {
+            if (null == mOutputBinary && null == mOutputXml && null == mOutputPatch) {
                 throw new RuntimeException("No output specified");
             }
         }
 
+        private void checkPatchHasOldBinary() {
+            if (null != mOutputPatch && null == mOldBinary) {
+                throw new RuntimeException("A patch output needs an old binary dictionary");
+            } else if (null != mOldBinary
+                    && !BinaryDictInputOutput.isBinaryDictionary(mOldBinary)) {
+                throw new RuntimeException("The old dictionary is not a binary dictionary");
+            }
+        }
+
         private void displayHelp() {
             MakedictLog.i("Usage: makedict "
                     + "[-s <unigrams.xml> [-b <bigrams.xml>] | -s <binary input>] "
-                    + " [-d <binary output>] [-x <xml output>] [-2]\n"
+                    + " [-d <binary output>] [-x <xml output>] [-o <old binary> -p <patch output>]"
+                    + " [-m] [-t] [-l] [-2]\n"
                     + "\n"
                     + "  Converts a source dictionary file to one or several outputs.\n"
                     + "  Source can be an XML file, with an optional XML bigrams file, or a\n"
                     + "  binary dictionary file.\n"
                     + "  Both binary and XML outputs are supported. Both can be output at\n"
                     + "  the same time but outputting several files of the same type is not\n"
-                    + "  supported.");
+                    + "  supported.\n"
+                    + "  With -m, the binary output also stores the max frequency of each subtree\n"
+                    + "  so that readers can cut their searches.\n"
+                    + "  With -t, the identical tails of words are merged in the binary output.\n"
+                    + "  The resulting file uses format version 2.\n"
+                    + "  With -o and -p, a patch is output that turns the old binary dictionary\n"
+                    + "  into the binary output, so that devices which have the old one only\n"
+                    + "  need to download the changes.\n"
+                    + "  With -l, the binary output has a stable layout: it keeps the nodes of\n"
+                    + "  the old binary dictionary given with -o at the same place, and leaves\n"
+                    + "  room for later versions to grow. Patches between versions with a\n"
+                    + "  stable layout only carry what changed.");
         }
 
         public Arguments(String[] argsArray) {
@@ -93,6 +128,11 @@ public class DictionaryMaker {
             String inputBigramXml = null;
             String outputBinary = null;
             String outputXml = null;
+            String oldBinary = null;
+            String outputPatch = null;
+            boolean hasSubtreeMaxFrequencies = false;
+            boolean mergeTails = false;
+            boolean hasStableLayout = false;
 
             while (!args.isEmpty()) {
                 final String arg = args.get(0);
@@ -100,6 +140,12 @@ public class DictionaryMaker {
                 if (arg.charAt(0) == '-') {
                     if (OPTION_VERSION_2.equals(arg)) {
                         // Do nothing, this is the default
+                    } else if (OPTION_SUBTREE_MAX_FREQUENCIES.equals(arg)) {
+                        hasSubtreeMaxFrequencies = true;
+                    } else if (OPTION_MERGE_TAILS.equals(arg)) {
+                        mergeTails = true;
+                    } else if (OPTION_STABLE_LAYOUT.equals(arg)) {
+                        hasStableLayout = true;
                     } else if (OPTION_HELP.equals(arg)) {
                         displayHelp();
                     } else {
@@ -121,6 +167,10 @@ public class DictionaryMaker {
                             outputBinary = filename;
                         } else if (OPTION_OUTPUT_XML.equals(arg)) {
                             outputXml = filename;
+                        } else if (OPTION_OLD_BINARY.equals(arg)) {
+                            oldBinary = filename;
+                        } else if (OPTION_OUTPUT_PATCH.equals(arg)) {
+                            outputPatch = filename;
                         }
                     }
                 } else {
@@ -143,6 +193,11 @@ public class DictionaryMaker {
             mInputBigramXml = inputBigramXml;
             mOutputBinary = outputBinary;
             mOutputXml = outputXml;
+            mOldBinary = oldBinary;
+            mOutputPatch = outputPatch;
+            mHasSubtreeMaxFrequencies = hasSubtreeMaxFrequencies;
+            mMergeTails = mergeTails;
+            mHasStableLayout = hasStableLayout;
             checkIntegrity();
         }
     }
@@ -151,6 +206,12 @@ public class DictionaryMaker {
             throws FileNotFoundException, ParserConfigurationException, SAXException, IOException,
             UnsupportedFormatException {
         final Arguments parsedArgs = new Arguments(args);
+        if (null != parsedArgs.mInputBinary && null == parsedArgs.mOutputBinary
+                && null == parsedArgs.mOutputPatch) {
+            // Dumping a binary dictionary to XML does not need its trie in memory.
+            writeXmlDictionary(parsedArgs.mOutputXml, readBinaryWords(parsedArgs.mInputBinary));
+            return;
+        }
         FusionDictionary dictionary = readInputFromParsedArgs(parsedArgs);
         writeOutputToParsedArgs(parsedArgs, dictionary);
     }
@@ -188,6 +249,23 @@ public class DictionaryMaker {
         return BinaryDictInputOutput.readDictionaryBinary(inputFile, null);
     }
 
+    /**
+     * Read the words of a dictionary from the name of a binary file, as they are iterated.
+     *
+     * @param binaryFilename the name of the file in the binary dictionary format.
+     * @return the words of the dictionary.
+     * @throws FileNotFoundException if the file can't be found
+     * @throws IOException if the input file can't be mapped
+     * @throws UnsupportedFormatException if the binary file is not in the expected format
+     */
+    private static Iterable<Word> readBinaryWords(final String binaryFilename)
+            throws FileNotFoundException, IOException, UnsupportedFormatException {
+        final RandomAccessFile inputFile = new RandomAccessFile(binaryFilename, "r");
+        final ByteBuffer buffer = BinaryDictInputOutput.mapDictionaryBinary(inputFile);
+        inputFile.close();
+        return BinaryDictInputOutput.readWordsBinary(buffer);
+    }
+
     /**
      * Read a dictionary from a unigram XML file, and optionally a bigram XML file.
      *
@@ -216,11 +294,29 @@ public class DictionaryMaker {
      * @param dict the file to output.
      * @throws FileNotFoundException if one of the output files can't be created.
      * @throws IOException if one of the output files can't be written to.
+     * @throws UnsupportedFormatException if the old binary file is not in the expected format.
      */
     private static void writeOutputToParsedArgs(final Arguments args, final FusionDictionary dict)
-            throws FileNotFoundException, IOException {
-        if (null != args.mOutputBinary) {
-            writeBinaryDictionary(args.mOutputBinary, dict);
+            throws FileNotFoundException, IOException, UnsupportedFormatException {
+        if (null != args.mOutputBinary || null != args.mOutputPatch) {
+            // Merging the tails does not change the words, so the XML output is the same.
+            if (args.mMergeTails) dict.mergeTails();
+            // The old binary is read before the output is opened, in case they are the same file.
+            final byte[] oldBinary = null == args.mOldBinary ? null : readFile(args.mOldBinary);
+            if (null != args.mOutputBinary) {
+                // The binary is streamed to its file, and read back if a patch is needed, so
+                // that it is never held in memory while it is being built.
+                writeBinaryDictionary(new FileOutputStream(args.mOutputBinary), args, dict,
+                        oldBinary);
+                if (null != args.mOutputPatch) {
+                    writeBinaryPatch(args.mOutputPatch, oldBinary, readFile(args.mOutputBinary));
+                }
+            } else {
+                // Only a patch is wanted: the diff needs the whole new binary in memory anyway.
+                final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+                writeBinaryDictionary(binary, args, dict, oldBinary);
+                writeBinaryPatch(args.mOutputPatch, oldBinary, binary.toByteArray());
+            }
         }
         if (null != args.mOutputXml) {
             writeXmlDictionary(args.mOutputXml, dict);
@@ -228,29 +324,72 @@ public class DictionaryMaker {
     }
 
     /**
-     * Write the dictionary in binary format to the specified filename.
+     * Write the dictionary in binary format, with the layout the arguments ask for.
      *
-     * @param outputFilename the name of the file to write to.
+     * @param destination the stream to write to.
+     * @param args the parsed arguments.
      * @param dict the dictionary to write.
+     * @param oldBinary the contents of the old binary dictionary, or null.
+     * @throws IOException if the output can't be written to.
+     * @throws UnsupportedFormatException if the old binary is not in the expected format.
+     */
+    private static void writeBinaryDictionary(final OutputStream destination,
+            final Arguments args, final FusionDictionary dict, final byte[] oldBinary)
+            throws IOException, UnsupportedFormatException {
+        if (args.mHasStableLayout) {
+            BinaryDictInputOutput.writeStableDictionaryBinary(destination, dict,
+                    args.mHasSubtreeMaxFrequencies,
+                    null == oldBinary ? null : ByteBuffer.wrap(oldBinary));
+        } else {
+            BinaryDictInputOutput.writeDictionaryBinary(destination, dict,
+                    args.mHasSubtreeMaxFrequencies);
+        }
+    }
+
+    /**
+     * Write a patch from an old binary dictionary to a new one to the specified filename.
+     *
+     * @param outputFilename the name of the file to write to.
+     * @param oldBinary the contents of the old binary dictionary.
+     * @param newBinary the contents of the new binary dictionary.
      * @throws FileNotFoundException if the output file can't be created.
      * @throws IOException if the output file can't be written to.
      */
-    private static void writeBinaryDictionary(final String outputFilename,
-            final FusionDictionary dict) throws FileNotFoundException, IOException {
-        final File outputFile = new File(outputFilename);
-        BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(outputFilename), dict);
+    private static void writeBinaryPatch(final String outputFilename, final byte[] oldBinary,
+            final byte[] newBinary) throws FileNotFoundException, IOException {
+        BinaryDictDiff.writePatch(new FileOutputStream(outputFilename), oldBinary, newBinary);
+    }
+
+    /**
+     * Read the whole contents of a file.
+     *
+     * @param filename the name of the file to read.
+     * @return the contents of the file.
+     * @throws FileNotFoundException if the file can't be found.
+     * @throws IOException if the file can't be read.
+     */
+    private static byte[] readFile(final String filename)
+            throws FileNotFoundException, IOException {
+        final RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            final byte[] contents = new byte[(int)file.length()];
+            file.readFully(contents);
+            return contents;
+        } finally {
+            file.close();
+        }
     }
 
     /**
      * Write the dictionary in XML format to the specified filename.
      *
      * @param outputFilename the name of the file to write to.
-     * @param dict the dictionary to write.
+     * @param dict the words of the dictionary to write.
      * @throws FileNotFoundException if the output file can't be created.
      * @throws IOException if the output file can't be written to.
      */
     private static void writeXmlDictionary(final String outputFilename,
-            final FusionDictionary dict) throws FileNotFoundException, IOException {
+            final Iterable<Word> dict) throws FileNotFoundException, IOException {
         XmlDictInputOutput.writeDictionaryXml(new FileWriter(outputFilename), dict);
     }
 }
@@ -18,38 +18,48 @@ package com.android.inputmethod.latin;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * A dictionary that can fusion heads and tails of words for more compression.
+ *
+ * The trie is not made of objects: it is stored in parallel arrays, so that the dictionary
+ * of a whole language takes a few megabytes. Nodes and groups are indices in these arrays.
+ * A node holds its first group, and the groups of a node are linked through their next
+ * sibling, in the order of their first character. The characters of all groups are slices
+ * of a single pool, and bigrams refer to the group of their target word. Node and CharGroup
+ * are views over the arrays for the callers that want objects.
  */
 public class FusionDictionary implements Iterable<Word> {
 
     /**
      * A node of the dictionary, containing several CharGroups.
      *
-     * A node is but an ordered array of CharGroups, which essentially contain all the
-     * real information.
-     * This class also contains fields to cache size and address, to help with binary
-     * generation.
+     * A node is but an ordered list of CharGroups, which essentially contain all the
+     * real information. This class is only a handle on a node of a dictionary: two
+     * instances for the same node are equal.
      */
     public static class Node {
-        ArrayList<CharGroup> mData;
-        // To help with binary generation
-        int mCachedSize;
-        int mCachedAddress;
-        public Node() {
-            mData = new ArrayList<CharGroup>();
-            mCachedSize = Integer.MIN_VALUE;
-            mCachedAddress = Integer.MIN_VALUE;
+        final FusionDictionary mDictionary;
+        final int mId;
+
+        Node(final FusionDictionary dictionary, final int id) {
+            mDictionary = dictionary;
+            mId = id;
         }
-        public Node(ArrayList<CharGroup> data) {
-            mData = data;
-            mCachedSize = Integer.MIN_VALUE;
-            mCachedAddress = Integer.MIN_VALUE;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Node)) return false;
+            final Node node = (Node)o;
+            return mDictionary == node.mDictionary && mId == node.mId;
+        }
+
+        @Override
+        public int hashCode() {
+            return mId;
         }
     }
 
@@ -70,7 +80,7 @@ public class FusionDictionary implements Iterable<Word> {
     /**
      * A group of characters, with a frequency, shortcuts, bigrams, and children.
      *
-     * This is the central class of the in-memory representation. A CharGroup is what can
+     * This is the central unit of the in-memory representation. A CharGroup is what can
      * be seen as a traditional "trie node", except it can hold several characters at the
      * same time. A CharGroup essentially represents one or several characters in the middle
      * of the trie trie; as such, it can be a terminal, and it can have children.
@@ -78,47 +88,63 @@ public class FusionDictionary implements Iterable<Word> {
      * in the frequency, where NOT_A_TERMINAL (= -1) means this is not a terminal and any other
      * value is the frequency of this terminal. A terminal may have non-null shortcuts and/or
      * bigrams, but a non-terminal may not. Moreover, children, if present, are null.
+     * Like Node, this class is only a handle on a group of a dictionary.
      */
     public static class CharGroup {
         public static final int NOT_A_TERMINAL = -1;
-        final int mChars[];
-        final ArrayList<WeightedString> mBigrams;
-        final int mFrequency; // NOT_A_TERMINAL == mFrequency indicates this is not a terminal.
-        Node mChildren;
-        // The two following members to help with binary generation
-        int mCachedSize;
-        int mCachedAddress;
-
-        public CharGroup(final int[] chars,
-                final ArrayList<WeightedString> bigrams, final int frequency) {
-            mChars = chars;
-            mFrequency = frequency;
-            mBigrams = bigrams;
-            mChildren = null;
+        final FusionDictionary mDictionary;
+        final int mId;
+
+        CharGroup(final FusionDictionary dictionary, final int id) {
+            mDictionary = dictionary;
+            mId = id;
         }
 
-        public CharGroup(final int[] chars,
-                final ArrayList<WeightedString> bigrams, final int frequency, final Node children) {
-            mChars = chars;
-            mFrequency = frequency;
-            mBigrams = bigrams;
-            mChildren = children;
+        public int[] getChars() {
+            return mDictionary.getChars(mId);
         }
 
-        public void addChild(CharGroup n) {
-            if (null == mChildren) {
-                mChildren = new Node();
-            }
-            mChildren.mData.add(n);
+        public int getFrequency() {
+            return mDictionary.getFrequency(mId);
+        }
+
+        /**
+         * Returns the bigrams of this group, or null if it has none.
+         *
+         * The words of the targets are not stored, so this searches the whole dictionary for
+         * them. This is meant for inspecting a few groups, not for walking the dictionary.
+         */
+        public ArrayList<WeightedString> getBigrams() {
+            mDictionary.resolveBigramTargets();
+            return mDictionary.getBigrams(mId, mDictionary.getBigramTargetWords());
+        }
+
+        /**
+         * Returns the children of this group, or null if it has none.
+         */
+        public Node getChildren() {
+            final int children = mDictionary.getChildren(mId);
+            return NO_NODE == children ? null : new Node(mDictionary, children);
         }
 
         public boolean isTerminal() {
-            return NOT_A_TERMINAL != mFrequency;
+            return NOT_A_TERMINAL != getFrequency();
         }
 
         public boolean hasSeveralChars() {
-            assert(mChars.length > 0);
-            return 1 < mChars.length;
+            return 1 < mDictionary.getCharCount(mId);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CharGroup)) return false;
+            final CharGroup group = (CharGroup)o;
+            return mDictionary == group.mDictionary && mId == group.mId;
+        }
+
+        @Override
+        public int hashCode() {
+            return mId;
         }
     }
 
@@ -130,18 +156,66 @@ public class FusionDictionary implements Iterable<Word> {
     public static class DictionaryOptions {
     }
 
+    /* package */ static final int NO_NODE = -1;
+    /* package */ static final int NO_GROUP = -1;
+    private static final int NO_BIGRAMS = -1;
+    private static final int ROOT_NODE = 0;
+
+    private static final int INITIAL_NODE_CAPACITY = 16;
+    private static final int INITIAL_GROUP_CAPACITY = 16;
+    private static final int INITIAL_CHAR_CAPACITY = 64;
+    private static final int INITIAL_BIGRAM_CAPACITY = 16;
 
     public final DictionaryOptions mOptions;
     public final Node mRoot;
 
+    // The first group of each node.
+    private int mNodeCount;
+    private int[] mNodeFirstGroups;
+
+    // The groups. The characters of a group are mGroupCharLengths UTF-16 units of mChars from
+    // mGroupCharStarts. The frequency is NOT_A_TERMINAL for groups that are not terminals. The
+    // bigrams are the index of the bigram list of the group in mBigramData, or NO_BIGRAMS.
+    private int mGroupCount;
+    private int[] mGroupCharStarts;
+    private short[] mGroupCharLengths;
+    private short[] mGroupFrequencies;
+    private int[] mGroupChildren;
+    private int[] mGroupNextSiblings;
+    private int[] mGroupBigrams;
+
+    // The characters of all groups. When a group is split, both parts keep their characters
+    // where they are, so the pool only grows by the new part of each word.
+    private int mCharCount;
+    private char[] mChars;
+
+    // The bigram lists, one after the other: the size of the list, then the target group and
+    // the frequency of each bigram. A target that was not in the dictionary when the bigram
+    // was added is stored as -1 - its index in mPendingBigramTargets until the targets are
+    // resolved, which lets the shards of a dictionary have bigrams to each other.
+    private int mBigramDataSize;
+    private int[] mBigramData;
+    private ArrayList<String> mPendingBigramTargets;
+
     public FusionDictionary() {
-        mOptions = new DictionaryOptions();
-        mRoot = new Node();
+        this(INITIAL_NODE_CAPACITY, INITIAL_GROUP_CAPACITY, INITIAL_CHAR_CAPACITY,
+                INITIAL_BIGRAM_CAPACITY);
     }
 
-    public FusionDictionary(final Node root, final DictionaryOptions options) {
-        mRoot = root;
-        mOptions = options;
+    private FusionDictionary(final int nodeCapacity, final int groupCapacity,
+            final int charCapacity, final int bigramCapacity) {
+        mOptions = new DictionaryOptions();
+        mNodeFirstGroups = new int[nodeCapacity];
+        mGroupCharStarts = new int[groupCapacity];
+        mGroupCharLengths = new short[groupCapacity];
+        mGroupFrequencies = new short[groupCapacity];
+        mGroupChildren = new int[groupCapacity];
+        mGroupNextSiblings = new int[groupCapacity];
+        mGroupBigrams = new int[groupCapacity];
+        mChars = new char[charCapacity];
+        mBigramData = new int[bigramCapacity];
+        mPendingBigramTargets = new ArrayList<String>();
+        mRoot = new Node(this, newNode());
     }
 
     /**
@@ -150,12 +224,320 @@ public class FusionDictionary implements Iterable<Word> {
     static private int[] getCodePoints(String word) {
         final int wordLength = word.length();
         int[] array = new int[word.codePointCount(0, wordLength)];
-        for (int i = 0; i < wordLength; ++i) {
-            array[i] = word.codePointAt(i);
+        for (int i = 0, index = 0; index < wordLength; ++i) {
+            array[i] = word.codePointAt(index);
+            index += Character.charCount(array[i]);
         }
         return array;
     }
 
+    private static int getNewCapacity(final int capacity) {
+        return capacity + (capacity >> 1) + 1;
+    }
+
+    /* package */ int newNode() {
+        if (mNodeCount == mNodeFirstGroups.length) {
+            mNodeFirstGroups = Arrays.copyOf(mNodeFirstGroups, getNewCapacity(mNodeCount));
+        }
+        mNodeFirstGroups[mNodeCount] = NO_GROUP;
+        return mNodeCount++;
+    }
+
+    private int newGroup(final int charStart, final int charLength, final int frequency,
+            final int bigrams, final int children) {
+        if (mGroupCount == mGroupCharStarts.length) {
+            final int capacity = getNewCapacity(mGroupCount);
+            mGroupCharStarts = Arrays.copyOf(mGroupCharStarts, capacity);
+            mGroupCharLengths = Arrays.copyOf(mGroupCharLengths, capacity);
+            mGroupFrequencies = Arrays.copyOf(mGroupFrequencies, capacity);
+            mGroupChildren = Arrays.copyOf(mGroupChildren, capacity);
+            mGroupNextSiblings = Arrays.copyOf(mGroupNextSiblings, capacity);
+            mGroupBigrams = Arrays.copyOf(mGroupBigrams, capacity);
+        }
+        if (charLength > Short.MAX_VALUE) {
+            throw new RuntimeException("A word is longer than " + Short.MAX_VALUE + " chars");
+        }
+        final int group = mGroupCount++;
+        mGroupCharStarts[group] = charStart;
+        mGroupCharLengths[group] = (short)charLength;
+        setFrequency(group, frequency);
+        mGroupChildren[group] = children;
+        mGroupNextSiblings[group] = NO_GROUP;
+        mGroupBigrams[group] = bigrams;
+        return group;
+    }
+
+    /**
+     * Creates a group with the end of a word as its characters, and no children.
+     */
+    private int newGroup(final int[] word, final int start, final int frequency,
+            final int bigrams) {
+        final int charStart = mCharCount;
+        for (int i = start; i < word.length; ++i) {
+            if (mCharCount + 2 > mChars.length) {
+                mChars = Arrays.copyOf(mChars, getNewCapacity(mChars.length) + 1);
+            }
+            mCharCount += Character.toChars(word[i], mChars, mCharCount);
+        }
+        return newGroup(charStart, mCharCount - charStart, frequency, bigrams, NO_NODE);
+    }
+
+    private void setFrequency(final int group, final int frequency) {
+        if (frequency > Short.MAX_VALUE) {
+            throw new RuntimeException("Frequency out of range : " + frequency);
+        }
+        mGroupFrequencies[group] = (short)frequency;
+    }
+
+    /**
+     * Stores a bigram list and returns its index.
+     *
+     * The targets that are already in the dictionary are stored as their group. The others
+     * are left pending until resolveBigramTargets is called.
+     */
+    private int storeBigrams(final ArrayList<WeightedString> bigrams) {
+        if (null == bigrams || bigrams.isEmpty()) return NO_BIGRAMS;
+        final int size = 1 + 2 * bigrams.size();
+        if (mBigramDataSize + size > mBigramData.length) {
+            mBigramData = Arrays.copyOf(mBigramData,
+                    Math.max(getNewCapacity(mBigramData.length), mBigramDataSize + size));
+        }
+        final int list = mBigramDataSize;
+        mBigramData[mBigramDataSize++] = bigrams.size();
+        for (WeightedString bigram : bigrams) {
+            int target = findGroup(ROOT_NODE, bigram.mWord);
+            if (NO_GROUP == target) {
+                target = -1 - mPendingBigramTargets.size();
+                mPendingBigramTargets.add(bigram.mWord);
+            }
+            mBigramData[mBigramDataSize++] = target;
+            mBigramData[mBigramDataSize++] = bigram.mFrequency;
+        }
+        return list;
+    }
+
+    /**
+     * Finds the groups of the bigram targets that were not in the dictionary when their
+     * bigrams were added. They must all be in it by now, else an exception is thrown.
+     */
+    /* package */ void resolveBigramTargets() {
+        if (mPendingBigramTargets.isEmpty()) return;
+        for (int list = 0; list < mBigramDataSize; list += 1 + 2 * mBigramData[list]) {
+            final int end = list + 1 + 2 * mBigramData[list];
+            for (int i = list + 1; i < end; i += 2) {
+                if (mBigramData[i] >= 0) continue;
+                final String word = mPendingBigramTargets.get(-1 - mBigramData[i]);
+                final int target = findGroup(ROOT_NODE, word);
+                if (NO_GROUP == target) {
+                    throw new RuntimeException("Bigram target not in the dictionary : " + word);
+                }
+                mBigramData[i] = target;
+            }
+        }
+        mPendingBigramTargets = new ArrayList<String>();
+    }
+
+    /**
+     * Releases the room the arrays have beyond their contents.
+     */
+    /* package */ void trimToSize() {
+        mNodeFirstGroups = Arrays.copyOf(mNodeFirstGroups, mNodeCount);
+        mGroupCharStarts = Arrays.copyOf(mGroupCharStarts, mGroupCount);
+        mGroupCharLengths = Arrays.copyOf(mGroupCharLengths, mGroupCount);
+        mGroupFrequencies = Arrays.copyOf(mGroupFrequencies, mGroupCount);
+        mGroupChildren = Arrays.copyOf(mGroupChildren, mGroupCount);
+        mGroupNextSiblings = Arrays.copyOf(mGroupNextSiblings, mGroupCount);
+        mGroupBigrams = Arrays.copyOf(mGroupBigrams, mGroupCount);
+        mChars = Arrays.copyOf(mChars, mCharCount);
+        mBigramData = Arrays.copyOf(mBigramData, mBigramDataSize);
+    }
+
+    // Accessors for the binary reader and writer, which work on the indices directly.
+
+    /* package */ int getNodeCount() {
+        return mNodeCount;
+    }
+
+    /* package */ int getGroupCount() {
+        return mGroupCount;
+    }
+
+    /* package */ int getFirstGroup(final int node) {
+        return mNodeFirstGroups[node];
+    }
+
+    /* package */ int getNextGroup(final int group) {
+        return mGroupNextSiblings[group];
+    }
+
+    /* package */ int getChildren(final int group) {
+        return mGroupChildren[group];
+    }
+
+    /* package */ int getFrequency(final int group) {
+        return mGroupFrequencies[group];
+    }
+
+    /* package */ int getCharCount(final int group) {
+        return Character.codePointCount(mChars, mGroupCharStarts[group],
+                mGroupCharLengths[group]);
+    }
+
+    /* package */ int[] getChars(final int group) {
+        final int start = mGroupCharStarts[group];
+        final int end = start + mGroupCharLengths[group];
+        final int[] chars = new int[getCharCount(group)];
+        for (int i = 0, index = start; index < end; ++i) {
+            chars[i] = Character.codePointAt(mChars, index, end);
+            index += Character.charCount(chars[i]);
+        }
+        return chars;
+    }
+
+    private int getFirstChar(final int group) {
+        final int start = mGroupCharStarts[group];
+        return Character.codePointAt(mChars, start, start + mGroupCharLengths[group]);
+    }
+
+    /* package */ int getBigramCount(final int group) {
+        final int list = mGroupBigrams[group];
+        return NO_BIGRAMS == list ? 0 : mBigramData[list];
+    }
+
+    /**
+     * Returns the group of the target of a bigram. The targets must have been resolved.
+     */
+    /* package */ int getBigramTarget(final int group, final int index) {
+        return mBigramData[mGroupBigrams[group] + 1 + 2 * index];
+    }
+
+    /* package */ int getBigramFrequency(final int group, final int index) {
+        return mBigramData[mGroupBigrams[group] + 2 + 2 * index];
+    }
+
+    /**
+     * Appends a group at the end of a node. This is for readers, which get the groups of a
+     * node in order and create the children of a group before the group itself.
+     *
+     * @return the new group.
+     */
+    /* package */ int appendGroup(final int node, final int[] chars, final int frequency,
+            final ArrayList<WeightedString> bigrams, final int children) {
+        final int group = newGroup(chars, 0, frequency, storeBigrams(bigrams));
+        mGroupChildren[group] = children;
+        int last = mNodeFirstGroups[node];
+        if (NO_GROUP == last) {
+            mNodeFirstGroups[node] = group;
+        } else {
+            while (NO_GROUP != mGroupNextSiblings[last]) last = mGroupNextSiblings[last];
+            mGroupNextSiblings[last] = group;
+        }
+        return group;
+    }
+
+    /**
+     * Puts together dictionaries that have no first character in common.
+     *
+     * The dictionaries are copied one after the other, and removed from the list as they are,
+     * so that each can be freed before the next one is copied. The bigram targets are resolved
+     * at the end, so a dictionary may have bigrams to the words of another.
+     *
+     * @param dictionaries the dictionaries. The list is emptied.
+     * @return a dictionary with the words of all of them.
+     */
+    /* package */ static FusionDictionary concatenate(
+            final ArrayList<FusionDictionary> dictionaries) {
+        int nodeCount = 1;
+        int groupCount = 0;
+        int charCount = 0;
+        int bigramDataSize = 0;
+        int rootGroupCount = 0;
+        for (FusionDictionary dict : dictionaries) {
+            // The root of each dictionary is replaced by the root of the result.
+            nodeCount += dict.mNodeCount - 1;
+            groupCount += dict.mGroupCount;
+            charCount += dict.mCharCount;
+            bigramDataSize += dict.mBigramDataSize;
+            for (int g = dict.mNodeFirstGroups[ROOT_NODE]; NO_GROUP != g;
+                    g = dict.mGroupNextSiblings[g]) {
+                ++rootGroupCount;
+            }
+        }
+        final FusionDictionary result =
+                new FusionDictionary(nodeCount, groupCount, charCount, bigramDataSize);
+        // The root groups, sorted by their first character in the high bits.
+        final long[] rootGroups = new long[rootGroupCount];
+        int rootGroupIndex = 0;
+        for (int i = 0; i < dictionaries.size(); ++i) {
+            final FusionDictionary dict = dictionaries.set(i, null);
+            final int groupOffset = result.mGroupCount;
+            result.append(dict);
+            for (int g = dict.mNodeFirstGroups[ROOT_NODE]; NO_GROUP != g;
+                    g = dict.mGroupNextSiblings[g]) {
+                rootGroups[rootGroupIndex++] =
+                        ((long)dict.getFirstChar(g) << 32) | (g + groupOffset);
+            }
+        }
+        dictionaries.clear();
+        Arrays.sort(rootGroups);
+        int previous = NO_GROUP;
+        for (long rootGroup : rootGroups) {
+            final int group = (int)rootGroup;
+            if (NO_GROUP == previous) {
+                result.mNodeFirstGroups[ROOT_NODE] = group;
+            } else {
+                result.mGroupNextSiblings[previous] = group;
+            }
+            result.mGroupNextSiblings[group] = NO_GROUP;
+            previous = group;
+        }
+        result.checkStack(ROOT_NODE);
+        result.resolveBigramTargets();
+        return result;
+    }
+
+    /**
+     * Copies the contents of a dictionary at the end of the arrays of this one, except for its
+     * root node. The groups of the root are left unlinked.
+     */
+    private void append(final FusionDictionary dict) {
+        // Node 0 is the root, which is not copied.
+        final int nodeOffset = mNodeCount - 1;
+        final int groupOffset = mGroupCount;
+        final int charOffset = mCharCount;
+        final int bigramOffset = mBigramDataSize;
+        final int pendingOffset = mPendingBigramTargets.size();
+        for (int node = ROOT_NODE + 1; node < dict.mNodeCount; ++node) {
+            final int first = dict.mNodeFirstGroups[node];
+            mNodeFirstGroups[mNodeCount++] = NO_GROUP == first ? NO_GROUP : first + groupOffset;
+        }
+        for (int group = 0; group < dict.mGroupCount; ++group) {
+            final int copy = mGroupCount++;
+            mGroupCharStarts[copy] = dict.mGroupCharStarts[group] + charOffset;
+            mGroupCharLengths[copy] = dict.mGroupCharLengths[group];
+            mGroupFrequencies[copy] = dict.mGroupFrequencies[group];
+            final int children = dict.mGroupChildren[group];
+            mGroupChildren[copy] = NO_NODE == children ? NO_NODE : children + nodeOffset;
+            final int next = dict.mGroupNextSiblings[group];
+            mGroupNextSiblings[copy] = NO_GROUP == next ? NO_GROUP : next + groupOffset;
+            final int bigrams = dict.mGroupBigrams[group];
+            mGroupBigrams[copy] = NO_BIGRAMS == bigrams ? NO_BIGRAMS : bigrams + bigramOffset;
+        }
+        System.arraycopy(dict.mChars, 0, mChars, mCharCount, dict.mCharCount);
+        mCharCount += dict.mCharCount;
+        for (int list = 0; list < dict.mBigramDataSize; ) {
+            final int end = list + 1 + 2 * dict.mBigramData[list];
+            mBigramData[mBigramDataSize++] = dict.mBigramData[list++];
+            while (list < end) {
+                final int target = dict.mBigramData[list++];
+                mBigramData[mBigramDataSize++] =
+                        target >= 0 ? target + groupOffset : target - pendingOffset;
+                mBigramData[mBigramDataSize++] = dict.mBigramData[list++];
+            }
+        }
+        mPendingBigramTargets.addAll(dict.mPendingBigramTargets);
+    }
+
     /**
      * Helper method to add a word as a string.
      *
@@ -170,12 +552,35 @@ public class FusionDictionary implements Iterable<Word> {
     public void add(String word, int frequency, ArrayList<WeightedString> bigrams) {
         if (null != bigrams) {
             for (WeightedString bigram : bigrams) {
-                final CharGroup t = findWordInTree(mRoot, bigram.mWord);
-                if (null == t) {
-                    add(getCodePoints(bigram.mWord), 0, null);
-                }
+                addBigramTarget(bigram.mWord);
             }
         }
+        addWithoutBigramTargets(word, frequency, bigrams);
+    }
+
+    /**
+     * Adds the target of a bigram to this dictionary with a 0 frequency, unless it's there.
+     *
+     * @param word the target of the bigram.
+     */
+    /* package */ void addBigramTarget(String word) {
+        if (NO_GROUP == findGroup(ROOT_NODE, word)) {
+            add(getCodePoints(word), 0, null);
+        }
+    }
+
+    /**
+     * Adds a word to this dictionary, without adding the targets of its bigrams.
+     *
+     * Bigrams to words that are not in the dictionary yet are kept pending until the targets
+     * are resolved, which they must be before the dictionary is written or iterated over.
+     *
+     * @param word the word to add.
+     * @param frequency the frequency of the word, in the range [0..255].
+     * @param bigrams a list of bigrams, or null.
+     */
+    /* package */ void addWithoutBigramTargets(String word, int frequency,
+            ArrayList<WeightedString> bigrams) {
         add(getCodePoints(word), frequency, bigrams);
     }
 
@@ -185,11 +590,10 @@ public class FusionDictionary implements Iterable<Word> {
      * This method checks that all CharGroups in a node are ordered as expected.
      * If they are, nothing happens. If they aren't, an exception is thrown.
      */
-    private void checkStack(Node node) {
-        ArrayList<CharGroup> stack = node.mData;
+    private void checkStack(final int node) {
         int lastValue = -1;
-        for (int i = 0; i < stack.size(); ++i) {
-            int currentValue = stack.get(i).mChars[0];
+        for (int g = mNodeFirstGroups[node]; NO_GROUP != g; g = mGroupNextSiblings[g]) {
+            int currentValue = getFirstChar(g);
             if (currentValue <= lastValue)
                 throw new RuntimeException("Invalid stack");
             else
@@ -201,7 +605,7 @@ public class FusionDictionary implements Iterable<Word> {
      * Add a word to this dictionary.
      *
      * The bigrams, if any, have to be in the dictionary already. If they aren't,
-     * an exception is thrown.
+     * they are kept pending until resolveBigramTargets is called.
      *
      * @param word the word, as an int array.
      * @param frequency the frequency of the word, in the range [0..255].
@@ -209,95 +613,90 @@ public class FusionDictionary implements Iterable<Word> {
      */
     private void add(int[] word, int frequency, ArrayList<WeightedString> bigrams) {
         assert(frequency >= 0 && frequency <= 255);
-        Node currentNode = mRoot;
+        int currentNode = ROOT_NODE;
         int charIndex = 0;
 
-        CharGroup currentGroup = null;
+        int groupCharCount = 0;
         int differentCharIndex = 0; // Set by the loop to the index of the char that differs
-        int nodeIndex = findIndexOfChar(mRoot, word[charIndex]);
-        while (CHARACTER_NOT_FOUND != nodeIndex) {
-            currentGroup = currentNode.mData.get(nodeIndex);
-            differentCharIndex = compareArrays(currentGroup.mChars, word, charIndex);
+        int currentGroup = findGroupOfChar(ROOT_NODE, word[charIndex]);
+        while (NO_GROUP != currentGroup) {
+            groupCharCount = getCharCount(currentGroup);
+            differentCharIndex = compareChars(currentGroup, word, charIndex);
             if (ARRAYS_ARE_EQUAL != differentCharIndex
-                    && differentCharIndex < currentGroup.mChars.length) break;
-            if (null == currentGroup.mChildren) break;
-            charIndex += currentGroup.mChars.length;
+                    && differentCharIndex < groupCharCount) break;
+            if (NO_NODE == mGroupChildren[currentGroup]) break;
+            charIndex += groupCharCount;
             if (charIndex >= word.length) break;
-            currentNode = currentGroup.mChildren;
-            nodeIndex = findIndexOfChar(currentNode, word[charIndex]);
+            currentNode = mGroupChildren[currentGroup];
+            currentGroup = findGroupOfChar(currentNode, word[charIndex]);
         }
 
-        if (-1 == nodeIndex) {
+        if (NO_GROUP == currentGroup) {
             // No node at this point to accept the word. Create one.
-            final int insertionIndex = findInsertionIndex(currentNode, word[charIndex]);
-            final CharGroup newGroup = new CharGroup(
-                    Arrays.copyOfRange(word, charIndex, word.length), bigrams, frequency);
-            currentNode.mData.add(insertionIndex, newGroup);
+            insertGroup(currentNode,
+                    newGroup(word, charIndex, frequency, storeBigrams(bigrams)));
             checkStack(currentNode);
         } else {
             // There is a word with a common prefix.
-            if (differentCharIndex == currentGroup.mChars.length) {
+            if (differentCharIndex == groupCharCount) {
                 if (charIndex + differentCharIndex >= word.length) {
                     // The new word is a prefix of an existing word, but the node on which it
                     // should end already exists as is.
-                    if (currentGroup.mFrequency > 0) {
+                    if (mGroupFrequencies[currentGroup] > 0) {
                         throw new RuntimeException("Such a word already exists in the dictionary : "
                                 + new String(word, 0, word.length));
                     } else {
-                        final CharGroup newNode = new CharGroup(currentGroup.mChars,
-                                bigrams, frequency, currentGroup.mChildren);
-                        currentNode.mData.set(nodeIndex, newNode);
+                        setFrequency(currentGroup, frequency);
+                        mGroupBigrams[currentGroup] = storeBigrams(bigrams);
                         checkStack(currentNode);
                     }
                 } else {
                     // The new word matches the full old word and extends past it.
                     // We only have to create a new node and add it to the end of this.
-                    final CharGroup newNode = new CharGroup(
-                            Arrays.copyOfRange(word, charIndex + differentCharIndex, word.length),
-                                    bigrams, frequency);
-                    currentGroup.mChildren = new Node();
-                    currentGroup.mChildren.mData.add(newNode);
+                    final int children = newNode();
+                    mNodeFirstGroups[children] = newGroup(word, charIndex + differentCharIndex,
+                            frequency, storeBigrams(bigrams));
+                    mGroupChildren[currentGroup] = children;
                 }
             } else {
                 if (0 == differentCharIndex) {
                     // Exact same word. Check the frequency is 0 or -1, and update.
                     if (0 != frequency) {
-                        if (0 < currentGroup.mFrequency) {
+                        if (0 < mGroupFrequencies[currentGroup]) {
                             throw new RuntimeException("This word already exists with frequency "
-                                    + currentGroup.mFrequency + " : "
+                                    + mGroupFrequencies[currentGroup] + " : "
                                     + new String(word, 0, word.length));
                         }
-                        final CharGroup newGroup = new CharGroup(word,
-                                currentGroup.mBigrams, frequency, currentGroup.mChildren);
-                        currentNode.mData.set(nodeIndex, newGroup);
+                        setFrequency(currentGroup, frequency);
                     }
                 } else {
-                    // Partial prefix match only. We have to replace the current node with a node
-                    // containing the current prefix and create two new ones for the tails.
-                    Node newChildren = new Node();
-                    final CharGroup newOldWord = new CharGroup(
-                            Arrays.copyOfRange(currentGroup.mChars, differentCharIndex,
-                                    currentGroup.mChars.length),
-                            currentGroup.mBigrams, currentGroup.mFrequency, currentGroup.mChildren);
-                    newChildren.mData.add(newOldWord);
-
-                    final CharGroup newParent;
+                    // Partial prefix match only. We have to replace the current group with a
+                    // group containing the current prefix, with the tails as its children.
+                    // The current group keeps the tail of its characters rather than the
+                    // prefix, so that it still is the group of its word for bigrams.
+                    final int start = mGroupCharStarts[currentGroup];
+                    final int length = mGroupCharLengths[currentGroup];
+                    final int prefixLength = Character.offsetByCodePoints(mChars, start, length,
+                            start, differentCharIndex) - start;
+                    final int newChildren = newNode();
+                    final int newParent;
                     if (charIndex + differentCharIndex >= word.length) {
-                        newParent = new CharGroup(
-                                Arrays.copyOfRange(currentGroup.mChars, 0, differentCharIndex),
-                                        bigrams, frequency, newChildren);
+                        newParent = newGroup(start, prefixLength, frequency,
+                                storeBigrams(bigrams), newChildren);
                     } else {
-                        newParent = new CharGroup(
-                                Arrays.copyOfRange(currentGroup.mChars, 0, differentCharIndex),
-                                        null, -1, newChildren);
-                        final CharGroup newWord = new CharGroup(
-                                Arrays.copyOfRange(word, charIndex + differentCharIndex,
-                                        word.length), bigrams, frequency);
-                        final int addIndex = word[charIndex + differentCharIndex]
-                                > currentGroup.mChars[differentCharIndex] ? 1 : 0;
-                        newChildren.mData.add(addIndex, newWord);
+                        newParent = newGroup(start, prefixLength, CharGroup.NOT_A_TERMINAL,
+                                NO_BIGRAMS, newChildren);
+                    }
+                    replaceGroup(currentNode, currentGroup, newParent);
+                    mGroupCharStarts[currentGroup] = start + prefixLength;
+                    mGroupCharLengths[currentGroup] = (short)(length - prefixLength);
+                    mGroupNextSiblings[currentGroup] = NO_GROUP;
+                    mNodeFirstGroups[newChildren] = currentGroup;
+                    if (charIndex + differentCharIndex < word.length) {
+                        final int newWord = newGroup(word, charIndex + differentCharIndex,
+                                frequency, storeBigrams(bigrams));
+                        insertGroup(newChildren, newWord);
                     }
-                    currentNode.mData.set(nodeIndex, newParent);
                 }
                 checkStack(currentNode);
             }
@@ -305,97 +704,117 @@ public class FusionDictionary implements Iterable<Word> {
     }
 
     /**
-     * Custom comparison of two int arrays taken to contain character codes.
+     * Custom comparison of the characters of a group with an int array of character codes.
      *
-     * This method compares the two arrays passed as an argument in a lexicographic way,
-     * with an offset in the dst string.
+     * This method compares the group and the array in a lexicographic way, with an offset in
+     * the array.
      * This method does NOT test for the first character. It is taken to be equal.
-     * I repeat: this method starts the comparison at 1 <> dstOffset + 1.
+     * I repeat: this method starts the comparison at 1 <> wordOffset + 1.
      * The index where the strings differ is returned. ARRAYS_ARE_EQUAL = 0 is returned if the
      * strings are equal. This works BECAUSE we don't look at the first character.
      *
-     * @param src the left-hand side string of the comparison.
-     * @param dst the right-hand side string of the comparison.
-     * @param dstOffset the offset in the right-hand side string.
+     * @param group the group, the left-hand side of the comparison.
+     * @param word the right-hand side string of the comparison.
+     * @param wordOffset the offset in the right-hand side string.
      * @return the index at which the strings differ, or ARRAYS_ARE_EQUAL = 0 if they don't.
      */
     private static int ARRAYS_ARE_EQUAL = 0;
-    private static int compareArrays(final int[] src, final int[] dst, int dstOffset) {
+    private int compareChars(final int group, final int[] word, int wordOffset) {
+        final int start = mGroupCharStarts[group];
+        final int end = start + mGroupCharLengths[group];
         // We do NOT test the first char, because we come from a method that already
         // tested it.
-        for (int i = 1; i < src.length; ++i) {
-            if (dstOffset + i >= dst.length) return i;
-            if (src[i] != dst[dstOffset + i]) return i;
+        int index = start + Character.charCount(Character.codePointAt(mChars, start, end));
+        int i = 1;
+        for (; index < end; ++i) {
+            if (wordOffset + i >= word.length) return i;
+            final int character = Character.codePointAt(mChars, index, end);
+            if (character != word[wordOffset + i]) return i;
+            index += Character.charCount(character);
         }
-        if (dst.length > src.length) return src.length;
+        if (word.length > i) return i;
         return ARRAYS_ARE_EQUAL;
     }
 
     /**
-     * Helper class that compares and sorts two chargroups according to their
-     * first element only. I repeat: ONLY the first element is considered, the rest
-     * is ignored.
-     * This comparator imposes orderings that are inconsistent with equals.
+     * Inserts a group in a node, in the order of their first characters.
      */
-    static private class CharGroupComparator implements java.util.Comparator {
-        public int compare(Object o1, Object o2) {
-            final CharGroup c1 = (CharGroup)o1;
-            final CharGroup c2 = (CharGroup)o2;
-            if (c1.mChars[0] == c2.mChars[0]) return 0;
-            return c1.mChars[0] < c2.mChars[0] ? -1 : 1;
+    private void insertGroup(final int node, final int group) {
+        final int character = getFirstChar(group);
+        int previous = NO_GROUP;
+        int next = mNodeFirstGroups[node];
+        while (NO_GROUP != next && getFirstChar(next) < character) {
+            previous = next;
+            next = mGroupNextSiblings[next];
         }
-        public boolean equals(Object o) {
-            return o instanceof CharGroupComparator;
+        mGroupNextSiblings[group] = next;
+        if (NO_GROUP == previous) {
+            mNodeFirstGroups[node] = group;
+        } else {
+            mGroupNextSiblings[previous] = group;
         }
     }
-    final static private CharGroupComparator CHARGROUP_COMPARATOR = new CharGroupComparator();
 
     /**
-     * Finds the insertion index of a character within a node.
+     * Puts a group in the place of another one in a node.
      */
-    private static int findInsertionIndex(final Node node, int character) {
-        final List data = node.mData;
-        final CharGroup reference = new CharGroup(new int[] { character }, null, 0);
-        int result = Collections.binarySearch(data, reference, CHARGROUP_COMPARATOR);
-        return result >= 0 ? result : -result - 1;
+    private void replaceGroup(final int node, final int oldGroup, final int newGroup) {
+        mGroupNextSiblings[newGroup] = mGroupNextSiblings[oldGroup];
+        if (oldGroup == mNodeFirstGroups[node]) {
+            mNodeFirstGroups[node] = newGroup;
+            return;
+        }
+        int previous = mNodeFirstGroups[node];
+        while (oldGroup != mGroupNextSiblings[previous]) previous = mGroupNextSiblings[previous];
+        mGroupNextSiblings[previous] = newGroup;
     }
 
     /**
-     * Find the index of a char in a node, if it exists.
+     * Find the group of a node starting with a char, if it exists.
      *
      * @param node the node to search in.
      * @param character the character to search for.
-     * @return the position of the character if it's there, or CHARACTER_NOT_FOUND = -1 else.
+     * @return the group starting with the character if it's there, or NO_GROUP else.
      */
-    private static int CHARACTER_NOT_FOUND = -1;
-    private static int findIndexOfChar(final Node node, int character) {
-        final int insertionIndex = findInsertionIndex(node, character);
-        if (node.mData.size() <= insertionIndex) return CHARACTER_NOT_FOUND;
-        return character == node.mData.get(insertionIndex).mChars[0] ? insertionIndex
-                : CHARACTER_NOT_FOUND;
+    private int findGroupOfChar(final int node, final int character) {
+        for (int g = mNodeFirstGroups[node]; NO_GROUP != g; g = mGroupNextSiblings[g]) {
+            final int firstChar = getFirstChar(g);
+            if (firstChar == character) return g;
+            if (firstChar > character) break;
+        }
+        return NO_GROUP;
     }
 
     /**
-     * Helper method to find a word in a given branch.
+     * Finds the group spelling a word in a given branch.
+     *
+     * @return the group the word ends on, or NO_GROUP if there is none.
      */
-    public static CharGroup findWordInTree(Node node, final String s) {
+    /* package */ int findGroup(int node, final String s) {
         int index = 0;
-        final StringBuilder checker = new StringBuilder();
-
-        CharGroup currentGroup;
-        do {
-            int indexOfGroup = findIndexOfChar(node, s.codePointAt(index));
-            if (CHARACTER_NOT_FOUND == indexOfGroup) return null;
-            currentGroup = node.mData.get(indexOfGroup);
-            checker.append(new String(currentGroup.mChars, 0, currentGroup.mChars.length));
-            index += currentGroup.mChars.length;
-            if (index < s.length()) {
-                node = currentGroup.mChildren;
+        while (index < s.length()) {
+            final int group = findGroupOfChar(node, s.codePointAt(index));
+            if (NO_GROUP == group) return NO_GROUP;
+            final int start = mGroupCharStarts[group];
+            final int length = mGroupCharLengths[group];
+            if (index + length > s.length()) return NO_GROUP;
+            for (int i = 0; i < length; ++i) {
+                if (mChars[start + i] != s.charAt(index + i)) return NO_GROUP;
             }
-        } while (null != node && index < s.length());
+            index += length;
+            if (index == s.length()) return group;
+            node = mGroupChildren[group];
+            if (NO_NODE == node) return NO_GROUP;
+        }
+        return NO_GROUP;
+    }
 
-        if (!s.equals(checker.toString())) return null;
-        return currentGroup;
+    /**
+     * Helper method to find a word in a given branch.
+     */
+    public static CharGroup findWordInTree(Node node, final String s) {
+        final int group = node.mDictionary.findGroup(node.mId, s);
+        return NO_GROUP == group ? null : new CharGroup(node.mDictionary, group);
     }
 
     /**
@@ -405,12 +824,15 @@ public class FusionDictionary implements Iterable<Word> {
      * @return the number of char groups in all the branch under this node.
      */
     public static int countCharGroups(final Node node) {
-        final int nodeSize = node.mData.size();
-        int size = nodeSize;
-        for (int i = nodeSize - 1; i >= 0; --i) {
-            CharGroup group = node.mData.get(i);
-            if (null != group.mChildren)
-                size += countCharGroups(group.mChildren);
+        return node.mDictionary.countCharGroups(node.mId);
+    }
+
+    private int countCharGroups(final int node) {
+        int size = 0;
+        for (int g = mNodeFirstGroups[node]; NO_GROUP != g; g = mGroupNextSiblings[g]) {
+            ++size;
+            if (NO_NODE != mGroupChildren[g])
+                size += countCharGroups(mGroupChildren[g]);
         }
         return size;
     }
@@ -422,104 +844,183 @@ public class FusionDictionary implements Iterable<Word> {
      * @result the number of nodes in this branch.
      */
     public static int countNodes(final Node node) {
+        return node.mDictionary.countNodes(node.mId);
+    }
+
+    private int countNodes(final int node) {
         int size = 1;
-        for (int i = node.mData.size() - 1; i >= 0; --i) {
-            CharGroup group = node.mData.get(i);
-            if (null != group.mChildren)
-                size += countNodes(group.mChildren);
+        for (int g = mNodeFirstGroups[node]; NO_GROUP != g; g = mGroupNextSiblings[g]) {
+            if (NO_NODE != mGroupChildren[g])
+                size += countNodes(mGroupChildren[g]);
         }
         return size;
     }
 
-    // Historically, the tails of the words were going to be merged to save space.
-    // However, that would prevent the code to search for a specific address in log(n)
-    // time so this was abandoned.
-    // The code is still of interest as it does add some compression to any dictionary
-    // that has no need for attributes. Implementations that does not read attributes should be
-    // able to read a dictionary with merged tails.
-    // Also, the following code does support frequencies, as in, it will only merges
-    // tails that share the same frequency. Though it would result in the above loss of
-    // performance while searching by address, it is still technically possible to merge
-    // tails that contain attributes, but this code does not take that into account - it does
-    // not compare attributes and will merge terminals with different attributes regardless.
+    // The tails of the words can be merged to save space: nodes with the same contents,
+    // including the frequencies, the bigrams and the children of their groups, are replaced by
+    // a single node shared by all their parents, turning the trie into a DAG.
+    // Bigrams refer to the address of their target group, and readers find the target word by
+    // searching for that address in the ordered parts of the file. So a node is never merged if
+    // its subtree contains a bigram target, which keeps every target at a single, reachable
+    // place. Nodes with bigrams can still be merged, as long as the bigrams are the same.
+    // This must be the last step before writing the dictionary: adding a word to a dictionary
+    // with merged tails would add it under every parent of the shared nodes.
     public void mergeTails() {
-        MakedictLog.i("Do not merge tails");
-        return;
-
-//        MakedictLog.i("Merging nodes. Number of nodes : " + countNodes(root));
-//        MakedictLog.i("Number of groups : " + countCharGroups(root));
-//
-//        final HashMap<String, ArrayList<Node>> repository =
-//                  new HashMap<String, ArrayList<Node>>();
-//        mergeTailsInner(repository, root);
-//
-//        MakedictLog.i("Number of different pseudohashes : " + repository.size());
-//        int size = 0;
-//        for (ArrayList<Node> a : repository.values()) {
-//            size += a.size();
-//        }
-//        MakedictLog.i("Number of nodes after merge : " + (1 + size));
-//        MakedictLog.i("Recursively seen nodes : " + countNodes(root));
-    }
-
-    // The following methods are used by the deactivated mergeTails()
-//   private static boolean isEqual(Node a, Node b) {
-//       if (null == a && null == b) return true;
-//       if (null == a || null == b) return false;
-//       if (a.data.size() != b.data.size()) return false;
-//       final int size = a.data.size();
-//       for (int i = size - 1; i >= 0; --i) {
-//           CharGroup aGroup = a.data.get(i);
-//           CharGroup bGroup = b.data.get(i);
-//           if (aGroup.frequency != bGroup.frequency) return false;
-//           if (aGroup.alternates == null && bGroup.alternates != null) return false;
-//           if (aGroup.alternates != null && !aGroup.equals(bGroup.alternates)) return false;
-//           if (!Arrays.equals(aGroup.chars, bGroup.chars)) return false;
-//           if (!isEqual(aGroup.children, bGroup.children)) return false;
-//       }
-//       return true;
-//   }
-
-//   static private HashMap<String, ArrayList<Node>> mergeTailsInner(
-//           final HashMap<String, ArrayList<Node>> map, final Node node) {
-//       final ArrayList<CharGroup> branches = node.data;
-//       final int nodeSize = branches.size();
-//       for (int i = 0; i < nodeSize; ++i) {
-//           CharGroup group = branches.get(i);
-//           if (null != group.children) {
-//               String pseudoHash = getPseudoHash(group.children);
-//               ArrayList<Node> similarList = map.get(pseudoHash);
-//               if (null == similarList) {
-//                   similarList = new ArrayList<Node>();
-//                   map.put(pseudoHash, similarList);
-//               }
-//               boolean merged = false;
-//               for (Node similar : similarList) {
-//                   if (isEqual(group.children, similar)) {
-//                       group.children = similar;
-//                       merged = true;
-//                       break;
-//                   }
-//               }
-//               if (!merged) {
-//                   similarList.add(group.children);
-//               }
-//               mergeTailsInner(map, group.children);
-//           }
-//       }
-//       return map;
-//   }
-
-//  private static String getPseudoHash(final Node node) {
-//      StringBuilder s = new StringBuilder();
-//      for (CharGroup g : node.data) {
-//          s.append(g.frequency);
-//          for (int ch : g.chars){
-//              s.append(Character.toChars(ch));
-//          }
-//      }
-//      return s.toString();
-//  }
+        MakedictLog.i("Merging nodes. Number of nodes : " + countNodes(mRoot));
+        MakedictLog.i("Number of groups : " + countCharGroups(mRoot));
+
+        resolveBigramTargets();
+        final boolean[] bigramTargets = new boolean[mGroupCount];
+        for (int group = 0; group < mGroupCount; ++group) {
+            for (int i = getBigramCount(group) - 1; i >= 0; --i) {
+                bigramTargets[getBigramTarget(group, i)] = true;
+            }
+        }
+        final HashMap<NodeContents, Integer> repository = new HashMap<NodeContents, Integer>();
+        mergeTailsInner(repository, bigramTargets, ROOT_NODE);
+
+        MakedictLog.i("Number of different mergeable nodes : " + repository.size());
+    }
+
+    /**
+     * Replaces the children of the groups of a node with identical nodes seen before.
+     *
+     * The children are merged bottom-up, so that the nodes of the repository can be compared
+     * by their contents and the identity of their children.
+     *
+     * @param repository a mapping from node contents to the first node seen with them.
+     * @param bigramTargets whether each group is the target of a bigram.
+     * @param node the node to merge the children of.
+     * @return whether the node can be merged, that is if its subtree has no bigram target.
+     */
+    private boolean mergeTailsInner(final HashMap<NodeContents, Integer> repository,
+            final boolean[] bigramTargets, final int node) {
+        boolean isMergeable = true;
+        for (int g = mNodeFirstGroups[node]; NO_GROUP != g; g = mGroupNextSiblings[g]) {
+            if (bigramTargets[g]) isMergeable = false;
+            final int children = mGroupChildren[g];
+            if (NO_NODE == children) continue;
+            if (!mergeTailsInner(repository, bigramTargets, children)) {
+                isMergeable = false;
+                continue;
+            }
+            final NodeContents contents = getNodeContents(children);
+            final Integer similar = repository.get(contents);
+            if (null == similar) {
+                repository.put(contents, children);
+            } else {
+                mGroupChildren[g] = similar;
+            }
+        }
+        return isMergeable;
+    }
+
+    /**
+     * The contents of a node, in a form suitable for comparison and hashing.
+     *
+     * Children are listed as is, so two nodes only have equal contents if their children are
+     * the same nodes.
+     */
+    private static class NodeContents {
+        final int[] mContents;
+        final int mHashCode;
+
+        NodeContents(final int[] contents) {
+            mContents = contents;
+            mHashCode = Arrays.hashCode(contents);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof NodeContents
+                    && Arrays.equals(mContents, ((NodeContents)o).mContents);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private NodeContents getNodeContents(final int node) {
+        int size = 0;
+        for (int g = mNodeFirstGroups[node]; NO_GROUP != g; g = mGroupNextSiblings[g]) {
+            // The characters and their count, the frequency, the bigrams and their count, and
+            // the children.
+            size += 4 + mGroupCharLengths[g] + 2 * getBigramCount(g);
+        }
+        final int[] contents = new int[size];
+        int index = 0;
+        for (int g = mNodeFirstGroups[node]; NO_GROUP != g; g = mGroupNextSiblings[g]) {
+            final int start = mGroupCharStarts[g];
+            contents[index++] = mGroupCharLengths[g];
+            for (int i = 0; i < mGroupCharLengths[g]; ++i) contents[index++] = mChars[start + i];
+            contents[index++] = mGroupFrequencies[g];
+            final int bigramCount = getBigramCount(g);
+            contents[index++] = bigramCount;
+            for (int i = 0; i < bigramCount; ++i) {
+                contents[index++] = getBigramTarget(g, i);
+                contents[index++] = getBigramFrequency(g, i);
+            }
+            contents[index++] = mGroupChildren[g];
+        }
+        return new NodeContents(contents);
+    }
+
+    /**
+     * Finds the words of all the bigram targets.
+     *
+     * The targets must have been resolved.
+     *
+     * @return the word of each group that is a bigram target, indexed by group, or null if
+     *   there are no bigrams.
+     */
+    /* package */ String[] getBigramTargetWords() {
+        if (0 == mBigramDataSize) return null;
+        final boolean[] isTarget = new boolean[mGroupCount];
+        for (int group = 0; group < mGroupCount; ++group) {
+            for (int i = getBigramCount(group) - 1; i >= 0; --i) {
+                isTarget[getBigramTarget(group, i)] = true;
+            }
+        }
+        final String[] words = new String[mGroupCount];
+        collectWords(ROOT_NODE, new StringBuilder(), isTarget, words, new boolean[mNodeCount]);
+        return words;
+    }
+
+    private void collectWords(final int node, final StringBuilder prefix,
+            final boolean[] isTarget, final String[] words, final boolean[] visitedNodes) {
+        // Nodes shared by merged tails hold no target, so they only need to be visited once.
+        if (visitedNodes[node]) return;
+        visitedNodes[node] = true;
+        final int prefixLength = prefix.length();
+        for (int g = mNodeFirstGroups[node]; NO_GROUP != g; g = mGroupNextSiblings[g]) {
+            prefix.setLength(prefixLength);
+            prefix.append(mChars, mGroupCharStarts[g], mGroupCharLengths[g]);
+            if (isTarget[g]) words[g] = prefix.toString();
+            if (NO_NODE != mGroupChildren[g]) {
+                collectWords(mGroupChildren[g], prefix, isTarget, words, visitedNodes);
+            }
+        }
+        prefix.setLength(prefixLength);
+    }
+
+    /**
+     * Returns the bigrams of a group, or null if it has none.
+     *
+     * @param group the group.
+     * @param targetWords the words of the bigram targets, from getBigramTargetWords.
+     */
+    private ArrayList<WeightedString> getBigrams(final int group, final String[] targetWords) {
+        final int bigramCount = getBigramCount(group);
+        if (0 == bigramCount) return null;
+        final ArrayList<WeightedString> bigrams = new ArrayList<WeightedString>(bigramCount);
+        for (int i = 0; i < bigramCount; ++i) {
+            bigrams.add(new WeightedString(targetWords[getBigramTarget(group, i)],
+                    getBigramFrequency(group, i)));
+        }
+        return bigrams;
+    }
 
     /**
      * Iterator to walk through a dictionary.
@@ -527,59 +1028,71 @@ public class FusionDictionary implements Iterable<Word> {
      * This is purely for convenience.
      */
     public static class DictionaryIterator implements Iterator<Word> {
+        private static final int INITIAL_DEPTH = 16;
+        private final FusionDictionary mDictionary;
+        private final String[] mBigramTargetWords;
+        private final StringBuilder mCurrentString;
+        // For each node on the path to the current word: the next group to read, and the
+        // length of the word before the node.
+        private int[] mNextGroups;
+        private int[] mPrefixLengths;
+        private int mDepth;
+        private Word mNextWord;
+
+        DictionaryIterator(final FusionDictionary dictionary) {
+            mDictionary = dictionary;
+            mDictionary.resolveBigramTargets();
+            mBigramTargetWords = dictionary.getBigramTargetWords();
+            mCurrentString = new StringBuilder();
+            mNextGroups = new int[INITIAL_DEPTH];
+            mPrefixLengths = new int[INITIAL_DEPTH];
+            mDepth = -1;
+            pushNode(ROOT_NODE);
+            mNextWord = readNextWord();
+        }
 
-        private static class Position {
-            public Iterator<CharGroup> pos;
-            public int length;
-            public Position(ArrayList<CharGroup> groups) {
-                pos = groups.iterator();
-                length = 0;
+        private void pushNode(final int node) {
+            ++mDepth;
+            if (mDepth == mNextGroups.length) {
+                mNextGroups = Arrays.copyOf(mNextGroups, mDepth * 2);
+                mPrefixLengths = Arrays.copyOf(mPrefixLengths, mDepth * 2);
             }
+            mNextGroups[mDepth] = mDictionary.mNodeFirstGroups[node];
+            mPrefixLengths[mDepth] = mCurrentString.length();
         }
-        final StringBuilder mCurrentString;
-        final LinkedList<Position> mPositions;
 
-        public DictionaryIterator(ArrayList<CharGroup> root) {
-            mCurrentString = new StringBuilder();
-            mPositions = new LinkedList<Position>();
-            final Position rootPos = new Position(root);
-            mPositions.add(rootPos);
+        private Word readNextWord() {
+            final FusionDictionary dict = mDictionary;
+            while (mDepth >= 0) {
+                final int group = mNextGroups[mDepth];
+                if (NO_GROUP == group) {
+                    --mDepth;
+                    continue;
+                }
+                mNextGroups[mDepth] = dict.mGroupNextSiblings[group];
+                mCurrentString.setLength(mPrefixLengths[mDepth]);
+                mCurrentString.append(dict.mChars, dict.mGroupCharStarts[group],
+                        dict.mGroupCharLengths[group]);
+                if (NO_NODE != dict.mGroupChildren[group]) pushNode(dict.mGroupChildren[group]);
+                if (dict.mGroupFrequencies[group] >= 0) {
+                    return new Word(mCurrentString.toString(), dict.mGroupFrequencies[group],
+                            dict.getBigrams(group, mBigramTargetWords));
+                }
+            }
+            return null;
         }
 
         @Override
         public boolean hasNext() {
-            for (Position p : mPositions) {
-                if (p.pos.hasNext()) {
-                    return true;
-                }
-            }
-            return false;
+            return null != mNextWord;
         }
 
         @Override
         public Word next() {
-            Position currentPos = mPositions.getLast();
-            mCurrentString.setLength(mCurrentString.length() - currentPos.length);
-
-            do {
-                if (currentPos.pos.hasNext()) {
-                    final CharGroup currentGroup = currentPos.pos.next();
-                    currentPos.length = currentGroup.mChars.length;
-                    for (int i : currentGroup.mChars)
-                        mCurrentString.append(Character.toChars(i));
-                    if (null != currentGroup.mChildren) {
-                        currentPos = new Position(currentGroup.mChildren.mData);
-                        mPositions.addLast(currentPos);
-                    }
-                    if (currentGroup.mFrequency >= 0)
-                        return new Word(mCurrentString.toString(), currentGroup.mFrequency,
-                                currentGroup.mBigrams);
-                } else {
-                    mPositions.removeLast();
-                    currentPos = mPositions.getLast();
-                    mCurrentString.setLength(mCurrentString.length() - mPositions.getLast().length);
-                }
-            } while(true);
+            if (null == mNextWord) throw new NoSuchElementException();
+            final Word word = mNextWord;
+            mNextWord = readNextWord();
+            return word;
         }
 
         @Override
@@ -597,6 +1110,6 @@ public class FusionDictionary implements Iterable<Word> {
      */
     @Override
     public Iterator<Word> iterator() {
-        return new DictionaryIterator(mRoot.mData);
+        return new DictionaryIterator(this);
     }
 }
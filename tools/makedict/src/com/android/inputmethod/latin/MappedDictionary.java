@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_ATTRIBUTE_ADDRESS_TYPE_ONEBYTE;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_ATTRIBUTE_ADDRESS_TYPE_THREEBYTES;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_ATTRIBUTE_ADDRESS_TYPE_TWOBYTES;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_ATTRIBUTE_FREQUENCY;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_ATTRIBUTE_HAS_NEXT;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_ATTRIBUTE_OFFSET_NEGATIVE;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_GROUP_ADDRESS_TYPE_ONEBYTE;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_GROUP_ADDRESS_TYPE_THREEBYTES;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_GROUP_ADDRESS_TYPE_TWOBYTES;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_HAS_BIGRAMS;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_HAS_MULTIPLE_CHARS;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_HAS_SHARED_CHILDREN;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_HAS_SUBTREE_MAX_FREQUENCY;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.FLAG_IS_TERMINAL;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.GROUP_CHARACTERS_TERMINATOR;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.INVALID_CHARACTER;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.MASK_ATTRIBUTE_ADDRESS_TYPE;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.MASK_GROUP_ADDRESS_TYPE;
+import static com.android.inputmethod.latin.BinaryDictInputOutput.MAX_WORD_LENGTH;
+
+import com.android.inputmethod.latin.FusionDictionary.CharGroup;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Looks up words directly in a binary dictionary buffer.
+ *
+ * This walks the binary format the same way the native dictionary does, so binary
+ * dictionaries can be queried where the native library is not available, like on a host.
+ * Nothing is read to memory beforehand and lookups do not allocate, so a mapped file can be
+ * used for benchmarks or batch processing.
+ *
+ * An instance keeps the word it is building between calls, so it must only be used by one
+ * thread at a time. Several instances may share the same buffer.
+ */
+public class MappedDictionary {
+
+    /**
+     * Interface to be implemented by the classes receiving the words found.
+     */
+    public interface WordCallback {
+        /**
+         * Receives a word.
+         *
+         * @param word the code points of the word. The array is reused for the next words.
+         * @param length the number of code points in the word.
+         * @param frequency the frequency of the word, or of the bigram for bigrams.
+         * @return true to receive more words, false to stop the search.
+         */
+        boolean addWord(int[] word, int length, int frequency);
+    }
+
+    private static final int NO_CHILDREN = -1;
+    private static final int NO_BIGRAMS = -1;
+
+    private final ByteBuffer mBuffer;
+    // The position of the root node in the buffer. Addresses in the file are relative to it.
+    private final int mRoot;
+    private final int[] mWord = new int[MAX_WORD_LENGTH];
+
+    // The last group read by readGroup. Positions are in the buffer.
+    private int mFlags;
+    private int mCharacters;
+    private int mFrequency;
+    private int mSubtreeMaxFrequency;
+    private int mChildren;
+    private int mBigrams;
+
+    /**
+     * Creates a dictionary over a buffer.
+     *
+     * @param buffer the buffer holding the binary dictionary, positioned at its start. Its
+     *   position is not modified.
+     * @throws UnsupportedFormatException if the header is not a supported one.
+     */
+    public MappedDictionary(ByteBuffer buffer) throws UnsupportedFormatException {
+        mBuffer = buffer;
+        mRoot = BinaryDictInputOutput.readHeader(buffer.duplicate());
+    }
+
+    /**
+     * Creates a dictionary over the mapped contents of a file.
+     *
+     * @param file the binary dictionary file.
+     * @throws IOException if the file can't be mapped.
+     * @throws UnsupportedFormatException if the header is not a supported one.
+     */
+    public MappedDictionary(RandomAccessFile file)
+            throws IOException, UnsupportedFormatException {
+        this(BinaryDictInputOutput.mapDictionaryBinary(file));
+    }
+
+    private int readUnsignedByte(final int position) {
+        return mBuffer.get(position) & 0xFF;
+    }
+
+    /**
+     * Reads a character, following the format of BinaryDictInputOutput.CharEncoding.
+     *
+     * @return the character code, or INVALID_CHARACTER for the terminator of a group.
+     */
+    private int readChar(final int position) {
+        final int character = readUnsignedByte(position);
+        if (character > GROUP_CHARACTERS_TERMINATOR) return character;
+        if (GROUP_CHARACTERS_TERMINATOR == character) return INVALID_CHARACTER;
+        return (character << 16) + (readUnsignedByte(position + 1) << 8)
+                + readUnsignedByte(position + 2);
+    }
+
+    private static int getCharSize(final int character) {
+        return character > GROUP_CHARACTERS_TERMINATOR && character <= 0xFF
+                || INVALID_CHARACTER == character ? 1 : 3;
+    }
+
+    /**
+     * Reads the group at a position into the fields describing the last group read.
+     *
+     * @return the position of the next group.
+     */
+    private int readGroup(final int position) {
+        int pos = position;
+        mFlags = readUnsignedByte(pos++);
+        mCharacters = pos;
+        if (0 != (mFlags & FLAG_HAS_MULTIPLE_CHARS)) {
+            for (int character = readChar(pos); INVALID_CHARACTER != character;
+                    character = readChar(pos)) {
+                pos += getCharSize(character);
+            }
+            ++pos; // the terminator
+        } else {
+            pos += getCharSize(readChar(pos));
+        }
+        mFrequency = 0 != (mFlags & FLAG_IS_TERMINAL)
+                ? readUnsignedByte(pos++) : CharGroup.NOT_A_TERMINAL;
+        mSubtreeMaxFrequency = 0 != (mFlags & FLAG_HAS_SUBTREE_MAX_FREQUENCY)
+                ? readUnsignedByte(pos++) : CharGroup.NOT_A_TERMINAL;
+        switch (mFlags & MASK_GROUP_ADDRESS_TYPE) {
+        case FLAG_GROUP_ADDRESS_TYPE_ONEBYTE:
+            mChildren = pos + readUnsignedByte(pos);
+            pos += 1;
+            break;
+        case FLAG_GROUP_ADDRESS_TYPE_TWOBYTES:
+            mChildren = pos + (readUnsignedByte(pos) << 8) + readUnsignedByte(pos + 1);
+            pos += 2;
+            break;
+        case FLAG_GROUP_ADDRESS_TYPE_THREEBYTES:
+            mChildren = pos + (readUnsignedByte(pos) << 16) + (readUnsignedByte(pos + 1) << 8)
+                    + readUnsignedByte(pos + 2);
+            pos += 3;
+            break;
+        default:
+            mChildren = NO_CHILDREN;
+            break;
+        }
+        if (0 != (mFlags & FLAG_HAS_BIGRAMS)) {
+            mBigrams = pos;
+            int bigramFlags;
+            do {
+                bigramFlags = readUnsignedByte(pos++);
+                pos += getAttributeAddressSize(bigramFlags);
+            } while (0 != (bigramFlags & FLAG_ATTRIBUTE_HAS_NEXT));
+        } else {
+            mBigrams = NO_BIGRAMS;
+        }
+        return pos;
+    }
+
+    private static int getAttributeAddressSize(final int attributeFlags) {
+        switch (attributeFlags & MASK_ATTRIBUTE_ADDRESS_TYPE) {
+        case FLAG_ATTRIBUTE_ADDRESS_TYPE_ONEBYTE: return 1;
+        case FLAG_ATTRIBUTE_ADDRESS_TYPE_TWOBYTES: return 2;
+        case FLAG_ATTRIBUTE_ADDRESS_TYPE_THREEBYTES: return 3;
+        default: throw new RuntimeException("Has attribute with no address");
+        }
+    }
+
+    /**
+     * Appends the characters of the last group read to the word being built.
+     *
+     * @param length the length of the word so far.
+     * @return the new length of the word, or -1 if it is too long.
+     */
+    private int appendCharacters(final int length) {
+        int newLength = length;
+        int pos = mCharacters;
+        do {
+            final int character = readChar(pos);
+            if (INVALID_CHARACTER == character) break;
+            if (newLength >= MAX_WORD_LENGTH) return -1;
+            mWord[newLength++] = character;
+            pos += getCharSize(character);
+        } while (0 != (mFlags & FLAG_HAS_MULTIPLE_CHARS));
+        return newLength;
+    }
+
+    /**
+     * Finds the group a word or prefix ends in, and reads it.
+     *
+     * The characters of the groups leading to it are put in the word being built, but not
+     * those of the group itself.
+     *
+     * @param word the word or prefix to look for.
+     * @param isPrefix whether the word may end before the end of the group.
+     * @return the length of the word built, or -1 if there is no such group.
+     */
+    private int findGroup(final CharSequence word, final boolean isPrefix) {
+        final int wordLength = word.length();
+        int index = 0;
+        int length = 0;
+        int node = mRoot;
+        while (true) {
+            final int character = Character.codePointAt(word, index);
+            int pos = node;
+            int count = readUnsignedByte(pos++);
+            for (; count > 0; --count) {
+                final int next = readGroup(pos);
+                if (readChar(mCharacters) == character) break;
+                pos = next;
+            }
+            if (0 == count) return -1;
+            // Match the characters of the group against the word.
+            int charPos = mCharacters;
+            int groupCharacter = character;
+            while (INVALID_CHARACTER != groupCharacter && index < wordLength) {
+                if (groupCharacter != Character.codePointAt(word, index)) return -1;
+                index += Character.charCount(groupCharacter);
+                charPos += getCharSize(groupCharacter);
+                groupCharacter = 0 != (mFlags & FLAG_HAS_MULTIPLE_CHARS)
+                        ? readChar(charPos) : INVALID_CHARACTER;
+            }
+            if (index >= wordLength) {
+                return INVALID_CHARACTER == groupCharacter || isPrefix ? length : -1;
+            }
+            if (NO_CHILDREN == mChildren) return -1;
+            length = appendCharacters(length);
+            if (length < 0) return -1;
+            node = mChildren;
+        }
+    }
+
+    /**
+     * Returns the frequency of a word.
+     *
+     * The search is case-sensitive.
+     *
+     * @param word the word to look for.
+     * @return the frequency of the word, or CharGroup.NOT_A_TERMINAL if it is not a word of
+     *   the dictionary.
+     */
+    public int getFrequency(final CharSequence word) {
+        if (0 == word.length() || findGroup(word, false) < 0) return CharGroup.NOT_A_TERMINAL;
+        return mFrequency;
+    }
+
+    /**
+     * Checks if a word is in the dictionary. The search is case-sensitive.
+     */
+    public boolean isValidWord(final CharSequence word) {
+        return CharGroup.NOT_A_TERMINAL != getFrequency(word);
+    }
+
+    /**
+     * Passes all the words that start with a prefix to a callback.
+     *
+     * Words come in the order of the dictionary. If the dictionary stores the max frequency of
+     * its subtrees, the subtrees that only hold words less frequent than minFrequency are not
+     * even read.
+     *
+     * @param prefix the prefix of the words. If empty, all the words are returned.
+     * @param minFrequency the minimum frequency of the words to return.
+     * @param callback the callback to pass the words to.
+     */
+    public void getWordsWithPrefix(final CharSequence prefix, final int minFrequency,
+            final WordCallback callback) {
+        if (0 == prefix.length()) {
+            visitNode(mRoot, 0, minFrequency, callback);
+            return;
+        }
+        final int length = findGroup(prefix, true);
+        if (length < 0) return;
+        visitGroup(length, minFrequency, callback);
+    }
+
+    private boolean visitNode(final int node, final int length, final int minFrequency,
+            final WordCallback callback) {
+        int pos = node;
+        for (int count = readUnsignedByte(pos++); count > 0; --count) {
+            final int next = readGroup(pos);
+            if (!visitGroup(length, minFrequency, callback)) return false;
+            pos = next;
+        }
+        return true;
+    }
+
+    // Visits the last group read. The fields are overwritten by the groups below it.
+    private boolean visitGroup(final int length, final int minFrequency,
+            final WordCallback callback) {
+        if (CharGroup.NOT_A_TERMINAL != mSubtreeMaxFrequency
+                && mSubtreeMaxFrequency < minFrequency) {
+            return true;
+        }
+        final int frequency = mFrequency;
+        final int children = mChildren;
+        final int newLength = appendCharacters(length);
+        if (newLength < 0) return true;
+        if (frequency >= minFrequency && !callback.addWord(mWord, newLength, frequency)) {
+            return false;
+        }
+        if (NO_CHILDREN == children) return true;
+        return visitNode(children, newLength, minFrequency, callback);
+    }
+
+    /**
+     * Passes the words following a word, according to its bigrams, to a callback.
+     *
+     * @param word the word before. The search is case-sensitive.
+     * @param callback the callback to pass the words to, with the frequencies of the bigrams.
+     */
+    public void getBigrams(final CharSequence word, final WordCallback callback) {
+        if (0 == word.length() || findGroup(word, false) < 0) return;
+        if (CharGroup.NOT_A_TERMINAL == mFrequency || NO_BIGRAMS == mBigrams) return;
+        int pos = mBigrams;
+        int bigramFlags;
+        do {
+            bigramFlags = readUnsignedByte(pos++);
+            final int addressSize = getAttributeAddressSize(bigramFlags);
+            int offset = 0;
+            for (int i = 0; i < addressSize; ++i) {
+                offset = (offset << 8) + readUnsignedByte(pos + i);
+            }
+            final int target = 0 == (bigramFlags & FLAG_ATTRIBUTE_OFFSET_NEGATIVE)
+                    ? pos + offset : pos - offset;
+            pos += addressSize;
+            final int length = getWordAtPosition(target);
+            if (length > 0
+                    && !callback.addWord(mWord, length, bigramFlags & FLAG_ATTRIBUTE_FREQUENCY)) {
+                return;
+            }
+        } while (0 != (bigramFlags & FLAG_ATTRIBUTE_HAS_NEXT));
+    }
+
+    /**
+     * Builds the word ending at the group at a position.
+     *
+     * Like the native getWordAtAddress, this relies on the nodes being laid out in the order
+     * of their parents, and does not descend shared nodes.
+     *
+     * @return the length of the word, or -1 if no word was found.
+     */
+    private int getWordAtPosition(final int target) {
+        int length = 0;
+        int pos = mRoot;
+        int count = readUnsignedByte(pos++);
+        // The last group seen in this node whose children start before the target.
+        int lastGroup = -1;
+        while (true) {
+            if (0 == count) {
+                if (lastGroup < 0) return -1;
+                readGroup(lastGroup);
+                length = appendCharacters(length);
+                if (length < 0) return -1;
+                pos = mChildren;
+                count = readUnsignedByte(pos++);
+                lastGroup = -1;
+                continue;
+            }
+            final int next = readGroup(pos);
+            if (pos == target) return appendCharacters(length);
+            if (NO_CHILDREN != mChildren && 0 == (mFlags & FLAG_HAS_SHARED_CHILDREN)) {
+                if (mChildren > target) {
+                    // The target is below the last group seen, if any.
+                    if (lastGroup >= 0) {
+                        count = 0;
+                        continue;
+                    }
+                } else {
+                    lastGroup = pos;
+                }
+            }
+            pos = next;
+            --count;
+        }
+    }
+}
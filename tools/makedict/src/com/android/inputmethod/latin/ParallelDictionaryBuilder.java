@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.latin.FusionDictionary.CharGroup;
+import com.android.inputmethod.latin.FusionDictionary.WeightedString;
+
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds a FusionDictionary on several threads.
+ *
+ * Words are sharded by their first code point. Each worker thread builds a dictionary with the
+ * words of its own shards, and the root nodes of these dictionaries are put together at the
+ * end. A word only ever goes through groups of its own shard, so adding the words of each shard
+ * in their original order gives the same dictionary as adding them all to a single one.
+ */
+public class ParallelDictionaryBuilder {
+    // Words are handed to the workers in batches to keep the queues out of the profile.
+    private static final int BATCH_SIZE = 1024;
+    // Each queue holds a few batches, so that a slow worker makes the caller wait instead of
+    // having the whole word list buffered.
+    private static final int QUEUE_CAPACITY = 4;
+    // How often a caller waiting on a full queue checks that its worker has not failed.
+    private static final long QUEUE_WAIT_MILLIS = 100;
+    // A word with this frequency stands for the target of a bigram, which must be added with a
+    // 0 frequency unless it is already in the dictionary.
+    private static final int BIGRAM_TARGET = CharGroup.NOT_A_TERMINAL;
+
+    private final ExecutorService mExecutor;
+    private final ArrayList<BlockingQueue<ArrayList<Word>>> mQueues;
+    private final ArrayList<ArrayList<Word>> mBatches;
+    private final ArrayList<Future<FusionDictionary>> mShards;
+
+    /**
+     * Worker building the dictionary of a set of shards from the batches of its queue.
+     *
+     * An empty batch marks the end of the words.
+     */
+    private static class ShardBuilder implements Callable<FusionDictionary> {
+        private final BlockingQueue<ArrayList<Word>> mQueue;
+
+        public ShardBuilder(BlockingQueue<ArrayList<Word>> queue) {
+            mQueue = queue;
+        }
+
+        @Override
+        public FusionDictionary call() throws InterruptedException {
+            final FusionDictionary dict = new FusionDictionary();
+            for (ArrayList<Word> batch = mQueue.take(); !batch.isEmpty(); batch = mQueue.take()) {
+                for (Word w : batch) {
+                    if (BIGRAM_TARGET == w.mFrequency) {
+                        dict.addBigramTarget(w.mWord);
+                    } else {
+                        dict.addWithoutBigramTargets(w.mWord, w.mFrequency, w.mBigrams);
+                    }
+                }
+            }
+            return dict;
+        }
+    }
+
+    /**
+     * Create a builder with one worker thread for each available processor.
+     */
+    public ParallelDictionaryBuilder() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a builder.
+     *
+     * @param threadCount the number of worker threads.
+     */
+    public ParallelDictionaryBuilder(int threadCount) {
+        final int shardCount = Math.max(1, threadCount);
+        // Daemon threads, so that a builder abandoned after an error does not keep the
+        // tool running.
+        mExecutor = Executors.newFixedThreadPool(shardCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "makedict-shard");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mQueues = new ArrayList<BlockingQueue<ArrayList<Word>>>(shardCount);
+        mBatches = new ArrayList<ArrayList<Word>>(shardCount);
+        mShards = new ArrayList<Future<FusionDictionary>>(shardCount);
+        for (int i = 0; i < shardCount; ++i) {
+            final BlockingQueue<ArrayList<Word>> queue =
+                    new LinkedBlockingQueue<ArrayList<Word>>(QUEUE_CAPACITY);
+            mQueues.add(queue);
+            mBatches.add(new ArrayList<Word>(BATCH_SIZE));
+            mShards.add(mExecutor.submit(new ShardBuilder(queue)));
+        }
+    }
+
+    /**
+     * Add a word to the dictionary.
+     *
+     * This has the same semantics as FusionDictionary#add: the targets of the bigrams are
+     * added with a 0 frequency if they are not in the dictionary yet.
+     *
+     * @param word the word to add.
+     * @param frequency the frequency of the word, in the range [0..255].
+     * @param bigrams a list of bigrams, or null.
+     */
+    public void add(String word, int frequency, ArrayList<WeightedString> bigrams) {
+        if (null != bigrams) {
+            for (WeightedString bigram : bigrams) {
+                enqueue(new Word(bigram.mWord, BIGRAM_TARGET, null));
+            }
+        }
+        enqueue(new Word(word, frequency, bigrams));
+    }
+
+    private void enqueue(Word w) {
+        final int shard = w.mWord.isEmpty() ? 0 : w.mWord.codePointAt(0) % mQueues.size();
+        final ArrayList<Word> batch = mBatches.get(shard);
+        batch.add(w);
+        if (batch.size() >= BATCH_SIZE) {
+            putBatch(shard, batch);
+            mBatches.set(shard, new ArrayList<Word>(BATCH_SIZE));
+        }
+    }
+
+    /**
+     * Hands a batch to the worker of a shard, waiting for room in its queue.
+     *
+     * A worker that failed does not take batches any more, so its error is thrown here rather
+     * than waiting forever.
+     */
+    private void putBatch(int shard, ArrayList<Word> batch) {
+        final BlockingQueue<ArrayList<Word>> queue = mQueues.get(shard);
+        final Future<FusionDictionary> worker = mShards.get(shard);
+        try {
+            while (!queue.offer(batch, QUEUE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (worker.isDone()) {
+                    worker.get();
+                    throw new IllegalStateException("A worker stopped before the last word");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while building the dictionary", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static RuntimeException rethrow(ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) return (RuntimeException)cause;
+        if (cause instanceof Error) throw (Error)cause;
+        return new RuntimeException(cause);
+    }
+
+    /**
+     * Waits for all the words to be added and returns the dictionary.
+     *
+     * This must be called only once, after the last word has been added.
+     *
+     * @return the dictionary.
+     */
+    public FusionDictionary getDictionary() {
+        try {
+            for (int i = 0; i < mQueues.size(); ++i) {
+                final ArrayList<Word> batch = mBatches.get(i);
+                if (!batch.isEmpty()) putBatch(i, batch);
+                putBatch(i, new ArrayList<Word>());
+            }
+            // Shards have no first character in common, so their root groups can simply be
+            // put together in order.
+            final ArrayList<FusionDictionary> shards =
+                    new ArrayList<FusionDictionary>(mShards.size());
+            for (Future<FusionDictionary> shard : mShards) {
+                shards.add(shard.get());
+            }
+            mShards.clear();
+            return FusionDictionary.concatenate(shards);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while building the dictionary", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Stops the worker threads. The builder can't be used afterwards.
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+}
@@ -57,7 +57,7 @@ public class XmlDictInputOutput {
         private static final int END = 5;
         private static final int UNKNOWN = 6;
 
-        final FusionDictionary mDictionary;
+        final ParallelDictionaryBuilder mBuilder;
         int mState; // the state of the parser
         int mFreq; // the currently read freq
         String mWord; // the current word
@@ -66,12 +66,12 @@ public class XmlDictInputOutput {
         /**
          * Create the handler.
          *
-         * @param dict the dictionary to construct.
+         * @param builder the builder of the dictionary to construct.
          * @param bigrams the bigrams as a map. This may be empty, but may not be null.
          */
-        public UnigramHandler(FusionDictionary dict,
+        public UnigramHandler(ParallelDictionaryBuilder builder,
                 HashMap<String, ArrayList<WeightedString>> bigrams) {
-            mDictionary = dict;
+            mBuilder = builder;
             mBigramsMap = bigrams;
             mWord = "";
             mState = START;
@@ -107,7 +107,7 @@ public class XmlDictInputOutput {
         @Override
         public void endElement(String uri, String localName, String qName) {
             if (WORD == mState) {
-                mDictionary.add(mWord, mFreq, mBigramsMap.get(mWord));
+                mBuilder.add(mWord, mFreq, mBigramsMap.get(mWord));
                 mState = START;
             }
         }
@@ -125,10 +125,20 @@ public class XmlDictInputOutput {
 
         String mW1;
         final HashMap<String, ArrayList<WeightedString>> mBigramsMap;
+        // The same words come up many times as bigram targets: they share a single string.
+        final HashMap<String, String> mWords;
 
         public BigramHandler() {
             mW1 = null;
             mBigramsMap = new HashMap<String, ArrayList<WeightedString>>();
+            mWords = new HashMap<String, String>();
+        }
+
+        private String getSharedWord(String word) {
+            final String sharedWord = mWords.get(word);
+            if (null != sharedWord) return sharedWord;
+            mWords.put(word, word);
+            return word;
         }
 
         @Override
@@ -136,11 +146,12 @@ public class XmlDictInputOutput {
             if (BIGRAM_W1_TAG.equals(localName)) {
                 mW1 = attrs.getValue(uri, BIGRAM_W1_ATTRIBUTE);
             } else if (BIGRAM_W2_TAG.equals(localName)) {
-                String w2 = attrs.getValue(uri, BIGRAM_W2_ATTRIBUTE);
+                String w2 = getSharedWord(attrs.getValue(uri, BIGRAM_W2_ATTRIBUTE));
                 int freq = Integer.parseInt(attrs.getValue(uri, BIGRAM_FREQ_ATTRIBUTE));
                 WeightedString bigram = new WeightedString(w2, freq / 8);
                 ArrayList<WeightedString> bigramList = mBigramsMap.get(mW1);
-                if (null == bigramList) bigramList = new ArrayList<WeightedString>();
+                // Most words only have a few bigrams.
+                if (null == bigramList) bigramList = new ArrayList<WeightedString>(1);
                 bigramList.add(bigram);
                 mBigramsMap.put(mW1, bigramList);
             }
@@ -168,11 +179,16 @@ public class XmlDictInputOutput {
         final BigramHandler bigramHandler = new BigramHandler();
         if (null != bigrams) parser.parse(bigrams, bigramHandler);
 
-        final FusionDictionary dict = new FusionDictionary();
-        final UnigramHandler unigramHandler =
-                new UnigramHandler(dict, bigramHandler.getBigramMap());
-        parser.parse(unigrams, unigramHandler);
-        return dict;
+        // The words are parsed on this thread while worker threads insert them.
+        final ParallelDictionaryBuilder builder = new ParallelDictionaryBuilder();
+        try {
+            final UnigramHandler unigramHandler =
+                    new UnigramHandler(builder, bigramHandler.getBigramMap());
+            parser.parse(unigrams, unigramHandler);
+            return builder.getDictionary();
+        } finally {
+            builder.shutdown();
+        }
     }
 
     /**
@@ -194,9 +210,9 @@ public class XmlDictInputOutput {
      * The output format is the "second" format, which supports bigrams and shortcuts.
      *
      * @param destination a destination stream to write to.
-     * @param dict the dictionary to write.
+     * @param dict the words of the dictionary to write, like a FusionDictionary.
      */
-    public static void writeDictionaryXml(Writer destination, FusionDictionary dict)
+    public static void writeDictionaryXml(Writer destination, Iterable<Word> dict)
             throws IOException {
         final TreeSet<Word> set = new TreeSet<Word>();
         for (Word word : dict) {
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.latin.FusionDictionary.WeightedString;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for BinaryDictDiff.
+ */
+public class BinaryDictDiffTest extends TestCase {
+
+    private static byte[] makeBinary(final FusionDictionary dict) throws Exception {
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryDictInputOutput.writeDictionaryBinary(binary, dict, false);
+        return binary.toByteArray();
+    }
+
+    private static byte[] makeStableBinary(final FusionDictionary dict,
+            final byte[] previousBinary) throws Exception {
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryDictInputOutput.writeStableDictionaryBinary(binary, dict, false,
+                null == previousBinary ? null : ByteBuffer.wrap(previousBinary));
+        return binary.toByteArray();
+    }
+
+    // Reads the words of a binary dictionary with their frequencies and bigrams, as strings.
+    private static ArrayList<String> readWords(final byte[] binary) throws Exception {
+        final ArrayList<String> words = new ArrayList<String>();
+        for (Word word : BinaryDictInputOutput.readWordsBinary(ByteBuffer.wrap(binary))) {
+            final StringBuilder s = new StringBuilder(word.mWord + ":" + word.mFrequency);
+            if (null != word.mBigrams) {
+                for (WeightedString bigram : word.mBigrams) {
+                    s.append(" " + bigram.mWord + ":" + bigram.mFrequency);
+                }
+            }
+            words.add(s.toString());
+        }
+        return words;
+    }
+
+    private static String makeWord(final int index) {
+        return "word" + Integer.toString(index, 26);
+    }
+
+    // Makes a dictionary of wordCount words, without the word at index skippedWord if it is
+    // in range. Each word is followed by bigramCount words spread over the dictionary.
+    private static FusionDictionary makeDictionary(final int wordCount, final int skippedWord,
+            final int bigramCount) {
+        final FusionDictionary dict = new FusionDictionary();
+        for (int i = 0; i < wordCount; ++i) {
+            if (i == skippedWord) continue;
+            ArrayList<WeightedString> bigrams = null;
+            if (bigramCount > 0) {
+                bigrams = new ArrayList<WeightedString>();
+                for (int j = 1; j <= bigramCount; ++j) {
+                    final int target = (i + j * 997) % wordCount;
+                    if (target != skippedWord) bigrams.add(new WeightedString(makeWord(target), j));
+                }
+            }
+            dict.add(makeWord(i), i % 256, bigrams);
+        }
+        return dict;
+    }
+
+    private static FusionDictionary makeDictionary(final int wordCount) {
+        return makeDictionary(wordCount, -1, 0);
+    }
+
+    private static byte[] checkPatch(final byte[] oldBinary, final byte[] newBinary)
+            throws Exception {
+        final ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        BinaryDictDiff.writePatch(patch, oldBinary, newBinary);
+        final byte[] patchedBinary = BinaryDictDiff.applyPatch(
+                new ByteArrayInputStream(patch.toByteArray()), oldBinary);
+        assertTrue("Patched dictionary differs", Arrays.equals(newBinary, patchedBinary));
+        return patch.toByteArray();
+    }
+
+    // Test that applying a patch gives back the new dictionary, and that the patch is smaller
+    // than the dictionary when the change is small.
+    public void testPatchGivesNewDictionary() throws Exception {
+        final FusionDictionary dict = makeDictionary(2000);
+        final byte[] oldBinary = makeBinary(dict);
+        dict.add("zzzzzz", 100, null);
+        final byte[] newBinary = makeBinary(dict);
+        final byte[] patch = checkPatch(oldBinary, newBinary);
+        assertTrue("Patch is not smaller than the dictionary",
+                patch.length < newBinary.length / 4);
+    }
+
+    // Test the patch for a word removed from the middle of the dictionary. Without bigrams,
+    // only the addresses of the children of the removed word's ancestors that come after it
+    // change, so the patch stays tiny. Bigram addresses are relative to where they are
+    // stored, so every bigram that points across the removed word changes, and each change
+    // breaks a copy: with two bigrams per word, the patch is 69KB for a 187KB file (37%).
+    public void testPatchForWordRemovedInTheMiddle() throws Exception {
+        final byte[] oldBinary = makeBinary(makeDictionary(20000, -1, 0));
+        final byte[] newBinary = makeBinary(makeDictionary(20000, 10000, 0));
+        final byte[] patch = checkPatch(oldBinary, newBinary);
+        assertTrue("Patch is " + patch.length + " bytes", patch.length < 1000);
+
+        final byte[] oldBigramBinary = makeBinary(makeDictionary(20000, -1, 2));
+        final byte[] newBigramBinary = makeBinary(makeDictionary(20000, 10000, 2));
+        final byte[] bigramPatch = checkPatch(oldBigramBinary, newBigramBinary);
+        assertTrue("Patch is " + bigramPatch.length + " bytes for " + newBigramBinary.length,
+                bigramPatch.length < newBigramBinary.length / 2);
+    }
+
+    // Test the patch for a one-word change between two versions with a stable layout. Only the
+    // nodes up to the next free bytes move, so only the bigrams pointing to them change: with
+    // two bigrams per word, removing a word gives a 731 byte patch for a 190KB file, where the
+    // compact layout above gives 69KB.
+    public void testStableLayoutPatchForOneWordChange() throws Exception {
+        final FusionDictionary dict = makeDictionary(20000, -1, 2);
+        final byte[] oldBinary = makeStableBinary(dict, null);
+        assertEquals("Stable layout changes the words", readWords(makeBinary(dict)),
+                readWords(oldBinary));
+
+        final FusionDictionary removedDict = makeDictionary(20000, 10000, 2);
+        final byte[] removedBinary = makeStableBinary(removedDict, oldBinary);
+        assertEquals("Stable layout changes the words", readWords(makeBinary(removedDict)),
+                readWords(removedBinary));
+        final byte[] removedPatch = checkPatch(oldBinary, removedBinary);
+        assertTrue("Patch is " + removedPatch.length + " bytes for " + removedBinary.length,
+                removedPatch.length < removedBinary.length / 100);
+
+        final FusionDictionary addedDict = makeDictionary(20000, -1, 2);
+        addedDict.add("wordzzzz", 100, null);
+        final byte[] addedBinary = makeStableBinary(addedDict, oldBinary);
+        assertEquals("Stable layout changes the words", readWords(makeBinary(addedDict)),
+                readWords(addedBinary));
+        final byte[] addedPatch = checkPatch(oldBinary, addedBinary);
+        assertTrue("Patch is " + addedPatch.length + " bytes for " + addedBinary.length,
+                addedPatch.length < addedBinary.length / 100);
+    }
+
+    // Test that a patch is refused for another dictionary than the one it was made from.
+    public void testPatchRefusesOtherDictionary() throws Exception {
+        final byte[] oldBinary = makeBinary(makeDictionary(100));
+        final byte[] newBinary = makeBinary(makeDictionary(200));
+        final ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        BinaryDictDiff.writePatch(patch, oldBinary, newBinary);
+        try {
+            BinaryDictDiff.applyPatch(new ByteArrayInputStream(patch.toByteArray()), newBinary);
+            fail("Patch was applied to the wrong dictionary");
+        } catch (UnsupportedFormatException e) {
+            // Expected
+        }
+    }
+}
@@ -16,8 +16,14 @@
 
 package com.android.inputmethod.latin;
 
+import com.android.inputmethod.latin.FusionDictionary.CharGroup;
 import com.android.inputmethod.latin.FusionDictionary.Node;
+import com.android.inputmethod.latin.FusionDictionary.WeightedString;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import junit.framework.TestCase;
@@ -35,6 +41,44 @@ public class BinaryDictInputOutputTest extends TestCase {
         super.tearDown();
     }
 
+    // Makes a small dictionary with words sharing prefixes and distinct frequencies.
+    static FusionDictionary makeFooDictionary() {
+        final FusionDictionary dict = new FusionDictionary();
+        dict.add("foo", 10, null);
+        dict.add("fta", 30, null);
+        dict.add("ftb", 20, null);
+        dict.add("bar", 40, null);
+        dict.add("fool", 50, null);
+        return dict;
+    }
+
+    // Makes a small dictionary whose words share tails, with a bigram from bat to rats.
+    static FusionDictionary makeBatDictionary() {
+        final FusionDictionary dict = new FusionDictionary();
+        final ArrayList<WeightedString> bigrams = new ArrayList<WeightedString>();
+        bigrams.add(new WeightedString("rats", 5));
+        dict.add("bat", 20, bigrams);
+        dict.add("bats", 10, null);
+        dict.add("batting", 10, null);
+        dict.add("cats", 10, null);
+        dict.add("catting", 10, null);
+        dict.add("rats", 10, null);
+        dict.add("ratting", 10, null);
+        return dict;
+    }
+
+    // Writes a dictionary to a temporary file and maps it.
+    static ByteBuffer writeAndMap(final FusionDictionary dict, final String prefix)
+            throws Exception {
+        final File file = File.createTempFile(prefix, ".dict");
+        file.deleteOnExit();
+        BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(file), dict);
+        final RandomAccessFile source = new RandomAccessFile(file, "r");
+        final ByteBuffer buffer = BinaryDictInputOutput.mapDictionaryBinary(source);
+        source.close();
+        return buffer;
+    }
+
     // Test the flattened array contains the expected number of nodes, and
     // that it does not contain any duplicates.
     public void testFlattenNodes() {
@@ -52,4 +96,250 @@ public class BinaryDictInputOutputTest extends TestCase {
         }
     }
 
+    // Returns the highest frequency of the words of a dictionary that start with a prefix.
+    private static int getMaxFrequencyOfWordsStartingWith(final FusionDictionary dict,
+            final String prefix) {
+        int maxFrequency = CharGroup.NOT_A_TERMINAL;
+        for (Word w : dict) {
+            if (w.mWord.startsWith(prefix)) maxFrequency = Math.max(maxFrequency, w.mFrequency);
+        }
+        return maxFrequency;
+    }
+
+    // Checks the subtree max frequency stored by each group of a node and its descendants
+    // against the words of the dictionary it was written from. Returns the number of groups
+    // that store one.
+    private static int checkSubtreeMaxFrequencies(final ByteBuffer buffer, final int headerSize,
+            final int nodeAddress, final String prefix, final FusionDictionary dict) {
+        buffer.position(headerSize + nodeAddress);
+        final int count = buffer.get() & 0xFF;
+        int groupAddress = nodeAddress + 1; // 1 byte for the group count
+        int checkedCount = 0;
+        for (int i = 0; i < count; ++i) {
+            buffer.position(headerSize + groupAddress);
+            final CharGroupInfo info = BinaryDictInputOutput.readCharGroup(buffer, groupAddress);
+            final String word =
+                    prefix + new String(info.mCharacters, 0, info.mCharacters.length);
+            final boolean hasSubtreeMaxFrequency = 0 != (info.mFlags
+                    & BinaryDictInputOutput.FLAG_HAS_SUBTREE_MAX_FREQUENCY);
+            if (BinaryDictInputOutput.FLAG_GROUP_ADDRESS_TYPE_NOADDRESS
+                    == (info.mFlags & BinaryDictInputOutput.MASK_GROUP_ADDRESS_TYPE)) {
+                assertFalse("Leaf " + word + " has a subtree max frequency",
+                        hasSubtreeMaxFrequency);
+            } else {
+                assertTrue("Group " + word + " has no subtree max frequency",
+                        hasSubtreeMaxFrequency);
+                assertEquals("Subtree max frequency of " + word,
+                        getMaxFrequencyOfWordsStartingWith(dict, word),
+                        info.mSubtreeMaxFrequency);
+                checkedCount += 1 + checkSubtreeMaxFrequencies(buffer, headerSize,
+                        info.mChildrenAddress, word, dict);
+            }
+            groupAddress = info.mEndAddress;
+        }
+        return checkedCount;
+    }
+
+    // Test that each group with children stores the max frequency of its subtree, and that
+    // the dictionary reads back the same.
+    public void testReadWriteWithSubtreeMaxFrequencies() throws Exception {
+        final FusionDictionary dict = makeFooDictionary();
+        final File file = File.createTempFile("subtree", ".dict");
+        file.deleteOnExit();
+        BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(file), dict, true);
+        final RandomAccessFile source = new RandomAccessFile(file, "r");
+        final ByteBuffer buffer = BinaryDictInputOutput.mapDictionaryBinary(source);
+        source.close();
+
+        final int headerSize = BinaryDictInputOutput.readHeader(buffer.duplicate());
+        // The options follow the magic number and the version.
+        assertTrue("The header does not have the subtree max frequencies option", 0 != (
+                buffer.getShort(3) & BinaryDictInputOutput.OPTION_HAS_SUBTREE_MAX_FREQUENCIES));
+        // "foo" has a lower frequency than "fool", its only descendant.
+        final CharGroup foo = FusionDictionary.findWordInTree(dict.mRoot, "foo");
+        assertTrue(foo.getFrequency() < getMaxFrequencyOfWordsStartingWith(dict, "foo"));
+        // The groups with children are "f", "oo" and "t".
+        assertEquals(3, checkSubtreeMaxFrequencies(buffer, headerSize, 0, "", dict));
+
+        buffer.rewind();
+        final FusionDictionary readDict = BinaryDictInputOutput.readDictionaryBinary(
+                buffer, null);
+        for (Word w : dict) {
+            final CharGroup group = FusionDictionary.findWordInTree(readDict.mRoot, w.mWord);
+            assertNotNull("Word " + w.mWord + " was not read back", group);
+            assertEquals(w.mFrequency, group.getFrequency());
+        }
+    }
+
+    // Test that a dictionary written without the subtree max frequencies stores none.
+    public void testWriteWithoutSubtreeMaxFrequencies() throws Exception {
+        final ByteBuffer buffer = writeAndMap(makeFooDictionary(), "nosubtree");
+        assertEquals(0, buffer.getShort(3)
+                & BinaryDictInputOutput.OPTION_HAS_SUBTREE_MAX_FREQUENCIES);
+        final int headerSize = BinaryDictInputOutput.readHeader(buffer.duplicate());
+        buffer.position(headerSize);
+        final int count = buffer.get() & 0xFF;
+        int groupAddress = 1;
+        for (int i = 0; i < count; ++i) {
+            final CharGroupInfo info = BinaryDictInputOutput.readCharGroup(buffer, groupAddress);
+            assertEquals(0, info.mFlags & BinaryDictInputOutput.FLAG_HAS_SUBTREE_MAX_FREQUENCY);
+            groupAddress = info.mEndAddress;
+        }
+    }
+
+    // Test that a dictionary with merged tails is smaller and reads back the same.
+    public void testReadWriteWithMergedTails() throws Exception {
+        final FusionDictionary dict = makeBatDictionary();
+        final FusionDictionary mergedDict = makeBatDictionary();
+        mergedDict.mergeTails();
+        final File file = File.createTempFile("unmerged", ".dict");
+        file.deleteOnExit();
+        BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(file), dict);
+        final File mergedFile = File.createTempFile("merged", ".dict");
+        mergedFile.deleteOnExit();
+        BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(mergedFile), mergedDict);
+        assertTrue("Merging tails did not make the file smaller",
+                mergedFile.length() < file.length());
+
+        final FusionDictionary readDict = BinaryDictInputOutput.readDictionaryBinary(
+                new RandomAccessFile(mergedFile, "r"), null);
+        int count = 0;
+        for (Word w : readDict) {
+            final CharGroup group = FusionDictionary.findWordInTree(dict.mRoot, w.mWord);
+            assertNotNull("Word " + w.mWord + " was not in the original dictionary", group);
+            assertEquals(group.getFrequency(), w.mFrequency);
+            ++count;
+        }
+        assertEquals(7, count);
+        final CharGroup bat = FusionDictionary.findWordInTree(readDict.mRoot, "bat");
+        assertEquals(1, bat.getBigrams().size());
+        assertEquals("rats", bat.getBigrams().get(0).mWord);
+    }
+
+    // Test that bigrams still lead to their target word after the group of the target is split
+    // by the words added later.
+    public void testBigramsFollowSplitTargets() throws Exception {
+        final FusionDictionary dict = new FusionDictionary();
+        final ArrayList<WeightedString> bigrams = new ArrayList<WeightedString>();
+        bigrams.add(new WeightedString("barrel", 4));
+        dict.add("foo", 10, bigrams);
+        dict.add("bar", 20, null);
+        dict.add("barre", 30, null);
+        final CharGroup foo = FusionDictionary.findWordInTree(dict.mRoot, "foo");
+        assertEquals("barrel", foo.getBigrams().get(0).mWord);
+
+        final FusionDictionary readDict = BinaryDictInputOutput.readDictionaryBinary(
+                writeAndMap(dict, "split"), null);
+        final CharGroup readFoo = FusionDictionary.findWordInTree(readDict.mRoot, "foo");
+        assertEquals("barrel", readFoo.getBigrams().get(0).mWord);
+        assertEquals(0, FusionDictionary.findWordInTree(readDict.mRoot, "barrel").getFrequency());
+    }
+
+    // Test that bigrams read back when the children of root groups are shared, and the target
+    // is under a root group that comes after them.
+    public void testReadBigramsWithSharedRootChildren() throws Exception {
+        final FusionDictionary dict = new FusionDictionary();
+        final ArrayList<WeightedString> bigrams = new ArrayList<WeightedString>();
+        bigrams.add(new WeightedString("yc", 10));
+        dict.add("aa", 10, bigrams);
+        for (String word : new String[] { "ab", "xa", "xb", "ya", "yc", "za", "zb" }) {
+            dict.add(word, 10, null);
+        }
+        dict.mergeTails();
+        assertEquals(FusionDictionary.findWordInTree(dict.mRoot, "x").getChildren(),
+                FusionDictionary.findWordInTree(dict.mRoot, "z").getChildren());
+
+        final ByteBuffer buffer = writeAndMap(dict, "shared");
+        final FusionDictionary readDict = BinaryDictInputOutput.readDictionaryBinary(
+                buffer.duplicate(), null);
+        final CharGroup aa = FusionDictionary.findWordInTree(readDict.mRoot, "aa");
+        assertEquals(1, aa.getBigrams().size());
+        assertEquals("yc", aa.getBigrams().get(0).mWord);
+        final ArrayList<String> targets = new ArrayList<String>();
+        new MappedDictionary(buffer).getBigrams("aa", new MappedDictionary.WordCallback() {
+            @Override
+            public boolean addWord(int[] word, int length, int frequency) {
+                targets.add(new String(word, 0, length));
+                return true;
+            }
+        });
+        assertEquals(1, targets.size());
+        assertEquals("yc", targets.get(0));
+    }
+
+    // Test that writing a dictionary groups its bigrams in the file, but not in the dictionary.
+    public void testWriteGroupsBigramsWithoutChangingDictionary() throws Exception {
+        final FusionDictionary dict = new FusionDictionary();
+        final ArrayList<WeightedString> bigrams = new ArrayList<WeightedString>();
+        bigrams.add(new WeightedString("zoo", 5));
+        bigrams.add(new WeightedString("bar", 20));
+        bigrams.add(new WeightedString("zap", 10));
+        dict.add("foo", 10, bigrams);
+        dict.add("zoo", 10, null);
+        dict.add("bar", 10, null);
+        dict.add("zap", 10, null);
+        final File file = File.createTempFile("grouped", ".dict");
+        file.deleteOnExit();
+        BinaryDictInputOutput.writeDictionaryBinary(new FileOutputStream(file), dict);
+
+        final CharGroup foo = FusionDictionary.findWordInTree(dict.mRoot, "foo");
+        assertEquals("zoo", foo.getBigrams().get(0).mWord);
+        assertEquals("bar", foo.getBigrams().get(1).mWord);
+        assertEquals("zap", foo.getBigrams().get(2).mWord);
+        final FusionDictionary readDict = BinaryDictInputOutput.readDictionaryBinary(
+                new RandomAccessFile(file, "r"), null);
+        final CharGroup readFoo = FusionDictionary.findWordInTree(readDict.mRoot, "foo");
+        assertEquals("bar", readFoo.getBigrams().get(0).mWord);
+        assertEquals("zoo", readFoo.getBigrams().get(1).mWord);
+        assertEquals("zap", readFoo.getBigrams().get(2).mWord);
+    }
+
+    // Test that words can be looked up in a mapped dictionary without reading it to memory.
+    public void testFindWordFrequencyInMappedDictionary() throws Exception {
+        final FusionDictionary dict = makeFooDictionary();
+        final ByteBuffer buffer = writeAndMap(dict, "mapped");
+        for (Word w : dict) {
+            buffer.rewind();
+            assertEquals("Frequency of " + w.mWord, w.mFrequency,
+                    BinaryDictInputOutput.findWordFrequency(buffer, w.mWord));
+        }
+        for (String word : new String[] { "fo", "ft", "fools", "baz", "" }) {
+            buffer.rewind();
+            assertEquals("Frequency of " + word, CharGroup.NOT_A_TERMINAL,
+                    BinaryDictInputOutput.findWordFrequency(buffer, word));
+        }
+    }
+
+    // Test that the words of a mapped dictionary can be iterated without reading it to memory.
+    public void testReadWordsFromMappedDictionary() throws Exception {
+        final FusionDictionary dict = makeFooDictionary();
+        final ArrayList<WeightedString> bigrams = new ArrayList<WeightedString>();
+        bigrams.add(new WeightedString("bar", 5));
+        bigrams.add(new WeightedString("fta", 3));
+        dict.add("foot", 60, bigrams);
+        dict.mergeTails();
+        final ByteBuffer buffer = writeAndMap(dict, "words");
+        final Iterable<Word> words = BinaryDictInputOutput.readWordsBinary(buffer);
+        // Each iteration reads the buffer afresh and leaves it untouched.
+        for (int pass = 0; pass < 2; ++pass) {
+            int count = 0;
+            for (Word w : words) {
+                final CharGroup group = FusionDictionary.findWordInTree(dict.mRoot, w.mWord);
+                assertNotNull("Word " + w.mWord + " was not in the original dictionary", group);
+                assertEquals(group.getFrequency(), w.mFrequency);
+                final ArrayList<WeightedString> groupBigrams = group.getBigrams();
+                if (null == groupBigrams) {
+                    assertNull("Bigrams of " + w.mWord, w.mBigrams);
+                } else {
+                    assertEquals(groupBigrams.size(), w.mBigrams.size());
+                    for (int i = 0; i < w.mBigrams.size(); ++i) {
+                        assertEquals(groupBigrams.get(i).mWord, w.mBigrams.get(i).mWord);
+                    }
+                }
+                ++count;
+            }
+            assertEquals(6, count);
+            assertEquals(0, buffer.position());
+        }
+    }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.latin.FusionDictionary.CharGroup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for MappedDictionary.
+ */
+public class MappedDictionaryTest extends TestCase {
+
+    private static class Collector implements MappedDictionary.WordCallback {
+        final HashMap<String, Integer> mWords = new HashMap<String, Integer>();
+
+        @Override
+        public boolean addWord(int[] word, int length, int frequency) {
+            mWords.put(new String(word, 0, length), frequency);
+            return true;
+        }
+    }
+
+    // The words of BinaryDictInputOutputTest, and words with characters that are encoded on
+    // more than one byte.
+    private static FusionDictionary makeDictionary() {
+        final FusionDictionary dict = BinaryDictInputOutputTest.makeBatDictionary();
+        dict.add("\u00E9t\u00E9", 50, null);
+        dict.add("\u0101b", 60, null);
+        return dict;
+    }
+
+    private static MappedDictionary makeMappedDictionary(final FusionDictionary dict,
+            final boolean hasSubtreeMaxFrequencies) throws Exception {
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryDictInputOutput.writeDictionaryBinary(binary, dict, hasSubtreeMaxFrequencies);
+        return new MappedDictionary(ByteBuffer.wrap(binary.toByteArray()));
+    }
+
+    private static void checkFrequencies(final FusionDictionary dict,
+            final MappedDictionary mapped) {
+        for (Word w : dict) {
+            assertEquals("Frequency of " + w.mWord, w.mFrequency, mapped.getFrequency(w.mWord));
+        }
+        for (String word : new String[] { "ba", "bat1", "battings", "c", "dog", "\u00E9", "" }) {
+            assertFalse("Found " + word, mapped.isValidWord(word));
+        }
+    }
+
+    // Test that words are found with their frequencies, with and without merged tails.
+    public void testGetFrequency() throws Exception {
+        checkFrequencies(makeDictionary(), makeMappedDictionary(makeDictionary(), false));
+        final FusionDictionary mergedDict = makeDictionary();
+        mergedDict.mergeTails();
+        checkFrequencies(makeDictionary(), makeMappedDictionary(mergedDict, false));
+    }
+
+    // Test that completions are all the words of the prefix above the minimum frequency.
+    public void testGetWordsWithPrefix() throws Exception {
+        for (boolean hasSubtreeMaxFrequencies : new boolean[] { false, true }) {
+            final MappedDictionary mapped =
+                    makeMappedDictionary(makeDictionary(), hasSubtreeMaxFrequencies);
+            Collector collector = new Collector();
+            mapped.getWordsWithPrefix("bat", 0, collector);
+            assertEquals(3, collector.mWords.size());
+            assertEquals(10, (int)collector.mWords.get("batting"));
+
+            collector = new Collector();
+            mapped.getWordsWithPrefix("batt", 0, collector);
+            assertEquals(1, collector.mWords.size());
+            assertTrue(collector.mWords.containsKey("batting"));
+
+            collector = new Collector();
+            mapped.getWordsWithPrefix("", 30, collector);
+            assertEquals(2, collector.mWords.size());
+            assertTrue(collector.mWords.containsKey("\u0101b"));
+            assertFalse(collector.mWords.containsKey("bat"));
+
+            collector = new Collector();
+            mapped.getWordsWithPrefix("dog", 0, collector);
+            assertTrue(collector.mWords.isEmpty());
+        }
+    }
+
+    // Test that the bigrams of a word are found, with and without merged tails.
+    public void testGetBigrams() throws Exception {
+        final FusionDictionary mergedDict = makeDictionary();
+        mergedDict.mergeTails();
+        for (FusionDictionary dict : new FusionDictionary[] { makeDictionary(), mergedDict }) {
+            final MappedDictionary mapped = makeMappedDictionary(dict, false);
+            Collector collector = new Collector();
+            mapped.getBigrams("bat", collector);
+            assertEquals(1, collector.mWords.size());
+            assertEquals(5, (int)collector.mWords.get("rats"));
+
+            collector = new Collector();
+            mapped.getBigrams("rats", collector);
+            assertTrue(collector.mWords.isEmpty());
+        }
+        assertEquals(CharGroup.NOT_A_TERMINAL,
+                makeMappedDictionary(makeDictionary(), false).getFrequency("ratt"));
+    }
+}
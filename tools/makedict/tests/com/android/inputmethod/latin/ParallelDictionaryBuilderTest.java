@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.inputmethod.latin;
+
+import com.android.inputmethod.latin.FusionDictionary.WeightedString;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for ParallelDictionaryBuilder.
+ */
+public class ParallelDictionaryBuilderTest extends TestCase {
+
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    private static byte[] writeBinary(final FusionDictionary dict) throws Exception {
+        final ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryDictInputOutput.writeDictionaryBinary(binary, dict);
+        return binary.toByteArray();
+    }
+
+    // Test that building on several threads gives the same file as building on one, with
+    // enough words to fill the queues and bigrams whose targets are in other shards.
+    public void testSameBinaryAsSequentialBuild() throws Exception {
+        final Random random = new Random(42);
+        final LinkedHashSet<String> wordSet = new LinkedHashSet<String>();
+        while (wordSet.size() < 20000) {
+            final StringBuilder word = new StringBuilder();
+            final int length = 2 + random.nextInt(8);
+            for (int i = 0; i < length; ++i) {
+                word.append((char)('a' + random.nextInt(26)));
+            }
+            wordSet.add(word.toString());
+        }
+        final String[] words = wordSet.toArray(new String[wordSet.size()]);
+
+        final FusionDictionary sequentialDict = new FusionDictionary();
+        final ParallelDictionaryBuilder builder = new ParallelDictionaryBuilder(4);
+        try {
+            for (int i = 0; i < words.length; ++i) {
+                ArrayList<WeightedString> bigrams = null;
+                if (0 == i % 5) {
+                    // Targets are later words, mostly with another first char, or words that
+                    // are not in the dictionary at all.
+                    bigrams = new ArrayList<WeightedString>();
+                    bigrams.add(new WeightedString(words[(i + 1 + random.nextInt(1000))
+                            % words.length], random.nextInt(16)));
+                    bigrams.add(new WeightedString("zz" + words[i], random.nextInt(16)));
+                }
+                final int frequency = 1 + random.nextInt(255);
+                sequentialDict.add(words[i], frequency, bigrams);
+                builder.add(words[i], frequency, bigrams);
+            }
+            final FusionDictionary parallelDict = builder.getDictionary();
+            assertTrue("Parallel build wrote a different file",
+                    Arrays.equals(writeBinary(sequentialDict), writeBinary(parallelDict)));
+        } finally {
+            builder.shutdown();
+        }
+    }
+}